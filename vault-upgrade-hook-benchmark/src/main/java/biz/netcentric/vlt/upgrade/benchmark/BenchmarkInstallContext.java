@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.apache.jackrabbit.vault.packaging.VaultPackage;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+
+import biz.netcentric.vlt.upgrade.util.JcrResourceResolver;
+import biz.netcentric.vlt.upgrade.util.ServiceProvider;
+
+/**
+ * Stand-in for the install context Vault passes to install hooks. The phase is set by the benchmark driving the
+ * install, the package only knows its id. Resource resolvers are provided by the {@link JcrResourceResolver}.
+ */
+public class BenchmarkInstallContext implements InstallContext, ServiceProvider {
+
+    private static final ResourceResolverFactory RESOURCE_RESOLVER_FACTORY = JcrResourceResolver.createFactory();
+
+    private final Session session;
+    private final VaultPackage vaultPackage;
+    private final ImportOptions options = new ImportOptions();
+    private Phase phase = Phase.PREPARE;
+
+    public BenchmarkInstallContext(Session session, PackageId packageId) {
+        this.session = session;
+        this.vaultPackage = createPackage(packageId);
+    }
+
+    @Override
+    public Session getSession() {
+        return session;
+    }
+
+    @Override
+    public VaultPackage getPackage() {
+        return vaultPackage;
+    }
+
+    @Override
+    public ImportOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public void setPhase(Phase phase) {
+        this.phase = phase;
+    }
+
+    @Override
+    public <T> T getService(Class<T> clazz) {
+        return clazz == ResourceResolverFactory.class ? clazz.cast(RESOURCE_RESOLVER_FACTORY) : null;
+    }
+
+    private static VaultPackage createPackage(final PackageId packageId) {
+        return (VaultPackage) Proxy.newProxyInstance(BenchmarkInstallContext.class.getClassLoader(),
+                new Class<?>[] { VaultPackage.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getId":
+                                return packageId;
+                            case "isValid":
+                                return true;
+                            case "isClosed":
+                                return false;
+                            case "getArchive":
+                                return null;
+                            case "toString":
+                                return packageId.toString();
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.jcr.Session;
+
+/**
+ * Session wrapper counting the calls to {@link Session#save()}. Saves done through {@code Node.getSession()} bypass
+ * the wrapper and are not counted.
+ */
+public class CountingSession implements InvocationHandler {
+
+    private final Session session;
+    private final Session proxy;
+    private long saves;
+
+    public CountingSession(Session session) {
+        this.session = session;
+        this.proxy = (Session) Proxy.newProxyInstance(CountingSession.class.getClassLoader(),
+                new Class<?>[] { Session.class }, this);
+    }
+
+    /**
+     * @return The counting session, to be passed to the code under test.
+     */
+    public Session getSession() {
+        return proxy;
+    }
+
+    public long getSaves() {
+        return saves;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("save".equals(method.getName())) {
+            saves++;
+        }
+        try {
+            return method.invoke(session, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.benchmark;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+
+import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerBase;
+
+/**
+ * Custom handler executing the synthetic steps of an upgrade info. A "script" step sets a property on its root node,
+ * a "pipe" step sets a property on every node below its root, saving on threshold like a content rewrite would.
+ */
+public class SyntheticHandler extends UpgradeHandlerBase {
+
+    static final String PN_OPERATION = "operation";
+    static final String PN_PATH = "path";
+    static final String OPERATION_SCRIPT = "script";
+    static final String OPERATION_PIPE = "pipe";
+
+    @Override
+    protected void doPrepare(InstallContext ctx) throws RepositoryException {
+        runSteps(ctx);
+    }
+
+    @Override
+    protected void doInstalled(InstallContext ctx) throws RepositoryException {
+        runSteps(ctx);
+    }
+
+    @Override
+    protected void doEnd(InstallContext ctx) throws RepositoryException {
+        runSteps(ctx);
+    }
+
+    private void runSteps(InstallContext ctx) throws RepositoryException {
+        String prefix = ctx.getPhase().name().toLowerCase() + "_";
+        for (Resource step : upgradeInfo.getConfigResource().getChildren()) {
+            if (!StringUtils.startsWith(step.getName(), prefix)) {
+                continue;
+            }
+            ValueMap properties = step.adaptTo(ValueMap.class);
+            Node root = getSession().getNode(properties.get(PN_PATH, "/"));
+            if (OPERATION_PIPE.equals(properties.get(PN_OPERATION, String.class))) {
+                if (rewrite(root, step.getName(), 0) > 0) {
+                    save();
+                }
+            } else {
+                root.setProperty(upgradeInfo.getConfigResource().getName(), step.getName());
+            }
+            checkCancelled();
+        }
+    }
+
+    private long rewrite(Node node, String value, long count) throws RepositoryException {
+        node.setProperty("synthetic", value);
+        long changes = saveOnThreshold(count + 1);
+        for (NodeIterator children = node.getNodes(); children.hasNext(); ) {
+            changes = rewrite(children.nextNode(), value, changes);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.benchmark;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.apache.jackrabbit.commons.cnd.ParseException;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+
+import biz.netcentric.vlt.upgrade.UpgradeProcessor;
+
+/**
+ * Generates synthetic upgrader definitions and the content they operate on. All infos use the
+ * {@link SyntheticHandler}, scripts and pipes are simulated by its steps.
+ */
+public class SyntheticUpgraderGenerator {
+
+    static final String CONTENT_PATH = "/content/benchmark";
+
+    private static final String CND = "<sling='http://sling.apache.org/jcr/sling/1.0'>\n"
+            + "<vlt='http://www.day.com/jcr/vault/1.0'>\n"
+            + "[sling:Folder] > nt:folder\n"
+            + "  - * (undefined) multiple\n"
+            + "  - * (undefined)\n"
+            + "  + * (nt:base) = sling:Folder version\n";
+    private static final int FANOUT = 100;
+
+    private int infos = 10;
+    private int scripts = 2;
+    private int pipes = 1;
+    private int versions = 1;
+    private int nodes = 1000;
+    private String runType = "always";
+    private int unsaved;
+
+    public SyntheticUpgraderGenerator infos(int infos) {
+        this.infos = infos;
+        return this;
+    }
+
+    public SyntheticUpgraderGenerator scripts(int scripts) {
+        this.scripts = scripts;
+        return this;
+    }
+
+    public SyntheticUpgraderGenerator pipes(int pipes) {
+        this.pipes = pipes;
+        return this;
+    }
+
+    /**
+     * @param versions The number of distinct versions the infos are spread over.
+     */
+    public SyntheticUpgraderGenerator versions(int versions) {
+        this.versions = versions;
+        return this;
+    }
+
+    /**
+     * @param nodes The number of content nodes each pipe step rewrites.
+     */
+    public SyntheticUpgraderGenerator nodes(int nodes) {
+        this.nodes = nodes;
+        return this;
+    }
+
+    public SyntheticUpgraderGenerator runType(String runType) {
+        this.runType = runType;
+        return this;
+    }
+
+    /**
+     * Register the node types the hook needs, create the content tree and the upgrader definition of the package.
+     * @param session   An admin session.
+     * @param packageId The package to generate the definition for.
+     * @throws RepositoryException
+     */
+    public void generate(Session session, PackageId packageId) throws RepositoryException {
+        registerNodeTypes(session);
+        generateContent(JcrUtils.getOrCreateByPath(CONTENT_PATH, "nt:unstructured", session), nodes - 1);
+        session.save();
+
+        Node upgrader = JcrUtils.getOrCreateByPath(packageId.getInstallationPath() + UpgradeProcessor.UPGRADER_PATH_IN_PACKAGE,
+                "nt:unstructured", session);
+        for (int i = 0; i < infos; i++) {
+            Node info = upgrader.addNode(String.format("info-%05d", i), "nt:unstructured");
+            info.setProperty("jcr:title", "Synthetic upgrade " + i);
+            info.setProperty("handler", "custom");
+            info.setProperty("handlerClass", SyntheticHandler.class.getName());
+            info.setProperty("run", runType);
+            info.setProperty("version", "1.0." + (i % versions));
+            info.setProperty("priority", (long) i);
+            for (int s = 0; s < scripts; s++) {
+                Node step = info.addNode(String.format("installed_script_%03d", s), "nt:unstructured");
+                step.setProperty(SyntheticHandler.PN_OPERATION, SyntheticHandler.OPERATION_SCRIPT);
+                step.setProperty(SyntheticHandler.PN_PATH, CONTENT_PATH);
+            }
+            for (int p = 0; p < pipes; p++) {
+                Node step = info.addNode(String.format("installed_pipe_%03d", p), "nt:unstructured");
+                step.setProperty(SyntheticHandler.PN_OPERATION, SyntheticHandler.OPERATION_PIPE);
+                step.setProperty(SyntheticHandler.PN_PATH, CONTENT_PATH);
+            }
+        }
+        session.save();
+    }
+
+    /**
+     * Create a balanced tree of the given number of nodes below the parent, saving every 10000 nodes.
+     */
+    private void generateContent(Node parent, int count) throws RepositoryException {
+        int children = Math.min(FANOUT, count);
+        int remaining = count - children;
+        Node[] created = new Node[children];
+        for (int i = 0; i < children; i++) {
+            created[i] = parent.addNode("n" + i, "nt:unstructured");
+            if (++unsaved >= 10000) {
+                parent.getSession().save();
+                unsaved = 0;
+            }
+        }
+        for (int i = 0; i < children && remaining > 0; i++) {
+            int share = remaining / (children - i);
+            generateContent(created[i], share);
+            remaining -= share;
+        }
+    }
+
+    private void registerNodeTypes(Session session) throws RepositoryException {
+        if (session.getWorkspace().getNodeTypeManager().hasNodeType("sling:Folder")) {
+            return;
+        }
+        try {
+            CndImporter.registerNodeTypes(new StringReader(CND), session);
+        } catch (ParseException | IOException e) {
+            throw new RepositoryException(e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.vault.packaging.InstallContext.Phase;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import biz.netcentric.vlt.upgrade.UpgradeProcessor;
+
+/**
+ * Installs a package with a synthetic upgrader definition against an in-memory Oak repository. Run with
+ * {@code -prof gc} to get the allocation rate, the save count is reported as secondary result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class UpgradeProcessorBenchmark {
+
+    private static final PackageId PACKAGE_ID = new PackageId("benchmark", "synthetic-package", "1.0.0");
+
+    @Param({ "10", "100", "1000" })
+    public int infos;
+
+    @Param({ "2" })
+    public int scripts;
+
+    @Param({ "1" })
+    public int pipes;
+
+    @Param({ "1" })
+    public int versions;
+
+    @Param({ "1000" })
+    public int nodes;
+
+    private Repository repository;
+    private Session session;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Saves {
+        public long saves;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        repository = new Jcr(new Oak()).createRepository();
+        session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        new SyntheticUpgraderGenerator().infos(infos).scripts(scripts).pipes(pipes).versions(versions).nodes(nodes)
+                .generate(session, PACKAGE_ID);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.logout();
+        ((JackrabbitRepository) repository).shutdown();
+    }
+
+    @Benchmark
+    public void install(Saves saves) throws Exception {
+        run(saves, Phase.PREPARE, Phase.INSTALLED, Phase.END);
+    }
+
+    @Benchmark
+    public void failedInstall(Saves saves) throws Exception {
+        run(saves, Phase.PREPARE, Phase.INSTALL_FAILED);
+    }
+
+    @Benchmark
+    public void failedPrepare(Saves saves) throws Exception {
+        run(saves, Phase.PREPARE_FAILED);
+    }
+
+    /**
+     * Drive one install through the given phases, the way Vault calls the hook.
+     */
+    private void run(Saves saves, Phase... phases) throws Exception {
+        CountingSession countingSession = new CountingSession(session);
+        BenchmarkInstallContext ctx = new BenchmarkInstallContext(countingSession.getSession(), PACKAGE_ID);
+        UpgradeProcessor processor = new UpgradeProcessor();
+        for (Phase phase : phases) {
+            ctx.setPhase(phase);
+            processor.execute(ctx);
+        }
+        saves.saves += countingSession.getSaves();
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade;
+
+import static biz.netcentric.vlt.upgrade.util.LogUtil.error;
+import static biz.netcentric.vlt.upgrade.util.LogUtil.info;
+import static biz.netcentric.vlt.upgrade.util.LogUtil.warn;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrUtil;
+
+import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerBase;
+import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerRegistry;
+import biz.netcentric.vlt.upgrade.util.DeferredInstallContext;
+import biz.netcentric.vlt.upgrade.util.UpgradeProgress;
+import biz.netcentric.vlt.upgrade.util.Util;
+import biz.netcentric.vlt.upgrade.util.Watchdog;
+
+/**
+ * Runs the upgrade infos with {@code mode=deferred} after the install returned. Each one is persisted as job below
+ * {@code /var/upgrade/<group>/<name>/jobs} when the install ends, then the jobs of the package run one after the other
+ * in a background thread with their own session, in the order of the {@link UpgradeScheduler}. A job runs the scripts
+ * of Phase INSTALLED and END of its upgrade info and is retried on failure; the retry is scheduled with a delay, so
+ * the thread is free for the jobs of other packages in the meantime. Once a job failed for good, the jobs after it
+ * stay queued.
+ * <p>
+ * The jobs of a package are claimed by the instance running them: it sets itself as {@code owner} and renews the
+ * {@code heartbeat} of its unfinished jobs every third of {@value #JOB_LEASE_TIMEOUT}ms, like the
+ * {@link UpgradeLease}. Unfinished and failed jobs are resumed when the package is installed the next time, unless
+ * another instance holds them with a recent heartbeat. Jobs are resumed with the upgrade info of the same name in the
+ * package being installed; if it no longer has one, the job is marked {@link State#OBSOLETE}. Sling Jobs can't be used, as it requires a job consumer
+ * service the hook can't register.
+ */
+public class DeferredUpgrades {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED,
+        /**
+         * The upgrade info was removed from the package before the job succeeded.
+         */
+        OBSOLETE
+    }
+
+    static final String JOBS = "jobs";
+    static final String PN_STATE = "state";
+    static final String PN_ATTEMPTS = "attempts";
+    static final String PN_OWNER = "owner";
+    static final String PN_HEARTBEAT = "heartbeat";
+    static final String PN_ERROR = "error";
+    static final String PN_CREATED = "created";
+    static final String PN_STARTED = "started";
+    static final String PN_FINISHED = "finished";
+
+    static final long JOB_LEASE_TIMEOUT = 60000;
+
+    private static final int MAX_BACKOFF_SHIFT = 10;
+    private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toMillis(1);
+    private static final int CLAIM_ATTEMPTS = 3;
+
+    private static final Logger log = LoggerFactory.getLogger(DeferredUpgrades.class);
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "vault-upgrade-deferred");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "vault-upgrade-deferred-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Identifies this JVM as owner of the jobs it runs.
+     */
+    private static final String OWNER = getOwner();
+
+    private static final Object ACTIVE_LOCK = new Object();
+    private static int active;
+
+    private DeferredUpgrades() {
+    }
+
+    private static String getOwner() {
+        RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+        return runtime.getName() + "/" + runtime.getStartTime();
+    }
+
+    /**
+     * Queue the deferred upgrade infos of an install along with the unfinished and failed jobs of previous installs
+     * of the package, and start running them.
+     * @param ctx       The install context, in Phase END.
+     * @param infos     The deferred upgrade infos to run, in order.
+     * @return The number of jobs started.
+     * @throws RepositoryException if the jobs could not be persisted
+     */
+    public static int submit(InstallContext ctx, List<UpgradeInfo> infos) throws RepositoryException {
+        PackageId packageId = ctx.getPackage().getId();
+        String jobsPath = getJobsPath(packageId);
+        if (infos.isEmpty() && !ctx.getSession().nodeExists(jobsPath)) {
+            return 0;
+        }
+
+        Session session = Util.openWorkerSession(ctx.getSession());
+        boolean started = false;
+        try {
+            List<Job> queue = null;
+            for (int attempt = 1; queue == null; attempt++) {
+                try {
+                    queue = claim(JcrUtil.createPath(jobsPath, "sling:Folder", session), infos, ctx);
+                    session.save();
+                } catch (InvalidItemStateException e) {
+                    // another instance claimed jobs of the package at the same time
+                    if (attempt >= CLAIM_ATTEMPTS) {
+                        throw e;
+                    }
+                    session.refresh(false);
+                    queue = null;
+                }
+            }
+
+            if (queue.isEmpty()) {
+                return 0;
+            }
+            Runner runner = new Runner(packageId, session, queue, ctx);
+            runner.start();
+            started = true;
+            return queue.size();
+        } finally {
+            if (!started) {
+                session.logout();
+            }
+        }
+    }
+
+    /**
+     * Claim the jobs to run, to be saved by the caller. Of concurrent claims of the same job only one can be saved.
+     * @return The claimed jobs in execution order.
+     */
+    private static List<Job> claim(Node jobs, List<UpgradeInfo> infos, InstallContext ctx) throws RepositoryException {
+        List<Job> queue = new ArrayList<>();
+
+        // unfinished jobs of previous installs first, unless they are queued again
+        Set<String> names = new HashSet<>();
+        for (UpgradeInfo upgradeInfo : infos) {
+            names.add(upgradeInfo.getName());
+        }
+        for (NodeIterator nodes = jobs.getNodes(); nodes.hasNext(); ) {
+            Node job = nodes.nextNode();
+            if (!names.contains(job.getName()) && isUnfinished(job) && !isHeld(job)) {
+                if (!jobs.getSession().nodeExists(getInfoPath(ctx.getPackage().getId(), job.getName()))) {
+                    info("I", "Deferred upgrade " + job.getName() + " is obsolete, the package no longer contains it", ctx);
+                    job.setProperty(PN_STATE, State.OBSOLETE.name());
+                    job.setProperty(PN_FINISHED, Calendar.getInstance());
+                    continue;
+                }
+                info("I", "Resuming deferred upgrade " + job.getName(), ctx);
+                if (getState(job) == State.FAILED) {
+                    job.setProperty(PN_ATTEMPTS, 0L);
+                }
+                job.setProperty(PN_STATE, State.QUEUED.name());
+                setOwner(job);
+                queue.add(new Job(job.getPath(), null));
+            }
+        }
+        for (UpgradeInfo upgradeInfo : infos) {
+            Node job = jobs.hasNode(upgradeInfo.getName()) ? jobs.getNode(upgradeInfo.getName()) : null;
+            if (job != null && isUnfinished(job) && isHeld(job)) {
+                info("I", "Deferred upgrade " + upgradeInfo.getTitle() + " is still run by " + job.getProperty(PN_OWNER).getString(), ctx);
+                continue;
+            }
+            queue.add(new Job(enqueue(jobs, upgradeInfo), upgradeInfo));
+            info("I", "Deferred upgrade " + upgradeInfo.getTitle(), ctx);
+        }
+        return queue;
+    }
+
+    /**
+     * @param session   A session allowed to read the upgrade status.
+     * @param packageId The package.
+     * @return true if the package has deferred upgrades which did not succeed yet, including failed ones.
+     * @throws RepositoryException
+     */
+    public static boolean hasUnfinished(Session session, PackageId packageId) throws RepositoryException {
+        String jobsPath = getJobsPath(packageId);
+        if (!session.nodeExists(jobsPath)) {
+            return false;
+        }
+        for (NodeIterator nodes = session.getNode(jobsPath).getNodes(); nodes.hasNext(); ) {
+            if (isUnfinished(nodes.nextNode())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnfinished(Node job) throws RepositoryException {
+        State state = getState(job);
+        return state != State.SUCCEEDED && state != State.OBSOLETE;
+    }
+
+    /**
+     * @return The path of the upgrade info of a job in the package being installed. Jobs only store the name, as the
+     * path changes with the version of the package.
+     */
+    private static String getInfoPath(PackageId packageId, String name) {
+        return packageId.getInstallationPath() + UpgradeProcessor.UPGRADER_PATH_IN_PACKAGE + "/" + name;
+    }
+
+    /**
+     * @return true if an instance, possibly this one, runs the job or has it queued and renewed its heartbeat
+     * recently.
+     */
+    private static boolean isHeld(Node job) throws RepositoryException {
+        if (!job.hasProperty(PN_OWNER)) {
+            return false;
+        }
+        long heartbeat = job.hasProperty(PN_HEARTBEAT) ? job.getProperty(PN_HEARTBEAT).getLong() : 0;
+        return System.currentTimeMillis() - heartbeat < JOB_LEASE_TIMEOUT;
+    }
+
+    private static State getState(Node job) throws RepositoryException {
+        try {
+            return job.hasProperty(PN_STATE) ? State.valueOf(job.getProperty(PN_STATE).getString()) : State.QUEUED;
+        } catch (IllegalArgumentException e) {
+            return State.FAILED;
+        }
+    }
+
+    private static void setOwner(Node job) throws RepositoryException {
+        job.setProperty(PN_OWNER, OWNER);
+        job.setProperty(PN_HEARTBEAT, System.currentTimeMillis());
+    }
+
+    private static String enqueue(Node jobs, UpgradeInfo upgradeInfo) throws RepositoryException {
+        Node job = jobs.hasNode(upgradeInfo.getName()) ? jobs.getNode(upgradeInfo.getName()) : jobs.addNode(upgradeInfo.getName(), "sling:Folder");
+        job.setProperty(PN_STATE, State.QUEUED.name());
+        job.setProperty(PN_ATTEMPTS, 0L);
+        job.setProperty(PN_CREATED, Calendar.getInstance());
+        job.setProperty(PN_ERROR, (String) null);
+        job.setProperty(PN_STARTED, (Calendar) null);
+        job.setProperty(PN_FINISHED, (Calendar) null);
+        setOwner(job);
+        return job.getPath();
+    }
+
+    /**
+     * Wait until the deferred upgrades submitted so far are done, including their retries, e.g. before an offline
+     * runner shuts down the repository.
+     * @param timeout   The time to wait in ms.
+     * @return true if the deferred upgrades are done, false if the timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static boolean await(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (ACTIVE_LOCK) {
+            while (active > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeout < Long.MAX_VALUE && remaining <= 0) {
+                    return false;
+                }
+                ACTIVE_LOCK.wait(timeout < Long.MAX_VALUE ? remaining : 0);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param packageId The package.
+     * @return The path below which the deferred upgrades of the package are persisted.
+     */
+    public static String getJobsPath(PackageId packageId) {
+        return UpgradeStatusStore.getStatusPath(packageId) + "/" + JOBS;
+    }
+
+    private static class Job {
+        private final String path;
+        private UpgradeInfo upgradeInfo;
+
+        private Job(String path, UpgradeInfo upgradeInfo) {
+            this.path = path;
+            this.upgradeInfo = upgradeInfo;
+        }
+    }
+
+    /**
+     * Runs the jobs of a package in order, owns the session. Returns the executor thread while waiting for a retry.
+     */
+    private static class Runner implements Runnable {
+
+        private static final long STOP = -1;
+
+        private final PackageId packageId;
+        private final Session session;
+        private final List<Job> jobs;
+        private final DeferredInstallContext ctx;
+        private volatile int next;
+        private Session heartbeatSession;
+        private ScheduledFuture<?> heartbeat;
+
+        private Runner(PackageId packageId, Session session, List<Job> jobs, InstallContext install) {
+            this.packageId = packageId;
+            this.session = session;
+            this.jobs = jobs;
+            this.ctx = new DeferredInstallContext(session, install);
+        }
+
+        private void start() throws RepositoryException {
+            heartbeatSession = Util.openWorkerSession(session);
+            long interval = JOB_LEASE_TIMEOUT / 3;
+            heartbeat = HEARTBEATS.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    renew();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+            synchronized (ACTIVE_LOCK) {
+                active++;
+            }
+            EXECUTOR.execute(this);
+        }
+
+        @Override
+        public void run() {
+            UpgradeProgress.get(UpgradeProgress.Source.DEFERRED).startPhase(packageId.toString(), "DEFERRED", jobs.size() - next);
+            boolean rescheduled = false;
+            try {
+                while (next < jobs.size()) {
+                    long delay = run(jobs.get(next));
+                    if (delay == 0) {
+                        next++;
+                    } else if (delay > 0) {
+                        EXECUTOR.schedule(this, delay, TimeUnit.MILLISECONDS);
+                        rescheduled = true;
+                        return;
+                    } else {
+                        info("I", "Stopped deferred upgrades of " + packageId + ", the remaining ones stay queued", ctx);
+                        break;
+                    }
+                }
+            } finally {
+                UpgradeProgress.get(UpgradeProgress.Source.DEFERRED).endPhase(true);
+                if (!rescheduled) {
+                    finish();
+                }
+            }
+        }
+
+        /**
+         * @return 0 if the job succeeded, the delay in ms before it is retried, or {@link #STOP} if it failed for good
+         */
+        private long run(Job job) {
+            try {
+                Node node = session.getNode(job.path);
+                if (job.upgradeInfo == null) {
+                    job.upgradeInfo = load(node);
+                    if (job.upgradeInfo == null) {
+                        return STOP;
+                    }
+                }
+                UpgradeInfo upgradeInfo = job.upgradeInfo;
+                long attempts = (node.hasProperty(PN_ATTEMPTS) ? node.getProperty(PN_ATTEMPTS).getLong() : 0) + 1;
+                node.setProperty(PN_STATE, State.RUNNING.name());
+                node.setProperty(PN_ATTEMPTS, attempts);
+                node.setProperty(PN_STARTED, Calendar.getInstance());
+                session.save();
+                info("H", "Executing deferred upgrade: " + upgradeInfo.getTitle() + ", attempt " + attempts, ctx);
+                try {
+                    execute(upgradeInfo);
+                    node.setProperty(PN_STATE, State.SUCCEEDED.name());
+                    node.setProperty(PN_ERROR, (String) null);
+                    node.setProperty(PN_FINISHED, Calendar.getInstance());
+                    session.save();
+                    info("I", "Deferred upgrade " + upgradeInfo.getTitle() + " succeeded", ctx);
+                    return 0;
+                } catch (Exception | LinkageError e) {
+                    session.refresh(false);
+                    node.setProperty(PN_ERROR, String.valueOf(e));
+                    if (attempts > upgradeInfo.getRetries()) {
+                        fail(node, "Deferred upgrade " + upgradeInfo.getTitle() + " failed after " + attempts + " attempts", e);
+                        return STOP;
+                    }
+                    node.setProperty(PN_STATE, State.QUEUED.name());
+                    session.save();
+                    long delay = Math.max(1, Math.min(upgradeInfo.getRetryDelay() << Math.min(attempts - 1, MAX_BACKOFF_SHIFT), MAX_RETRY_DELAY));
+                    warn("W", "Deferred upgrade " + upgradeInfo.getTitle() + " failed, retrying in " + delay + "ms. " + e, ctx);
+                    return delay;
+                }
+            } catch (RepositoryException | RuntimeException e) {
+                error("Could not run deferred upgrade " + job.path, e, ctx);
+                return STOP;
+            }
+        }
+
+        private UpgradeInfo load(Node node) throws RepositoryException {
+            String infoPath = getInfoPath(packageId, node.getName());
+            Resource resource = Util.getResourceResolver(ctx).getResource(infoPath);
+            if (resource == null) {
+                fail(node, "Upgrade info " + infoPath + " of deferred upgrade " + node.getName() + " not found", null);
+                return null;
+            }
+            UpgradeInfo upgradeInfo = new UpgradeInfo(resource, ctx);
+            Resource upgrader = resource.getParent();
+            upgradeInfo.applyUpgraderDefaults(upgrader != null ? upgrader.adaptTo(ValueMap.class) : ValueMap.EMPTY);
+            try {
+                upgradeInfo.createHandler(new UpgradeHandlerRegistry(DeferredUpgrades.class.getClassLoader()));
+            } catch (Exception e) {
+                fail(node, "Could not create the handler of deferred upgrade " + upgradeInfo.getTitle(), e);
+                return null;
+            }
+            return upgradeInfo;
+        }
+
+        private void execute(UpgradeInfo upgradeInfo) throws Exception {
+            UpgradeHandlerBase handler = upgradeInfo.getHandler();
+            UpgradeProgress.get(UpgradeProgress.Source.DEFERRED).startInfo(upgradeInfo.getPath(), upgradeInfo.getTitle());
+            try {
+                for (InstallContext.Phase phase : new InstallContext.Phase[] { InstallContext.Phase.INSTALLED, InstallContext.Phase.END }) {
+                    ctx.setPhase(phase);
+                    handler.resetCancellation();
+                    Watchdog watchdog = Watchdog.start(handler, upgradeInfo.getTitle(), upgradeInfo.getTimeout());
+                    try {
+                        handler.execute(ctx);
+                    } finally {
+                        watchdog.stop();
+                    }
+                    session.save();
+                }
+            } finally {
+                UpgradeProgress.get(UpgradeProgress.Source.DEFERRED).endInfo(upgradeInfo.getPath());
+            }
+        }
+
+        private void fail(Node node, String message, Throwable cause) throws RepositoryException {
+            node.setProperty(PN_STATE, State.FAILED.name());
+            node.setProperty(PN_ERROR, cause != null ? message + ". " + cause : message);
+            node.setProperty(PN_FINISHED, Calendar.getInstance());
+            session.save();
+            if (cause instanceof Exception) {
+                error(message, (Exception) cause, ctx);
+            } else {
+                warn("E", cause != null ? message + ". " + cause : message, ctx);
+            }
+        }
+
+        /**
+         * Renew the heartbeat of the jobs not run yet, called by the heartbeat thread with its own session.
+         */
+        private synchronized void renew() {
+            if (!heartbeatSession.isLive()) {
+                return;
+            }
+            try {
+                heartbeatSession.refresh(false);
+                for (int i = next; i < jobs.size(); i++) {
+                    String path = jobs.get(i).path;
+                    if (heartbeatSession.nodeExists(path)) {
+                        Node job = heartbeatSession.getNode(path);
+                        if (job.hasProperty(PN_OWNER) && OWNER.equals(job.getProperty(PN_OWNER).getString())) {
+                            job.setProperty(PN_HEARTBEAT, System.currentTimeMillis());
+                        }
+                    }
+                }
+                heartbeatSession.save();
+            } catch (RepositoryException e) {
+                log.warn("Could not renew the heartbeat of the deferred upgrades of " + packageId + ". " + e.getMessage());
+                try {
+                    heartbeatSession.refresh(false);
+                } catch (RepositoryException e1) {
+                    log.debug("Could not refresh the heartbeat session", e1);
+                }
+            }
+        }
+
+        /**
+         * Stop the heartbeat, release the jobs which did not run, so the next install resumes them right away, and
+         * close the sessions.
+         */
+        private void finish() {
+            heartbeat.cancel(false);
+            synchronized (this) {
+                try {
+                    session.refresh(false);
+                    for (int i = next; i < jobs.size(); i++) {
+                        Node job = session.getNode(jobs.get(i).path);
+                        if (job.hasProperty(PN_OWNER) && OWNER.equals(job.getProperty(PN_OWNER).getString())) {
+                            job.setProperty(PN_OWNER, (String) null);
+                            job.setProperty(PN_HEARTBEAT, (String) null);
+                        }
+                    }
+                    session.save();
+                } catch (RepositoryException e) {
+                    log.warn("Could not release the deferred upgrades of " + packageId + ", they expire by their heartbeat. " + e.getMessage());
+                } finally {
+                    heartbeatSession.logout();
+                    session.logout();
+                }
+            }
+            synchronized (ACTIVE_LOCK) {
+                active--;
+                ACTIVE_LOCK.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade;
+
+import static biz.netcentric.vlt.upgrade.util.LogUtil.info;
+import static biz.netcentric.vlt.upgrade.util.LogUtil.warn;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.RowIterator;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * Checks the queries of upgrade infos before they run: the expressions of XPath pipes and the statements listed in
+ * the {@code queries} property. Each query is explained; if the repository would traverse instead of using an
+ * index, the {@code queryPlanPolicy} of the upgrade info decides: {@code warn} (default) only logs the plan,
+ * {@code fail} fails the install and {@code wait} waits up to {@code queryPlanTimeout} ms for an index to become
+ * ready, e.g. one being reindexed, before failing.
+ */
+public class QueryPlanAnalyzer {
+
+    public enum Policy {
+        WARN, FAIL, WAIT;
+
+        public static Policy fromString(String text) {
+            for (Policy policy : Policy.values()) {
+                if (policy.name().equalsIgnoreCase(text)) {
+                    return policy;
+                }
+            }
+            return WARN;
+        }
+    }
+
+    private static final String PN_QUERIES = "queries";
+    private static final String PN_POLICY = "queryPlanPolicy";
+    private static final String PN_TIMEOUT = "queryPlanTimeout";
+    private static final String PN_EXPR = "expr";
+    private static final String XPATH_PIPE = "slingPipes/xpath";
+    private static final String PIPES_PREFIX = "slingPipes/";
+    private static final String TRAVERSAL = "/* traverse ";
+    private static final long DEFAULT_TIMEOUT = 60000;
+    private static final long POLL_INTERVAL = 1000;
+
+    private final InstallContext ctx;
+    private final Session session;
+
+    public QueryPlanAnalyzer(InstallContext ctx) {
+        this.ctx = ctx;
+        this.session = ctx.getSession();
+    }
+
+    /**
+     * Check the queries of an upgrade info according to its policy.
+     * @param upgradeInfo   The upgrade info.
+     * @throws PackageException if a query traverses and the policy is fail, or wait timed out
+     * @throws RepositoryException
+     */
+    public void analyze(UpgradeInfo upgradeInfo) throws PackageException, RepositoryException {
+        Map<String, String> queries = getQueries(upgradeInfo);
+        if (queries.isEmpty()) {
+            return;
+        }
+        Policy policy = Policy.fromString(upgradeInfo.getConfig().get(PN_POLICY, Policy.WARN.name()));
+        long deadline = System.currentTimeMillis() + upgradeInfo.getConfig().get(PN_TIMEOUT, DEFAULT_TIMEOUT);
+        for (Map.Entry<String, String> query : queries.entrySet()) {
+            String plan = explain(query.getKey(), query.getValue());
+            while (isTraversal(plan) && policy == Policy.WAIT && System.currentTimeMillis() < deadline) {
+                info("I", "Waiting for an index for " + query.getKey(), ctx);
+                try {
+                    Thread.sleep(POLL_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PackageException("Interrupted while waiting for an index for " + query.getKey());
+                }
+                plan = explain(query.getKey(), query.getValue());
+            }
+            if (!isTraversal(plan)) {
+                continue;
+            }
+            String message = upgradeInfo.getTitle() + ": query traverses the repository: " + query.getKey() + " - plan: " + plan;
+            if (policy == Policy.WARN) {
+                warn("W", message, ctx);
+            } else {
+                throw new PackageException(message);
+            }
+        }
+    }
+
+    /**
+     * Collect the queries of an upgrade info.
+     * @param upgradeInfo   The upgrade info.
+     * @return The statements mapped to their language.
+     */
+    Map<String, String> getQueries(UpgradeInfo upgradeInfo) {
+        Map<String, String> queries = new LinkedHashMap<>();
+        for (String statement : upgradeInfo.getConfig().get(PN_QUERIES, ArrayUtils.EMPTY_STRING_ARRAY)) {
+            // XPath queries start with a path, everything else is taken as JCR-SQL2
+            queries.put(statement, statement.trim().startsWith("/") ? Query.XPATH : Query.JCR_SQL2);
+        }
+        if (UpgradeInfo.HandlerType.SLINGPIPES.name().equalsIgnoreCase(upgradeInfo.getHandlerName())) {
+            Resource resource = upgradeInfo.getConfigResource();
+            if (resource != null) {
+                collectPipeQueries(resource, queries);
+            }
+        }
+        return queries;
+    }
+
+    private void collectPipeQueries(Resource resource, Map<String, String> queries) {
+        for (Resource child : resource.getChildren()) {
+            if (XPATH_PIPE.equals(child.getResourceType())) {
+                String expr = child.adaptTo(ValueMap.class).get(PN_EXPR, String.class);
+                if (StringUtils.contains(expr, "${")) {
+                    // bound at runtime, e.g. by a container pipe
+                    info("I", "Skipping plan of dynamic query " + expr, ctx);
+                } else if (StringUtils.isNotBlank(expr)) {
+                    queries.put(expr, Query.XPATH);
+                }
+            }
+            if (StringUtils.startsWith(child.getResourceType(), PIPES_PREFIX) || resource.getResourceType().startsWith(PIPES_PREFIX)) {
+                // sub pipes of containers are nested in a conf child
+                collectPipeQueries(child, queries);
+            }
+        }
+    }
+
+    private String explain(String statement, String language) throws RepositoryException {
+        Query query = session.getWorkspace().getQueryManager().createQuery("explain " + statement, language);
+        RowIterator rows = query.execute().getRows();
+        List<String> plans = new ArrayList<>();
+        while (rows.hasNext()) {
+            plans.add(rows.nextRow().getValue("plan").getString());
+        }
+        return StringUtils.join(plans, " ");
+    }
+
+    private static boolean isTraversal(String plan) {
+        return plan.contains(TRAVERSAL);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.netcentric.vlt.upgrade.util.Util;
+
+/**
+ * Reads the {@code defaultSearchPaths} of the upgrade infos in a low priority background thread while Vault imports
+ * the package, so the handlers of Phase INSTALLED find the node states in the caches of the repository instead of
+ * reading them from a remote store. The traversal is breadth first, limited to a depth below each search path and to
+ * a total number of nodes, and stops as soon as {@link #stop()} is called. It only reads, with its own session.
+ */
+public class SearchPathPrefetcher implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchPathPrefetcher.class);
+
+    private final Session session;
+    private final List<String> paths;
+    private final int maxDepth;
+    private final long maxNodes;
+    private volatile boolean stopped;
+    private volatile long nodes;
+
+    private SearchPathPrefetcher(Session session, List<String> paths, int maxDepth, long maxNodes) {
+        this.session = session;
+        this.paths = paths;
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Start prefetching.
+     * @param session   The install session, impersonated for the background thread.
+     * @param paths     The search paths, paths below others are skipped.
+     * @param maxDepth  The depth below each search path to read.
+     * @param maxNodes  The maximum number of nodes to read in total.
+     * @return The running prefetcher, or null if there is nothing to prefetch.
+     * @throws RepositoryException if the session could not be opened
+     */
+    public static SearchPathPrefetcher start(Session session, Collection<String> paths, int maxDepth, long maxNodes) throws RepositoryException {
+        List<String> roots = getRoots(paths);
+        if (roots.isEmpty() || maxNodes <= 0) {
+            return null;
+        }
+        SearchPathPrefetcher prefetcher = new SearchPathPrefetcher(Util.openWorkerSession(session), roots, maxDepth, maxNodes);
+        Thread thread = new Thread(prefetcher, "vault-upgrade-prefetch");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return prefetcher;
+    }
+
+    private static List<String> getRoots(Collection<String> paths) {
+        List<String> sorted = new ArrayList<>(paths);
+        Collections.sort(sorted);
+        List<String> roots = new ArrayList<>();
+        for (String path : sorted) {
+            String last = roots.isEmpty() ? null : roots.get(roots.size() - 1);
+            if (last == null || !(path.equals(last) || path.startsWith(StringUtils.removeEnd(last, "/") + "/"))) {
+                roots.add(path);
+            }
+        }
+        return roots;
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            for (String path : paths) {
+                if (stopped || nodes >= maxNodes) {
+                    break;
+                }
+                if (session.nodeExists(path)) {
+                    prefetch(session.getNode(path));
+                }
+            }
+            log.info("Prefetched {} nodes below {} in {}ms{}", new Object[] { nodes, paths,
+                    System.currentTimeMillis() - start, stopped ? ", stopped" : "" });
+        } catch (RepositoryException | RuntimeException e) {
+            log.warn("Prefetching " + paths + " failed after " + nodes + " nodes. " + e.getMessage());
+        } finally {
+            session.logout();
+        }
+    }
+
+    private void prefetch(Node root) throws RepositoryException {
+        int rootDepth = root.getDepth();
+        Deque<Node> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty() && !stopped && nodes < maxNodes) {
+            Node node = queue.poll();
+            // reading the properties loads the node state, its children are listed for the next level
+            for (PropertyIterator properties = node.getProperties(); properties.hasNext(); ) {
+                properties.nextProperty();
+            }
+            nodes++;
+            if (node.getDepth() - rootDepth < maxDepth) {
+                // queue no more nodes than the budget allows
+                for (NodeIterator children = node.getNodes(); children.hasNext() && !stopped && nodes + queue.size() < maxNodes; ) {
+                    queue.add(children.nextNode());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop prefetching. The thread is not interrupted, as interrupts may close the file channels of the repository;
+     * it stops before reading the next node.
+     * @return The number of nodes read so far.
+     */
+    public long stop() {
+        stopped = true;
+        return nodes;
+    }
+}
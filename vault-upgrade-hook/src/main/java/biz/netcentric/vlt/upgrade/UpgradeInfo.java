@@ -8,26 +8,26 @@
  */
 package biz.netcentric.vlt.upgrade;
 
-import static biz.netcentric.vlt.upgrade.util.LogUtil.info;
-import static biz.netcentric.vlt.upgrade.util.LogUtil.warn;
-
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
+import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 
-import biz.netcentric.vlt.upgrade.handler.SlingPipesHandler;
 import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.vault.packaging.PackageException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ValueMap;
 
-import biz.netcentric.vlt.upgrade.handler.GroovyConsoleHandler;
 import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerBase;
+import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerRegistry;
+import biz.netcentric.vlt.upgrade.util.ContentFingerprint;
+import biz.netcentric.vlt.upgrade.util.Util;
 import biz.netcentric.vlt.upgrade.version.ArtifactVersion;
 import biz.netcentric.vlt.upgrade.version.DefaultArtifactVersion;
+import biz.netcentric.vlt.upgrade.version.VersionRange;
 import org.apache.jackrabbit.vault.packaging.InstallContext;
 
 /**
@@ -38,7 +38,8 @@ public class UpgradeInfo implements Comparable<UpgradeInfo> {
     public enum RunType {
         ONCE,       // run only once, i.e. if source version < version <= target version (default)
         SNAPSHOT,   // like ONCE, but if target version is a SNAPSHOT version, then also install if source version == version
-        ALWAYS;      // run always, completely disregarding versions
+        ALWAYS,     // run always, completely disregarding versions
+        ONCHANGE;   // run whenever the content of the upgrade info changed since it last ran, disregarding versions
 
         public static RunType fromString(String text) {
             for (RunType runType : RunType.values()) {
@@ -50,9 +51,24 @@ public class UpgradeInfo implements Comparable<UpgradeInfo> {
         }
     }
 
+    public enum Mode {
+        IMMEDIATE,  // run within the install (default)
+        DEFERRED;   // run as durable job in the background once the install ended
+
+        public static Mode fromString(String text) {
+            for (Mode mode : Mode.values()) {
+                if (mode.toString().toLowerCase().equals(text.toLowerCase())) {
+                    return mode;
+                }
+            }
+            return IMMEDIATE;
+        }
+    }
+
     public enum HandlerType {
         GROOVY,         // Groovy Console script
         SLINGPIPES,     // Sling pipes definition
+        BULK,           // declarative rewrite rules
         CUSTOM,         // Custom java handler
         UNKNOWN;        // unrecognised type
 
@@ -70,22 +86,46 @@ public class UpgradeInfo implements Comparable<UpgradeInfo> {
 
     private static final String PN_PRIORITY = "priority";
     private static final String PN_HANDLER = "handler";
-    private static final String PN_HANDLERCLASS = "handlerClass";
     private static final String PN_DEFAULTSEARCHPATHS = "defaultSearchPaths";
     private static final String PN_RUN = "run";
     private static final String PN_JCR_TITLE = "jcr:title";
-
+    private static final String PN_TIMEOUT = "timeout";
+    private static final String PN_SCRIPT_TIMEOUT = "scriptTimeout";
+    private static final String PN_HEAP_SAVE_THRESHOLD = "heapSaveThreshold";
+    private static final String PN_HEAP_ABORT_THRESHOLD = "heapAbortThreshold";
+    private static final String PN_DEPENDS_ON = "dependsOn";
+    private static final String PN_TOUCHES = "touches";
+    private static final String PN_MODE = "mode";
+    private static final String PN_VERSION_RANGE = "versionRange";
+    private static final String PN_EXCLUDE_VERSIONS = "excludeVersions";
+    private static final String PN_RETRIES = "retries";
+    private static final String PN_RETRY_DELAY = "retryDelay";
+
+    private String name;
+    private String path;
     private ArtifactVersion version;
+    private VersionRange sourceVersions;
 
     private long priority;
     private List<String> defaultSearchPaths;
+    private List<String> dependsOn;
+    private List<String> touches;
     private RunType runType;
-    private HandlerType handlerType;
+    private Mode mode;
+    private int retries;
+    private long retryDelay;
+    private String handlerName;
+    private long timeout;
+    private long scriptTimeout;
+    private int heapSaveThreshold;
+    private int heapAbortThreshold;
 
     private UpgradeHandlerBase handler;
     private InstallContext ctx;
     private ValueMap config;
     private Resource configResource;
+    private Map<InstallContext.Phase, List<String>> scripts;
+    private String fingerprint;
 
     /**
      * Create upgrade info.
@@ -96,16 +136,49 @@ public class UpgradeInfo implements Comparable<UpgradeInfo> {
      */
     public UpgradeInfo(Resource configResource, InstallContext ctx) throws RepositoryException {
 
-        this.ctx = ctx;
-        this.config = configResource.adaptTo(ValueMap.class);
         this.configResource = configResource;
+        init(configResource.getName(), configResource.getPath(), configResource.adaptTo(ValueMap.class), ctx);
+    }
+
+    /**
+     * Create upgrade info from the upgrader index of the package. The config resource is only resolved on demand.
+     *
+     * @param name      The name of the upgrade info.
+     * @param path      The path of the upgrade info in the repository.
+     * @param config    The configuration.
+     * @param scripts   The paths of the scripts per phase.
+     * @param ctx       The install context.
+     */
+    public UpgradeInfo(String name, String path, ValueMap config, Map<InstallContext.Phase, List<String>> scripts, InstallContext ctx) {
+
+        this.scripts = scripts;
+        init(name, path, config, ctx);
+    }
+
+    private void init(String name, String path, ValueMap config, InstallContext ctx) {
+
+        this.name = name;
+        this.path = path;
+        this.ctx = ctx;
+        this.config = config;
 
         this.version = new DefaultArtifactVersion(config.get(PN_VERSION, "0.0.0"));
+        this.sourceVersions = VersionRange.parse(config.get(PN_VERSION_RANGE, String.class),
+                config.get(PN_EXCLUDE_VERSIONS, ArrayUtils.EMPTY_STRING_ARRAY));
         this.priority = config.get(PN_PRIORITY, Long.MAX_VALUE);
         this.defaultSearchPaths = new ArrayList<>(Arrays.asList(
                 config.get(PN_DEFAULTSEARCHPATHS, ArrayUtils.EMPTY_STRING_ARRAY)));
+        this.dependsOn = Arrays.asList(config.get(PN_DEPENDS_ON, ArrayUtils.EMPTY_STRING_ARRAY));
+        this.touches = Arrays.asList(config.get(PN_TOUCHES, ArrayUtils.EMPTY_STRING_ARRAY));
         this.runType = RunType.fromString(config.get(PN_RUN, RunType.ONCE.toString()));
-        this.handlerType = HandlerType.fromString(config.get(PN_HANDLER, HandlerType.GROOVY.toString()));
+        this.mode = Mode.fromString(config.get(PN_MODE, Mode.IMMEDIATE.toString()));
+        this.retries = config.get(PN_RETRIES, 3L).intValue();
+        this.retryDelay = config.get(PN_RETRY_DELAY, 60000L);
+        this.handlerName = config.get(PN_HANDLER, HandlerType.GROOVY.toString()).toLowerCase();
+        this.timeout = config.get(PN_TIMEOUT, 0L);
+        this.scriptTimeout = config.get(PN_SCRIPT_TIMEOUT, 0L);
+        this.heapSaveThreshold = config.get(PN_HEAP_SAVE_THRESHOLD, 70L).intValue();
+        this.heapAbortThreshold = config.get(PN_HEAP_ABORT_THRESHOLD, 90L).intValue();
     }
 
     /*
@@ -115,71 +188,167 @@ public class UpgradeInfo implements Comparable<UpgradeInfo> {
         return version;
     }
 
+    /**
+     * @return The source versions this upgrade info applies to, given by the versionRange and excludeVersions
+     * properties, all versions by default.
+     */
+    public VersionRange getSourceVersions() {
+        return sourceVersions;
+    }
+
     public List<String> getDefaultSearchPaths() {
         return defaultSearchPaths;
     }
 
+    /**
+     * @return The names of the upgrade infos which have to run before this one.
+     */
+    public List<String> getDependsOn() {
+        return dependsOn;
+    }
+
+    /**
+     * @return The paths this upgrade info changes, empty if it may change anything.
+     */
+    public List<String> getTouches() {
+        return touches;
+    }
+
     public RunType getRunType() {
         return runType;
     }
 
-    public UpgradeHandlerBase getHandler() throws RepositoryException, PackageException {
-
-        switch (handlerType) {
+    public Mode getMode() {
+        return mode;
+    }
 
-            case GROOVY:
-                if (GroovyConsoleHandler.isAvailable()) {
-                    handler = new GroovyConsoleHandler();
-                } else {
-                    throw new PackageException("Could not find handler of type 'groovy', do you have it installed?");
-                }
-                break;
+    /**
+     * @return The number of retries of a deferred upgrade info after its first attempt failed.
+     */
+    public int getRetries() {
+        return retries;
+    }
 
-            case SLINGPIPES:
-                if (SlingPipesHandler.isAvailable()) {
-                    handler = new SlingPipesHandler();
-                } else {
-                    throw new PackageException("Could not find handler of type 'slingpipes', do you have it installed?");
-                }
-                break;
-
-            case CUSTOM:
-                String handlerClass = config.get(PN_HANDLERCLASS, String.class);
-                if (StringUtils.isNotBlank(handlerClass)) {
-                    try {
-                        handler = (UpgradeHandlerBase) this.getClass().getClassLoader().loadClass(handlerClass).newInstance();
-                        info("I", "Using custom handler: " + handlerClass, ctx);
-                    } catch (Exception e) {
-                        warn("W", "Could not load custom handler: " + handlerClass, ctx);
-                    }
-                } else {
-                    throw new PackageException("Custom upgrade handler, but no handlerClass specified.");
-                }
-                break;
+    /**
+     * @return The delay in ms before the first retry of a deferred upgrade info, doubled for each further retry.
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
 
-            case UNKNOWN:
-            default:
-                String handlerName = config.get(PN_HANDLER, StringUtils.EMPTY).toLowerCase();
-                throw new PackageException("Did not recognise upgrade handler of name '" + handlerName + "'. Please use groovy, slingpipes or custom");
+    /**
+     * Apply the time budgets set on the upgrader folder, unless this upgrade info sets its own.
+     * @param upgraderConfig The properties of the upgrader folder.
+     */
+    public void applyUpgraderDefaults(ValueMap upgraderConfig) {
+        if (!config.containsKey(PN_TIMEOUT)) {
+            timeout = upgraderConfig.get(PN_TIMEOUT, 0L);
         }
-
-        if (handler != null) {
-            handler.setUpgradeInfo(this);
+        if (!config.containsKey(PN_SCRIPT_TIMEOUT)) {
+            scriptTimeout = upgraderConfig.get(PN_SCRIPT_TIMEOUT, 0L);
         }
+    }
+
+    /**
+     * @return The time budget in ms for executing this upgrade info in one phase, 0 if unlimited.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return The time budget in ms for each script of this upgrade info, 0 if unlimited.
+     */
+    public long getScriptTimeout() {
+        return scriptTimeout;
+    }
 
+    /**
+     * @return The live heap usage in percent from which on pending changes are saved.
+     */
+    public int getHeapSaveThreshold() {
+        return heapSaveThreshold;
+    }
+
+    /**
+     * @return The live heap usage in percent from which on the handler is aborted.
+     */
+    public int getHeapAbortThreshold() {
+        return heapAbortThreshold;
+    }
+
+    /**
+     * @return The handler of this upgrade info, created once per install by {@link #createHandler(UpgradeHandlerRegistry)}.
+     */
+    public UpgradeHandlerBase getHandler() {
         return handler;
     }
 
+    /**
+     * Create the handler of this upgrade info, unless it has been created already.
+     * @param registry The handler factories of the install.
+     * @return The handler.
+     * @throws PackageException if the handler is missing or can't be created
+     */
+    public UpgradeHandlerBase createHandler(UpgradeHandlerRegistry registry) throws PackageException {
+        if (handler == null) {
+            handler = registry.createHandler(this);
+        }
+        return handler;
+    }
+
+    /**
+     * @return The lower case value of the handler property, groovy by default.
+     */
+    public String getHandlerName() {
+        return handlerName;
+    }
+
     public ValueMap getConfig() {
         return config;
     }
 
     public Resource getConfigResource() {
+        if (configResource == null) {
+            configResource = Util.getResourceResolver(ctx).getResource(path);
+        }
         return configResource;
     }
 
+    /**
+     * @return The script paths per phase as listed in the upgrader index, or null if the scripts have to be looked
+     * up below the config resource.
+     */
+    public Map<InstallContext.Phase, List<String>> getScripts() {
+        return scripts;
+    }
+
+    /**
+     * @return The fingerprint of the scripts, pipes and properties of this upgrade info, computed on first use.
+     * @throws RepositoryException
+     */
+    public String getFingerprint() throws RepositoryException {
+        if (fingerprint == null) {
+            Resource resource = getConfigResource();
+            Node node = resource != null ? resource.adaptTo(Node.class) : null;
+            if (node == null) {
+                throw new RepositoryException("Can't fingerprint upgrade info " + getTitle() + ", " + path + " not found");
+            }
+            fingerprint = ContentFingerprint.compute(node);
+        }
+        return fingerprint;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
     public String getTitle() {
-        return config.get(PN_JCR_TITLE, configResource.getName());
+        return config.get(PN_JCR_TITLE, name);
     }
 
     @Override
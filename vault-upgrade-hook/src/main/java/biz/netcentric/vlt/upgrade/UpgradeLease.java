@@ -0,0 +1,233 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade;
+
+import java.lang.management.ManagementFactory;
+import java.util.Calendar;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrUtil;
+import com.day.text.Text;
+
+import biz.netcentric.vlt.upgrade.util.Util;
+
+/**
+ * A lease on the upgrades of a package, held by one install at a time across all instances sharing the repository.
+ * The lease is the node {@code /var/upgrade/<group>/<name>/lock}; it is created or taken over with a save, so of two
+ * concurrent attempts only one succeeds. The holder renews its heartbeat every third of the lease timeout from a
+ * background thread. A lease whose heartbeat is older than its timeout is considered abandoned, e.g. by a crashed
+ * instance, and may be taken over. This relies on the clocks of the instances being roughly in sync.
+ */
+public class UpgradeLease {
+
+    public enum Mode {
+        NONE,   // no lease (default)
+        WAIT,   // wait for the lease
+        SKIP;   // skip the upgrades if another instance holds the lease
+
+        public static Mode fromString(String text) {
+            for (Mode mode : Mode.values()) {
+                if (mode.name().equalsIgnoreCase(text)) {
+                    return mode;
+                }
+            }
+            return NONE;
+        }
+    }
+
+    static final String LOCK = "lock";
+    static final String PN_OWNER = "owner";
+    static final String PN_ACQUIRED = "acquired";
+    static final String PN_HEARTBEAT = "heartbeat";
+    static final String PN_LEASE_TIMEOUT = "leaseTimeout";
+
+    private static final Logger log = LoggerFactory.getLogger(UpgradeLease.class);
+
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "vault-upgrade-lease");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Session session;
+    private final String path;
+    private final String owner;
+    private ScheduledFuture<?> heartbeat;
+    private volatile boolean lost;
+
+    private UpgradeLease(Session session, String path, String owner) {
+        this.session = session;
+        this.path = path;
+        this.owner = owner;
+    }
+
+    /**
+     * Acquire the lease of a package.
+     * @param installSession    The install session, impersonated for the lease.
+     * @param packageId         The package.
+     * @param wait              The time in ms to wait for the lease, 0 to try once.
+     * @param leaseTimeout      The time in ms after which the lease is abandoned without heartbeat.
+     * @return The lease, or null if it is held by someone else.
+     * @throws RepositoryException if the session could not be opened
+     */
+    public static UpgradeLease acquire(Session installSession, PackageId packageId, long wait, long leaseTimeout) throws RepositoryException {
+        String owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+        UpgradeLease lease = new UpgradeLease(Util.openWorkerSession(installSession), UpgradeStatusStore.getStatusPath(packageId) + "/" + LOCK, owner);
+        long deadline = System.currentTimeMillis() + wait;
+        long pollInterval = Math.max(100, Math.min(1000, leaseTimeout / 10));
+        try {
+            while (!lease.tryAcquire(leaseTimeout)) {
+                if (System.currentTimeMillis() >= deadline) {
+                    lease.session.logout();
+                    return null;
+                }
+                Thread.sleep(pollInterval);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lease.session.logout();
+            return null;
+        }
+        lease.startHeartbeat(leaseTimeout);
+        return lease;
+    }
+
+    private boolean tryAcquire(long leaseTimeout) {
+        try {
+            session.refresh(false);
+            Node lock;
+            if (session.nodeExists(path)) {
+                lock = session.getNode(path);
+                long heartbeat = lock.hasProperty(PN_HEARTBEAT) ? lock.getProperty(PN_HEARTBEAT).getLong() : 0;
+                long timeout = lock.hasProperty(PN_LEASE_TIMEOUT) ? lock.getProperty(PN_LEASE_TIMEOUT).getLong() : leaseTimeout;
+                if (System.currentTimeMillis() - heartbeat < timeout) {
+                    return false;
+                }
+                log.warn("Taking over the abandoned upgrade lease {} of {}", path, lock.hasProperty(PN_OWNER) ? lock.getProperty(PN_OWNER).getString() : null);
+            } else {
+                Node parent = JcrUtil.createPath(Text.getRelativeParent(path, 1), "sling:Folder", session);
+                lock = parent.addNode(LOCK, "sling:Folder");
+            }
+            lock.setProperty(PN_OWNER, owner);
+            lock.setProperty(PN_ACQUIRED, Calendar.getInstance());
+            lock.setProperty(PN_HEARTBEAT, System.currentTimeMillis());
+            lock.setProperty(PN_LEASE_TIMEOUT, leaseTimeout);
+            // of concurrent acquisitions only one can be saved, the others conflict
+            session.save();
+            return true;
+        } catch (RepositoryException e) {
+            log.debug("Could not acquire the upgrade lease " + path, e);
+            try {
+                session.refresh(false);
+            } catch (RepositoryException e1) {
+                log.debug("Could not refresh the lease session", e1);
+            }
+            return false;
+        }
+    }
+
+    private void startHeartbeat(long leaseTimeout) {
+        long interval = Math.max(1, leaseTimeout / 3);
+        heartbeat = HEARTBEATS.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                renew();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void renew() {
+        if (lost) {
+            return;
+        }
+        try {
+            session.refresh(false);
+            if (!isOwner()) {
+                lost = true;
+                heartbeat.cancel(false);
+                log.error("Lost the upgrade lease {}, another instance may run the same upgrades", path);
+                return;
+            }
+            session.getNode(path).setProperty(PN_HEARTBEAT, System.currentTimeMillis());
+            session.save();
+        } catch (RepositoryException e) {
+            log.warn("Could not renew the upgrade lease " + path + ". " + e.getMessage());
+        }
+    }
+
+    private boolean isOwner() throws RepositoryException {
+        return session.nodeExists(path) && session.getNode(path).hasProperty(PN_OWNER)
+                && owner.equals(session.getNode(path).getProperty(PN_OWNER).getString());
+    }
+
+    /**
+     * @return true if another instance took over the lease, e.g. because the heartbeat could not be saved in time.
+     */
+    public boolean isLost() {
+        return lost;
+    }
+
+    /**
+     * Check with the repository whether the lease is still held, e.g. right before the upgrade status is stored.
+     * @return false if another instance took over the lease, or if that could not be checked.
+     */
+    public synchronized boolean isHeld() {
+        if (lost) {
+            return false;
+        }
+        try {
+            session.refresh(false);
+            if (!isOwner()) {
+                lost = true;
+                heartbeat.cancel(false);
+                log.error("Lost the upgrade lease {}, another instance may run the same upgrades", path);
+            }
+            return !lost;
+        } catch (RepositoryException e) {
+            log.warn("Could not check the upgrade lease " + path + ". " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Release the lease and close its session.
+     */
+    public synchronized void release() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+        try {
+            session.refresh(false);
+            if (isOwner()) {
+                session.getNode(path).remove();
+                session.save();
+            }
+        } catch (RepositoryException e) {
+            log.warn("Could not release the upgrade lease " + path + ", it expires by its timeout. " + e.getMessage());
+        } finally {
+            session.logout();
+        }
+    }
+}
@@ -10,77 +10,356 @@ package biz.netcentric.vlt.upgrade;
 
 import static biz.netcentric.vlt.upgrade.util.LogUtil.error;
 import static biz.netcentric.vlt.upgrade.util.LogUtil.info;
+import static biz.netcentric.vlt.upgrade.util.LogUtil.warn;
 import static biz.netcentric.vlt.upgrade.util.Util.getResourceResolver;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 
 import org.apache.jackrabbit.vault.packaging.InstallContext;
 import org.apache.jackrabbit.vault.packaging.InstallHook;
 import org.apache.jackrabbit.vault.packaging.PackageException;
-import org.apache.jackrabbit.vault.packaging.PackageId;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
 
+import biz.netcentric.vlt.upgrade.handler.UpgradeCancelledException;
 import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerBase;
+import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerRegistry;
+import biz.netcentric.vlt.upgrade.index.UpgradeIndex;
+import biz.netcentric.vlt.upgrade.util.ContentFingerprint;
+import biz.netcentric.vlt.upgrade.util.Measurement;
+import biz.netcentric.vlt.upgrade.util.UpgradeEvents;
+import biz.netcentric.vlt.upgrade.util.UpgradeProgress;
+import biz.netcentric.vlt.upgrade.util.Watchdog;
 import biz.netcentric.vlt.upgrade.version.ArtifactVersion;
 import biz.netcentric.vlt.upgrade.version.DefaultArtifactVersion;
-import com.day.cq.commons.jcr.JcrUtil;
 
 public class UpgradeProcessor implements InstallHook {
 
-    private static final String PN_UPGRADE_VERSION = "version";
-    private static final String PN_UPGRADE_TIME = "time";
-    private static final String STATUS_PATH = "/var/upgrade";
     private static final String UNDEFINED_VERSION = "0.0.0";
     public static final String UPGRADER_PATH_IN_PACKAGE = ".zip/jcr:content/vlt:definition/upgrader";
+    private static final String PN_THREADS = "threads";
+    private static final String PN_PROFILE = "profile";
+    private static final String PN_PROFILE_INTERVAL = "profileInterval";
+    private static final long DEFAULT_PROFILE_INTERVAL = 10;
+    private static final String PN_PREFETCH = "prefetch";
+    private static final String PN_PREFETCH_DEPTH = "prefetchDepth";
+    private static final String PN_PREFETCH_NODES = "prefetchNodes";
+    private static final long DEFAULT_PREFETCH_DEPTH = 10;
+    private static final long DEFAULT_PREFETCH_NODES = 100000;
+    private static final String PN_LOCK_MODE = "lockMode";
+    private static final String PN_LOCK_TIMEOUT = "lockTimeout";
+    private static final String PN_LEASE_TIMEOUT = "leaseTimeout";
+    private static final long DEFAULT_LOCK_TIMEOUT = 3600000;
+    private static final long DEFAULT_LEASE_TIMEOUT = 60000;
 
     boolean failed = false;
+    private UpgradeStatusStore statusStore;
+    private List<UpgradeInfo> infos;
+    private UpgradeScheduler scheduler;
+    private int threads;
+    private int threadsOverride;
+    private ValueMap upgraderConfig;
+    private SearchPathPrefetcher prefetcher;
+    private UpgradeLease lease;
+    private UpgradeIndex index;
+    private boolean indexRead;
+    private String upgraderFingerprint;
+    private Boolean unchangedReinstall;
+    private boolean skipped;
+    private final Set<UpgradeInfo> changedInfos = new HashSet<>();
+    private final List<UpgradeInfo> deferred = new ArrayList<>();
+    private final Map<UpgradeInfo, Measurement> measurements = new ConcurrentHashMap<>();
 
     // ----< InstallHook interface >--------------------------------------------
 
     @Override
     public void execute(InstallContext ctx) throws PackageException {
         info("Executing content upgrade in phase " + ctx.getPhase(), "", ctx);
+        UpgradeEvents.Event event = UpgradeEvents.begin(UpgradeEvents.Type.PHASE)
+                .set("packageId", ctx.getPackage().getId().toString())
+                .set("version", ctx.getPackage().getId().getVersionString())
+                .set("phase", ctx.getPhase().name());
 
         try {
+            // the content is imported, the caches are either warm by now or the prefetch is in the way
+            if (ctx.getPhase() != InstallContext.Phase.PREPARE) {
+                stopPrefetch(ctx);
+            }
+
+            // a reinstall of an unchanged package returns right away in all phases
+            if (isUnchangedReinstall(ctx)) {
+                return;
+            }
+
+            // only one instance of a cluster runs the upgrades of the package, the versions are read afterwards
+            if (upgraderConfig == null) {
+                upgraderConfig = getUpgraderConfig(ctx);
+            }
+            if (!acquireLease(ctx)) {
+                return;
+            }
+
             ArtifactVersion sourceVersion = getSourceVersion(ctx);
             ArtifactVersion targetVersion = getTargetVersion(ctx);
 
-            // load upgrade infos
-            List<UpgradeInfo> infos = loadUpgradeInfos(ctx);
+            // load upgrade infos and create their handlers once per install
+            if (infos == null) {
+                infos = loadUpgradeInfos(ctx);
+
+                // sort upgrade infos according to their version and priority
+                Collections.sort(infos);
 
-            // sort upgrade infos according to their version and priority
-            Collections.sort(infos);
+                // decide once per install, the fingerprints are stored in the END phase
+                findChangedInfos(ctx);
+
+                // order by dependencies, rejects cycles before anything ran
+                scheduler = new UpgradeScheduler(infos);
+                threads = getThreads(upgraderConfig, ctx);
+                configureProfiling(upgraderConfig, ctx);
+            }
 
             // for each upgrade info: check whether it should be included, and if so execute its handler
-            for (UpgradeInfo upgradeInfo : infos) {
+            Set<UpgradeInfo> included = new HashSet<>();
+            deferred.clear();
+            for (UpgradeInfo upgradeInfo : scheduler.getOrder()) {
                 if (includeInfo(sourceVersion, targetVersion, upgradeInfo)) {
-                    info("H", "Executing upgrade: " + upgradeInfo.getTitle() + " - version " + upgradeInfo.getVersion(),
-                            ctx, InstallContext.Phase.PREPARE);
-                    UpgradeHandlerBase handler = upgradeInfo.getHandler();
-                    handler.execute(ctx);
+                    if (upgradeInfo.getMode() == UpgradeInfo.Mode.DEFERRED) {
+                        deferred.add(upgradeInfo);
+                    } else {
+                        included.add(upgradeInfo);
+                    }
                 }
             }
+            UpgradeProgress.get(UpgradeProgress.Source.INSTALL).startPhase(ctx.getPackage().getId().toString(), ctx.getPhase().name(), included.size());
+
+            // reject or wait for traversing queries before any content is touched
+            if (ctx.getPhase() == InstallContext.Phase.PREPARE) {
+                QueryPlanAnalyzer analyzer = new QueryPlanAnalyzer(ctx);
+                for (UpgradeInfo upgradeInfo : scheduler.getOrder()) {
+                    if (included.contains(upgradeInfo) || deferred.contains(upgradeInfo)) {
+                        analyzer.analyze(upgradeInfo);
+                    }
+                }
+            }
+
+            try {
+                scheduler.run(included, threads, ctx, new UpgradeScheduler.Execution() {
+                    @Override
+                    public void execute(UpgradeInfo upgradeInfo, InstallContext ctx) throws Exception {
+                        executeInfo(upgradeInfo, ctx);
+                    }
+                });
+            } catch (UpgradeCancelledException e) {
+                // revert the pending changes of the cancelled upgrade and record why it failed
+                ctx.getSession().refresh(false);
+                getStatusStore(ctx).storeFailure(ctx.getPackage().getId(), scheduler.getFailedInfo().getTitle() + ": " + e.getMessage());
+                throw e;
+            }
+
+            // warm the caches for Phase INSTALLED while Vault imports the content
+            if (ctx.getPhase() == InstallContext.Phase.PREPARE) {
+                startPrefetch(included, ctx);
+            }
 
             // if we are in the END phase, store the status info into the repository
             if (!failed && ctx.getPhase() == InstallContext.Phase.END) {
+                // another instance which took over the lease may have run the same upgrades already
+                if (lease != null && !lease.isHeld()) {
+                    throw new PackageException("Lost the upgrade lease of " + ctx.getPackage().getId() + ", not storing the upgrade status");
+                }
                 storeUpgradeStatus(ctx, targetVersion);
+                for (UpgradeInfo upgradeInfo : changedInfos) {
+                    getStatusStore(ctx).storeFingerprint(ctx.getPackage().getId(), upgradeInfo.getName(), upgradeInfo.getFingerprint());
+                }
+                storeMeasurements(ctx);
             }
         } catch (Exception e) {
             failed = true;
+            stopPrefetch(ctx);
+            releaseLease(ctx);
             error("Error during content upgrade", e, ctx);
             throw new PackageException(e);
+        } finally {
+            try {
+                endInstall(ctx);
+            } finally {
+                event.commit();
+                UpgradeProgress.get(UpgradeProgress.Source.INSTALL).endPhase(failed || ctx.getPhase() == InstallContext.Phase.END);
+            }
+        }
+
+        // the status is stored, continue with the deferred upgrades in the background
+        if (!failed && !skipped && !unchangedReinstall && ctx.getPhase() == InstallContext.Phase.END) {
+            submitDeferred(ctx);
         }
     }
 
+    /**
+     * Acquire the lease on the upgrades of the package in Phase PREPARE, if the upgrader folder sets
+     * {@value #PN_LOCK_MODE} to wait or skip. The session and the cached status are refreshed afterwards, so the
+     * versions stored by the previous holder are read.
+     * @param ctx   The install context.
+     * @return false if the upgrades are skipped, as another instance holds the lease.
+     * @throws PackageException if waiting for the lease timed out
+     * @throws RepositoryException
+     */
+    private boolean acquireLease(InstallContext ctx) throws PackageException, RepositoryException {
+        if (skipped) {
+            info("I", "Skipping content upgrade, it runs on another instance", ctx);
+            return false;
+        }
+        if (lease != null || ctx.getPhase() != InstallContext.Phase.PREPARE) {
+            return true;
+        }
+        UpgradeLease.Mode mode = UpgradeLease.Mode.fromString(upgraderConfig.get(PN_LOCK_MODE, UpgradeLease.Mode.NONE.name()));
+        if (mode == UpgradeLease.Mode.NONE) {
+            return true;
+        }
+        long wait = mode == UpgradeLease.Mode.WAIT ? upgraderConfig.get(PN_LOCK_TIMEOUT, DEFAULT_LOCK_TIMEOUT) : 0;
+        long start = System.currentTimeMillis();
+        lease = UpgradeLease.acquire(ctx.getSession(), ctx.getPackage().getId(), wait,
+                upgraderConfig.get(PN_LEASE_TIMEOUT, DEFAULT_LEASE_TIMEOUT));
+        if (lease == null && mode == UpgradeLease.Mode.SKIP) {
+            skipped = true;
+            info("I", "Skipping content upgrade, another instance holds the lease", ctx);
+            return false;
+        } else if (lease == null) {
+            throw new PackageException("Timed out after " + wait + "ms waiting for the upgrade lease of " + ctx.getPackage().getId());
+        }
+        info("I", "Acquired upgrade lease in " + (System.currentTimeMillis() - start) + "ms", ctx);
+        ctx.getSession().refresh(true);
+        getStatusStore(ctx).reload();
+        return true;
+    }
+
+    private void releaseLease(InstallContext ctx) {
+        if (lease != null) {
+            if (lease.isLost()) {
+                warn("W", "The upgrade lease was lost during the install, another instance may have run the same upgrades", ctx);
+            }
+            lease.release();
+            lease = null;
+        }
+    }
+
+    /**
+     * Start the deferred upgrade infos of this install and resume those of previous installs. The install succeeded
+     * already, so failures are only reported.
+     * @param ctx   The install context.
+     */
+    private void submitDeferred(InstallContext ctx) {
+        try {
+            int jobs = DeferredUpgrades.submit(ctx, deferred);
+            if (jobs > 0) {
+                info("I", "Running " + jobs + " deferred upgrade(s) in the background, see " + DeferredUpgrades.getJobsPath(ctx.getPackage().getId()), ctx);
+            }
+        } catch (RepositoryException e) {
+            error("Could not queue the deferred upgrades " + deferred, e, ctx);
+        }
+    }
+
+    /**
+     * Execute the handler of an upgrade info within its time budget.
+     * @param upgradeInfo   The upgrade info.
+     * @param ctx           The install context, with a worker session if upgrade infos run concurrently.
+     * @throws RepositoryException
+     */
+    private void executeInfo(UpgradeInfo upgradeInfo, InstallContext ctx) throws RepositoryException {
+        info("H", "Executing upgrade: " + upgradeInfo.getTitle() + " - version " + upgradeInfo.getVersion(),
+                ctx, InstallContext.Phase.PREPARE);
+        UpgradeHandlerBase handler = upgradeInfo.getHandler();
+        handler.resetCancellation();
+        Watchdog watchdog = Watchdog.start(handler, upgradeInfo.getTitle(), upgradeInfo.getTimeout());
+        Measurement measurement = Measurement.start(upgradeInfo.getName());
+        UpgradeEvents.Event event = UpgradeEvents.begin(UpgradeEvents.Type.INFO)
+                .set("packageId", ctx.getPackage().getId().toString())
+                .set("phase", ctx.getPhase().name())
+                .set("info", upgradeInfo.getName())
+                .set("path", upgradeInfo.getPath());
+        UpgradeProgress.get(UpgradeProgress.Source.INSTALL).startInfo(upgradeInfo.getPath(), upgradeInfo.getTitle());
+        try {
+            handler.execute(ctx);
+        } finally {
+            UpgradeProgress.get(UpgradeProgress.Source.INSTALL).endInfo(upgradeInfo.getPath());
+            event.commit();
+            watchdog.stop();
+            measurement.stop();
+            Measurement total = measurements.get(upgradeInfo);
+            if (total == null) {
+                measurements.put(upgradeInfo, measurement);
+            } else {
+                total.add(measurement);
+            }
+        }
+    }
+
+    /**
+     * Log a summary of the measurements of all upgrade infos which ran during the install and queue them to be stored
+     * in their status nodes.
+     * @param ctx   The install context.
+     */
+    private void storeMeasurements(InstallContext ctx) {
+        if (measurements.isEmpty()) {
+            return;
+        }
+        info("I", "Upgrade summary:", ctx);
+        for (UpgradeInfo upgradeInfo : scheduler.getOrder()) {
+            Measurement total = measurements.get(upgradeInfo);
+            if (total != null) {
+                List<Measurement> steps = upgradeInfo.getHandler().getMeasurements();
+                info("", total.toString(), ctx);
+                for (Measurement step : steps) {
+                    info("", "  " + step, ctx);
+                }
+                getStatusStore(ctx).storeMeasurements(ctx.getPackage().getId(), upgradeInfo.getName(), total, steps);
+            }
+        }
+    }
+
+    /**
+     * Release the per install state once the last phase of the install has been executed.
+     * @param ctx   The install context.
+     * @throws PackageException
+     */
+    private void endInstall(InstallContext ctx) throws PackageException {
+        switch (ctx.getPhase()) {
+            case END:
+            case PREPARE_FAILED:
+            case INSTALL_FAILED:
+                try {
+                    closeStatusStore(ctx, !failed && ctx.getPhase() == InstallContext.Phase.END);
+                } catch (RepositoryException e) {
+                    error("Could not store upgrade status", e, ctx);
+                    throw new PackageException(e);
+                } finally {
+                    releaseLease(ctx);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // ----< configuration >----------------------------------------------------
+
+    /**
+     * Override the {@value #PN_THREADS} property of the upgrader folder, e.g. when running offline on a dedicated
+     * machine. Has to be set before Phase PREPARE.
+     * @param threads   The number of upgrade infos which may run concurrently, 0 to use the property.
+     */
+    public void setThreads(int threads) {
+        this.threadsOverride = threads;
+    }
+
     // ----< internal >---------------------------------------------------------
 
     /**
-     * Load and return all upgrade infos in the package.
+     * Load and return all upgrade infos in the package, with their handlers.
      * @param ctx   The install context.
      * @return      A list of upgrade infos.
      * @throws RepositoryException
@@ -91,19 +370,201 @@ public class UpgradeProcessor implements InstallHook {
 
         String upgradeInfoPath = ctx.getPackage().getId().getInstallationPath() + UPGRADER_PATH_IN_PACKAGE;
 
-        ResourceResolver resourceResolver = getResourceResolver(ctx);
-        Resource upgradeInfoResource = resourceResolver.getResource(upgradeInfoPath);
-        if (upgradeInfoResource != null) {
-            for (Resource res : upgradeInfoResource.getChildren()) {
-                final UpgradeInfo upgradeInfo = new UpgradeInfo(res, ctx);
-                if (upgradeInfo.getHandler() != null) {
-                    infos.add(upgradeInfo);
+        // prefer the index written at build time over walking the installed definition
+        UpgradeIndex index = getIndex(ctx);
+        if (index != null) {
+            infos.addAll(index.getUpgradeInfos(upgradeInfoPath, ctx));
+        } else {
+            ResourceResolver resourceResolver = getResourceResolver(ctx);
+            Resource upgradeInfoResource = resourceResolver.getResource(upgradeInfoPath);
+            if (upgradeInfoResource != null) {
+                for (Resource res : upgradeInfoResource.getChildren()) {
+                    infos.add(new UpgradeInfo(res, ctx));
                 }
             }
         }
+
+        // fail before anything ran if a handler is missing
+        UpgradeHandlerRegistry registry = new UpgradeHandlerRegistry(getClass().getClassLoader());
+        for (UpgradeInfo upgradeInfo : infos) {
+            upgradeInfo.applyUpgraderDefaults(upgraderConfig);
+            upgradeInfo.createHandler(registry);
+        }
         return infos;
     }
 
+    /**
+     * Read the upgrader index of the package once per install.
+     * @param ctx   The install context.
+     * @return The index, or null if the package does not contain one.
+     * @throws PackageException if the index can't be read
+     */
+    private UpgradeIndex getIndex(InstallContext ctx) throws PackageException {
+        if (!indexRead) {
+            try {
+                index = UpgradeIndex.read(ctx);
+            } catch (IOException e) {
+                throw new PackageException("Could not read " + UpgradeIndex.INDEX_PATH, e);
+            }
+            indexRead = true;
+        }
+        return index;
+    }
+
+    /**
+     * Check in Phase PREPARE whether the package is reinstalled in the same version and with the same upgrader
+     * definitions as the last time, when nothing had to run again. Decided once per install.
+     * @param ctx   The install context.
+     * @return true if all phases can be skipped.
+     * @throws PackageException
+     * @throws RepositoryException
+     */
+    private boolean isUnchangedReinstall(InstallContext ctx) throws PackageException, RepositoryException {
+        if (unchangedReinstall == null) {
+            unchangedReinstall = ctx.getPhase() == InstallContext.Phase.PREPARE
+                    && getStatusStore(ctx).isUnchanged(ctx.getPackage().getId(), ctx.getPackage().getId().getVersionString(), getUpgraderFingerprint(ctx))
+                    && !DeferredUpgrades.hasUnfinished(ctx.getSession(), ctx.getPackage().getId());
+            if (unchangedReinstall) {
+                info("I", "Upgrader definitions unchanged since version " + ctx.getPackage().getId().getVersionString() + " was installed, nothing to upgrade", ctx);
+            }
+        }
+        return unchangedReinstall;
+    }
+
+    /**
+     * @param ctx   The install context.
+     * @return The digest of the upgrader index or else the fingerprint of the installed upgrader definitions, null if
+     * the package has none.
+     * @throws PackageException
+     * @throws RepositoryException
+     */
+    private String getUpgraderFingerprint(InstallContext ctx) throws PackageException, RepositoryException {
+        if (upgraderFingerprint == null) {
+            UpgradeIndex index = getIndex(ctx);
+            if (index != null && index.getDigest() != null) {
+                upgraderFingerprint = index.getDigest();
+            } else {
+                String upgraderPath = ctx.getPackage().getId().getInstallationPath() + UPGRADER_PATH_IN_PACKAGE;
+                if (ctx.getSession().nodeExists(upgraderPath)) {
+                    upgraderFingerprint = ContentFingerprint.compute(ctx.getSession().getNode(upgraderPath));
+                }
+            }
+        }
+        return upgraderFingerprint;
+    }
+
+    /**
+     * @param ctx       The install context.
+     * @param target    The target version.
+     * @return true if an upgrade info would run again when the same package is reinstalled, including deferred ones
+     * which did not succeed yet.
+     * @throws RepositoryException
+     */
+    private boolean runsOnReinstall(InstallContext ctx, ArtifactVersion target) throws RepositoryException {
+        if (!deferred.isEmpty() || DeferredUpgrades.hasUnfinished(ctx.getSession(), ctx.getPackage().getId())) {
+            return true;
+        }
+        for (UpgradeInfo upgradeInfo : infos) {
+            if (upgradeInfo.getRunType() == UpgradeInfo.RunType.ALWAYS
+                    || upgradeInfo.getRunType() == UpgradeInfo.RunType.SNAPSHOT && isSnapshotVersion(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param ctx   The install context.
+     * @return The properties of the upgrader folder of the package, empty if it has none.
+     */
+    private ValueMap getUpgraderConfig(InstallContext ctx) {
+        Resource upgrader = getResourceResolver(ctx).getResource(ctx.getPackage().getId().getInstallationPath() + UPGRADER_PATH_IN_PACKAGE);
+        return upgrader != null ? upgrader.adaptTo(ValueMap.class) : ValueMap.EMPTY;
+    }
+
+    /**
+     * Get the number of upgrade infos which may run concurrently, set by the threads property of the upgrader folder
+     * unless overridden by {@link #setThreads(int)}.
+     * @param upgraderConfig    The properties of the upgrader folder.
+     * @param ctx               The install context.
+     * @return The number of threads, 1 by default.
+     */
+    private int getThreads(ValueMap upgraderConfig, InstallContext ctx) {
+        int threads = threadsOverride > 0 ? threadsOverride : upgraderConfig.get(PN_THREADS, 1L).intValue();
+        if (threads > 1) {
+            info("I", "Running independent upgrades with " + threads + " threads", ctx, InstallContext.Phase.PREPARE);
+        }
+        return threads;
+    }
+
+    /**
+     * Start reading the defaultSearchPaths of the included upgrade infos in the background, unless the upgrader folder
+     * sets {@value #PN_PREFETCH} to false.
+     * @param included  The included upgrade infos.
+     * @param ctx       The install context.
+     */
+    private void startPrefetch(Set<UpgradeInfo> included, InstallContext ctx) {
+        if (!upgraderConfig.get(PN_PREFETCH, true)) {
+            return;
+        }
+        Set<String> paths = new HashSet<>();
+        for (UpgradeInfo upgradeInfo : included) {
+            paths.addAll(upgradeInfo.getDefaultSearchPaths());
+        }
+        try {
+            prefetcher = SearchPathPrefetcher.start(ctx.getSession(), paths,
+                    upgraderConfig.get(PN_PREFETCH_DEPTH, DEFAULT_PREFETCH_DEPTH).intValue(),
+                    upgraderConfig.get(PN_PREFETCH_NODES, DEFAULT_PREFETCH_NODES));
+            if (prefetcher != null) {
+                info("I", "Prefetching " + paths, ctx);
+            }
+        } catch (RepositoryException e) {
+            // only an optimization
+            info("W", "Could not start prefetching " + paths + ". " + e.getMessage(), ctx);
+        }
+    }
+
+    private void stopPrefetch(InstallContext ctx) {
+        if (prefetcher != null) {
+            info("I", "Stopped prefetching after " + prefetcher.stop() + " nodes", ctx);
+            prefetcher = null;
+        }
+    }
+
+    /**
+     * Enable the sampling profiler of all handlers if the upgrader folder sets {@value #PN_PROFILE}.
+     * @param upgraderConfig    The properties of the upgrader folder.
+     * @param ctx               The install context.
+     */
+    private void configureProfiling(ValueMap upgraderConfig, InstallContext ctx) {
+        if (!upgraderConfig.get(PN_PROFILE, false)) {
+            return;
+        }
+        long interval = Math.max(1, upgraderConfig.get(PN_PROFILE_INTERVAL, DEFAULT_PROFILE_INTERVAL));
+        info("I", "Profiling scripts and pipes with a sampling interval of " + interval + "ms", ctx, InstallContext.Phase.PREPARE);
+        for (UpgradeInfo upgradeInfo : infos) {
+            upgradeInfo.getHandler().setProfileInterval(interval);
+        }
+    }
+
+    /**
+     * Collect the upgrade infos of run type ONCHANGE whose fingerprint differs from the one stored when they last ran.
+     * @param ctx   The install context.
+     * @throws RepositoryException
+     */
+    private void findChangedInfos(InstallContext ctx) throws RepositoryException {
+        for (UpgradeInfo upgradeInfo : infos) {
+            if (upgradeInfo.getRunType() == UpgradeInfo.RunType.ONCHANGE) {
+                String stored = getStatusStore(ctx).getFingerprint(ctx.getPackage().getId(), upgradeInfo.getName());
+                if (upgradeInfo.getFingerprint().equals(stored)) {
+                    info("I", "Skipping unchanged upgrade: " + upgradeInfo.getTitle(), ctx);
+                } else {
+                    changedInfos.add(upgradeInfo);
+                }
+            }
+        }
+    }
+
     /**
      * Get the target version, i.e. the version of the package being installed.
      * @param ctx   The install context.
@@ -122,49 +583,48 @@ public class UpgradeProcessor implements InstallHook {
      * @throws RepositoryException
      */
     private ArtifactVersion getSourceVersion(InstallContext ctx) throws RepositoryException {
-        Session session = ctx.getSession();
-
-        String versionInfo = UNDEFINED_VERSION;
-        String versionProp = getStatusPath(ctx.getPackage().getId()) + "/" + PN_UPGRADE_VERSION;
-        if (session.propertyExists(versionProp)) {
-            versionInfo = session.getProperty(versionProp).getString();
-        }
-        ArtifactVersion version = new DefaultArtifactVersion(versionInfo);
+        String versionInfo = getStatusStore(ctx).getVersion(ctx.getPackage().getId());
+        ArtifactVersion version = new DefaultArtifactVersion(versionInfo != null ? versionInfo : UNDEFINED_VERSION);
         info("Content version: " + version, "", ctx, InstallContext.Phase.PREPARE);
         return version;
     }
 
     /**
-     * Return the absolute JCR path to the version status information.
-     * @param packageId The package ID to build the path from.
-     * @return The status path.
-     */
-    private String getStatusPath(PackageId packageId) {
-        return STATUS_PATH + "/" + packageId.getGroup() + "/" + packageId.getName();
-    }
-
-    /**
-     * Store the upgrade version and timestamp into the repository.
+     * Queue the upgrade version and timestamp to be stored into the repository once the install ends.
      * @param ctx           The install context.
      * @param targetVersion The target version of the package install.
      * @throws RepositoryException
      */
     public void storeUpgradeStatus(InstallContext ctx, ArtifactVersion targetVersion) throws RepositoryException {
+        // reinstalls are only skipped if no upgrade info would run again
+        String fingerprint = upgraderFingerprint != null && !runsOnReinstall(ctx, targetVersion) ? upgraderFingerprint : null;
+        getStatusStore(ctx).storeVersion(ctx.getPackage().getId(), targetVersion.toString(), fingerprint);
+    }
 
-        final String statusPath = getStatusPath(ctx.getPackage().getId());
-
-        Session session = ctx.getSession();
-
-        Node status;
-        if (!session.itemExists(statusPath)) {
-            JcrUtil.createPath(statusPath, "sling:Folder", ctx.getSession());
+    /**
+     * Return the status store of this install, opening it on first use.
+     * @param ctx   The install context.
+     * @return The status store.
+     */
+    private UpgradeStatusStore getStatusStore(InstallContext ctx) {
+        if (statusStore == null) {
+            statusStore = new UpgradeStatusStore(ctx.getSession());
         }
-        status = session.getNode(statusPath);
+        return statusStore;
+    }
 
-        final Calendar now = Calendar.getInstance();
-        status.setProperty(PN_UPGRADE_TIME, now);
-        status.setProperty(PN_UPGRADE_VERSION, targetVersion.toString());
-        session.save();
+    /**
+     * Close the status store once this install ended.
+     * @param ctx       The install context.
+     * @param success   Whether the install succeeded.
+     * @throws RepositoryException
+     */
+    private void closeStatusStore(InstallContext ctx, boolean success) throws RepositoryException {
+        if (statusStore != null) {
+            UpgradeStatusStore store = statusStore;
+            statusStore = null;
+            store.close(ctx, success);
+        }
     }
 
     /**
@@ -176,10 +636,18 @@ public class UpgradeProcessor implements InstallHook {
      */
     public boolean includeInfo(ArtifactVersion source, ArtifactVersion target, UpgradeInfo upgradeInfo) {
 
+        // versionRange and excludeVersions restrict the source versions of all run types
+        if (!upgradeInfo.getSourceVersions().isAll() && !upgradeInfo.getSourceVersions().contains(source)) {
+            return false;
+        }
+
         UpgradeInfo.RunType runType = upgradeInfo.getRunType();
         if(runType == UpgradeInfo.RunType.ALWAYS) {
             return true;
         }
+        else if (runType == UpgradeInfo.RunType.ONCHANGE) {
+            return changedInfos.contains(upgradeInfo);
+        }
         else {
             if (UNDEFINED_VERSION.equals(source.toString())) {
                 return false; // don't spool all upgrades on a new installation
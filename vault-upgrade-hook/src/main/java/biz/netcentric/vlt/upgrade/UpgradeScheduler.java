@@ -0,0 +1,329 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+
+import biz.netcentric.vlt.upgrade.util.Util;
+import biz.netcentric.vlt.upgrade.util.WorkerInstallContext;
+
+/**
+ * Orders the upgrade infos of a package as a dependency graph. An upgrade info runs after the infos named in its
+ * {@code dependsOn} property and, among infos whose {@code touches} paths overlap, in version and priority order.
+ * Infos without {@code touches} may change anything, so they overlap with all others. Infos which are not ordered by
+ * the graph can run concurrently on a worker pool, each with its own session.
+ */
+public class UpgradeScheduler {
+
+    /**
+     * Executes a single upgrade info.
+     */
+    public interface Execution {
+
+        /**
+         * @param upgradeInfo   The upgrade info.
+         * @param ctx           The install context, with the worker session if run on a worker.
+         * @throws Exception if the upgrade failed
+         */
+        void execute(UpgradeInfo upgradeInfo, InstallContext ctx) throws Exception;
+    }
+
+    private final List<UpgradeInfo> order;
+    private final Map<UpgradeInfo, Integer> positions = new HashMap<>();
+    private final Map<UpgradeInfo, Set<UpgradeInfo>> predecessors = new HashMap<>();
+    private final Map<UpgradeInfo, Set<UpgradeInfo>> successors = new HashMap<>();
+    private UpgradeInfo failedInfo;
+
+    /**
+     * Build the graph.
+     * @param infos The upgrade infos, sorted by version and priority.
+     * @throws PackageException if a dependency is unknown or the dependencies contain a cycle
+     */
+    public UpgradeScheduler(List<UpgradeInfo> infos) throws PackageException {
+        Map<String, UpgradeInfo> byName = new HashMap<>();
+        for (UpgradeInfo info : infos) {
+            byName.put(info.getName(), info);
+            predecessors.put(info, new LinkedHashSet<UpgradeInfo>());
+            successors.put(info, new LinkedHashSet<UpgradeInfo>());
+        }
+        for (UpgradeInfo info : infos) {
+            for (String name : info.getDependsOn()) {
+                UpgradeInfo dependency = byName.get(name);
+                if (dependency == null) {
+                    throw new PackageException("Upgrade " + info.getTitle() + " depends on unknown upgrade " + name);
+                }
+                addEdge(dependency, info);
+            }
+        }
+        order = sort(infos);
+
+        // conflicting infos keep their relative order
+        for (int i = 0; i < order.size(); i++) {
+            positions.put(order.get(i), i);
+            for (int j = i + 1; j < order.size(); j++) {
+                if (overlap(order.get(i).getTouches(), order.get(j).getTouches())) {
+                    addEdge(order.get(i), order.get(j));
+                }
+            }
+        }
+    }
+
+    private void addEdge(UpgradeInfo from, UpgradeInfo to) {
+        successors.get(from).add(to);
+        predecessors.get(to).add(from);
+    }
+
+    /**
+     * Topological sort of the explicit dependencies, ties are broken by version and priority.
+     */
+    private List<UpgradeInfo> sort(List<UpgradeInfo> infos) throws PackageException {
+        final Map<UpgradeInfo, Integer> sortPositions = new HashMap<>();
+        for (UpgradeInfo info : infos) {
+            sortPositions.put(info, sortPositions.size());
+        }
+        Map<UpgradeInfo, Integer> inDegree = new HashMap<>();
+        PriorityQueue<UpgradeInfo> ready = new PriorityQueue<>(Math.max(1, infos.size()), new Comparator<UpgradeInfo>() {
+            @Override
+            public int compare(UpgradeInfo a, UpgradeInfo b) {
+                return sortPositions.get(a) - sortPositions.get(b);
+            }
+        });
+        for (UpgradeInfo info : infos) {
+            inDegree.put(info, predecessors.get(info).size());
+            if (predecessors.get(info).isEmpty()) {
+                ready.add(info);
+            }
+        }
+        List<UpgradeInfo> sorted = new ArrayList<>(infos.size());
+        while (!ready.isEmpty()) {
+            UpgradeInfo info = ready.poll();
+            sorted.add(info);
+            for (UpgradeInfo successor : successors.get(info)) {
+                int remaining = inDegree.get(successor) - 1;
+                inDegree.put(successor, remaining);
+                if (remaining == 0) {
+                    ready.add(successor);
+                }
+            }
+        }
+        if (sorted.size() < infos.size()) {
+            List<String> cycle = new ArrayList<>();
+            for (UpgradeInfo info : infos) {
+                if (!sorted.contains(info)) {
+                    cycle.add(info.getName());
+                }
+            }
+            throw new PackageException("Cyclic dependencies between the upgrades " + StringUtils.join(cycle, ", "));
+        }
+        return sorted;
+    }
+
+    private static boolean overlap(List<String> touches, List<String> otherTouches) {
+        if (touches.isEmpty() || otherTouches.isEmpty()) {
+            return true;
+        }
+        for (String path : touches) {
+            for (String otherPath : otherTouches) {
+                if (isSameOrAncestor(path, otherPath) || isSameOrAncestor(otherPath, path)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSameOrAncestor(String path, String otherPath) {
+        return path.equals(otherPath) || "/".equals(path) || otherPath.startsWith(path + "/");
+    }
+
+    /**
+     * @return The upgrade infos in an order satisfying the graph.
+     */
+    public List<UpgradeInfo> getOrder() {
+        return order;
+    }
+
+    /**
+     * @return The upgrade info which failed the last run, if any.
+     */
+    public UpgradeInfo getFailedInfo() {
+        return failedInfo;
+    }
+
+    /**
+     * Run the included upgrade infos. With a single thread all of them run in order on the calling thread with the
+     * install session. Otherwise each runs on a worker with its own session, saved once it succeeded. After the first
+     * failure no further infos are started, the running ones are awaited and the failure is rethrown.
+     * @param included  The upgrade infos to run, the others are only used for ordering.
+     * @param threads   The number of workers.
+     * @param ctx       The install context.
+     * @param execution Executes a single upgrade info.
+     * @throws Exception the failure of the first upgrade info which failed
+     */
+    public void run(Collection<UpgradeInfo> included, int threads, InstallContext ctx, Execution execution) throws Exception {
+        failedInfo = null;
+        if (threads <= 1) {
+            for (UpgradeInfo info : order) {
+                if (included.contains(info)) {
+                    try {
+                        execution.execute(info, ctx);
+                    } catch (Exception e) {
+                        failedInfo = info;
+                        throw e;
+                    }
+                }
+            }
+            return;
+        }
+
+        Map<UpgradeInfo, Integer> pending = new HashMap<>();
+        PriorityQueue<UpgradeInfo> ready = new PriorityQueue<>(Math.max(1, order.size()), new Comparator<UpgradeInfo>() {
+            @Override
+            public int compare(UpgradeInfo a, UpgradeInfo b) {
+                return positions.get(a) - positions.get(b);
+            }
+        });
+        for (UpgradeInfo info : order) {
+            pending.put(info, predecessors.get(info).size());
+            if (predecessors.get(info).isEmpty()) {
+                ready.add(info);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        Map<Future<Void>, UpgradeInfo> running = new LinkedHashMap<>();
+        Throwable failure = null;
+        try {
+            while (true) {
+                while (failure == null && running.size() < threads && !ready.isEmpty()) {
+                    UpgradeInfo info = ready.poll();
+                    if (included.contains(info)) {
+                        try {
+                            // sessions are opened here as the install session must not be used by the workers
+                            Session session = Util.openWorkerSession(ctx.getSession());
+                            running.put(completion.submit(new Worker(info, new WorkerInstallContext(ctx, session), execution)), info);
+                        } catch (RepositoryException e) {
+                            failure = e;
+                            failedInfo = info;
+                        }
+                    } else {
+                        complete(info, pending, ready);
+                    }
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+                Future<Void> done = completion.take();
+                UpgradeInfo info = running.remove(done);
+                try {
+                    done.get();
+                    complete(info, pending, ready);
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                        failedInfo = info;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure instanceof Exception) {
+            throw (Exception) failure;
+        } else if (failure != null) {
+            throw (Error) failure;
+        }
+    }
+
+    private void complete(UpgradeInfo info, Map<UpgradeInfo, Integer> pending, PriorityQueue<UpgradeInfo> ready) {
+        for (UpgradeInfo successor : successors.get(info)) {
+            int remaining = pending.get(successor) - 1;
+            pending.put(successor, remaining);
+            if (remaining == 0) {
+                ready.add(successor);
+            }
+        }
+    }
+
+    private static class Worker implements Callable<Void> {
+
+        private final UpgradeInfo info;
+        private final InstallContext ctx;
+        private final Execution execution;
+
+        private Worker(UpgradeInfo info, InstallContext ctx, Execution execution) {
+            this.info = info;
+            this.ctx = ctx;
+            this.execution = execution;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            Session session = ctx.getSession();
+            try {
+                execution.execute(info, ctx);
+                if (session.hasPendingChanges()) {
+                    session.save();
+                }
+                return null;
+            } catch (Exception e) {
+                revert(session);
+                throw e;
+            } finally {
+                session.logout();
+            }
+        }
+
+        private void revert(Session session) {
+            try {
+                session.refresh(false);
+            } catch (RepositoryException e) {
+                // the session is logged out anyway
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "vault-upgrade-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
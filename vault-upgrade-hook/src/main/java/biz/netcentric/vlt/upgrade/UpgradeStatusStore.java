@@ -0,0 +1,349 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade;
+
+import static biz.netcentric.vlt.upgrade.util.LogUtil.info;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+
+import com.day.cq.commons.jcr.JcrUtil;
+import com.day.text.Text;
+
+import biz.netcentric.vlt.upgrade.util.Measurement;
+
+/**
+ * Stores the upgrade status below /var/upgrade. The status of an install is queued and written with a single save
+ * once the install ends successfully; nothing is written if it fails, apart from the failure reason.
+ * The statuses of different packages are not batched: Vault installs subpackages after the END phase of their
+ * container, so no install outlives those of the packages it contains.
+ * <p>
+ * Versions and the fingerprints of upgrade infos are read through an install scoped cache, loaded per package on first
+ * use from its status node and the status nodes of its upgrade infos only; the jobs, measurements and profiles below
+ * are not read.
+ */
+public class UpgradeStatusStore {
+
+    static final String STATUS_PATH = "/var/upgrade";
+    static final String PN_UPGRADE_VERSION = "version";
+    static final String PN_UPGRADE_TIME = "time";
+    static final String PN_UPGRADE_FAILURE = "failure";
+    static final String PN_UPGRADE_FAILURE_TIME = "failureTime";
+    static final String PN_FINGERPRINT = "fingerprint";
+    static final String PN_UPGRADER_FINGERPRINT = "upgraderFingerprint";
+    static final String INFOS = "infos";
+    static final String STEPS = "steps";
+    static final String PN_WALL_TIME = "wallTime";
+    static final String PN_CPU_TIME = "cpuTime";
+    static final String PN_ALLOCATED_BYTES = "allocatedBytes";
+    static final String PROFILE = "profile.collapsed";
+
+    private final Session session;
+    private final Map<String, PendingStatus> pending = new LinkedHashMap<>();
+    private final Map<String, String> pendingFingerprints = new LinkedHashMap<>();
+    private final Map<String, PendingMeasurements> pendingMeasurements = new LinkedHashMap<>();
+    private final Set<String> loaded = new HashSet<>();
+    private final Map<String, String> versions = new HashMap<>();
+    private final Map<String, String> fingerprints = new HashMap<>();
+
+    /**
+     * @param session The install session.
+     */
+    public UpgradeStatusStore(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Close the store once the install ended. The pending statuses are written if the install succeeded, and
+     * discarded otherwise, leaving the session of the install untouched.
+     * @param ctx       The install context.
+     * @param success   Whether the install succeeded.
+     * @throws RepositoryException
+     */
+    public void close(InstallContext ctx, boolean success) throws RepositoryException {
+        if (success && !(pending.isEmpty() && pendingFingerprints.isEmpty() && pendingMeasurements.isEmpty())) {
+            for (PendingStatus status : pending.values()) {
+                write(status);
+            }
+            for (Map.Entry<String, String> fingerprint : pendingFingerprints.entrySet()) {
+                writeFingerprint(fingerprint.getKey(), fingerprint.getValue());
+            }
+            for (PendingMeasurements measurements : pendingMeasurements.values()) {
+                write(measurements);
+            }
+            session.save();
+            info("", "Stored upgrade status", ctx);
+        }
+        pending.clear();
+        pendingFingerprints.clear();
+        pendingMeasurements.clear();
+    }
+
+    /**
+     * Return the last installed version of a package.
+     * @param packageId The package.
+     * @return The version, or null if the package has not been installed yet.
+     * @throws RepositoryException
+     */
+    public String getVersion(PackageId packageId) throws RepositoryException {
+        load(packageId);
+        return versions.get(getStatusPath(packageId));
+    }
+
+    /**
+     * Return the fingerprint of an upgrade info stored when it last ran.
+     * @param packageId The package.
+     * @param infoName  The name of the upgrade info.
+     * @return The fingerprint, or null if none is stored.
+     * @throws RepositoryException
+     */
+    public String getFingerprint(PackageId packageId, String infoName) throws RepositoryException {
+        load(packageId);
+        return fingerprints.get(getInfoStatusPath(packageId, infoName));
+    }
+
+    /**
+     * Drop the cached versions and fingerprints, so they are read again on next use, e.g. once the upgrade lease is
+     * held and another instance may have stored them in the meantime. Statuses queued by this install are kept.
+     */
+    public void reload() {
+        loaded.clear();
+        versions.clear();
+        fingerprints.clear();
+        for (PendingStatus status : pending.values()) {
+            versions.put(status.path, status.version);
+        }
+        fingerprints.putAll(pendingFingerprints);
+    }
+
+    private void load(PackageId packageId) throws RepositoryException {
+        String path = getStatusPath(packageId);
+        if (!loaded.add(path) || !session.nodeExists(path)) {
+            return;
+        }
+        Node status = session.getNode(path);
+        // statuses queued by this install take precedence
+        if (status.hasProperty(PN_UPGRADE_VERSION) && !versions.containsKey(path)) {
+            versions.put(path, status.getProperty(PN_UPGRADE_VERSION).getString());
+        }
+        if (status.hasNode(INFOS)) {
+            for (NodeIterator infos = status.getNode(INFOS).getNodes(); infos.hasNext(); ) {
+                Node info = infos.nextNode();
+                if (info.hasProperty(PN_FINGERPRINT) && !fingerprints.containsKey(info.getPath())) {
+                    fingerprints.put(info.getPath(), info.getProperty(PN_FINGERPRINT).getString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue the status of a successfully installed package, written when the install ends.
+     * @param packageId     The package.
+     * @param version       The installed version.
+     */
+    public void storeVersion(PackageId packageId, String version) {
+        storeVersion(packageId, version, null);
+    }
+
+    /**
+     * Queue the version of a package along with the fingerprint of its upgrader definitions, see
+     * {@link #isUnchanged(PackageId, String, String)}.
+     * @param packageId             The package.
+     * @param version               The installed version.
+     * @param upgraderFingerprint   The fingerprint, null if a reinstall must not be skipped.
+     */
+    public void storeVersion(PackageId packageId, String version, String upgraderFingerprint) {
+        String path = getStatusPath(packageId);
+        pending.put(path, new PendingStatus(path, version, upgraderFingerprint, System.currentTimeMillis()));
+        versions.put(path, version);
+    }
+
+    /**
+     * Check whether a package has already been installed in this version and with the same upgrader definitions,
+     * reading its status node directly instead of loading the cache.
+     * @param packageId             The package.
+     * @param version               The version being installed.
+     * @param upgraderFingerprint   The fingerprint of the upgrader definitions being installed.
+     * @return true if the stored version and fingerprint match.
+     * @throws RepositoryException
+     */
+    public boolean isUnchanged(PackageId packageId, String version, String upgraderFingerprint) throws RepositoryException {
+        String path = getStatusPath(packageId);
+        if (upgraderFingerprint == null || !session.nodeExists(path)) {
+            return false;
+        }
+        Node status = session.getNode(path);
+        return status.hasProperty(PN_UPGRADER_FINGERPRINT)
+                && upgraderFingerprint.equals(status.getProperty(PN_UPGRADER_FINGERPRINT).getString())
+                && status.hasProperty(PN_UPGRADE_VERSION)
+                && version.equals(status.getProperty(PN_UPGRADE_VERSION).getString());
+    }
+
+    /**
+     * Queue the fingerprint of an upgrade info which ran, written along with the status of its package.
+     * @param packageId     The package.
+     * @param infoName      The name of the upgrade info.
+     * @param fingerprint   The fingerprint.
+     */
+    public void storeFingerprint(PackageId packageId, String infoName, String fingerprint) {
+        String path = getInfoStatusPath(packageId, infoName);
+        pendingFingerprints.put(path, fingerprint);
+        fingerprints.put(path, fingerprint);
+    }
+
+    /**
+     * Queue the measurements of an upgrade info which ran, written along with the status of its package. They replace
+     * the measurements of the previous install.
+     * @param packageId The package.
+     * @param infoName  The name of the upgrade info.
+     * @param total     The measurement of the whole upgrade info.
+     * @param steps     The measurements of its scripts, pipes or other steps.
+     */
+    public void storeMeasurements(PackageId packageId, String infoName, Measurement total, List<Measurement> steps) {
+        String path = getInfoStatusPath(packageId, infoName);
+        pendingMeasurements.put(path, new PendingMeasurements(path, total, new ArrayList<>(steps)));
+    }
+
+    /**
+     * Store the reason of a failed upgrade immediately. The version is left untouched.
+     * @param packageId The package.
+     * @param message   The failure message.
+     * @throws RepositoryException
+     */
+    public void storeFailure(PackageId packageId, String message) throws RepositoryException {
+        Node status = JcrUtil.createPath(getStatusPath(packageId), "sling:Folder", session);
+        status.setProperty(PN_UPGRADE_FAILURE_TIME, Calendar.getInstance());
+        status.setProperty(PN_UPGRADE_FAILURE, message);
+        session.save();
+    }
+
+    private void write(PendingStatus pendingStatus) throws RepositoryException {
+        Node status = JcrUtil.createPath(pendingStatus.path, "sling:Folder", session);
+        Calendar time = Calendar.getInstance();
+        time.setTimeInMillis(pendingStatus.time);
+        status.setProperty(PN_UPGRADE_TIME, time);
+        status.setProperty(PN_UPGRADE_VERSION, pendingStatus.version);
+        status.setProperty(PN_UPGRADER_FINGERPRINT, pendingStatus.upgraderFingerprint);
+        status.setProperty(PN_UPGRADE_FAILURE, (String) null);
+        status.setProperty(PN_UPGRADE_FAILURE_TIME, (Calendar) null);
+    }
+
+    private void writeFingerprint(String path, String fingerprint) throws RepositoryException {
+        Node status = JcrUtil.createPath(path, "sling:Folder", session);
+        status.setProperty(PN_FINGERPRINT, fingerprint);
+    }
+
+    private void write(PendingMeasurements measurements) throws RepositoryException {
+        Node status = JcrUtil.createPath(measurements.path, "sling:Folder", session);
+        write(status, measurements.total);
+        if (status.hasNode(STEPS)) {
+            status.getNode(STEPS).remove();
+        }
+        if (!measurements.steps.isEmpty()) {
+            Node steps = status.addNode(STEPS, "sling:Folder");
+            for (Measurement step : measurements.steps) {
+                String name = Text.escapeIllegalJcrChars(step.getName());
+                write(steps.hasNode(name) ? steps.getNode(name) : steps.addNode(name, "sling:Folder"), step);
+            }
+        }
+    }
+
+    private static void write(Node node, Measurement measurement) throws RepositoryException {
+        node.setProperty(PN_WALL_TIME, measurement.getWallTime());
+        node.setProperty(PN_CPU_TIME, measurement.getCpuTime());
+        node.setProperty(PN_ALLOCATED_BYTES, measurement.getAllocatedBytes());
+        if (measurement.getProfile() != null) {
+            writeProfile(node, measurement.getProfile());
+        }
+    }
+
+    /**
+     * Write collapsed stacks as file, so it can be downloaded and rendered as flame graph.
+     */
+    private static void writeProfile(Node node, String profile) throws RepositoryException {
+        if (node.hasNode(PROFILE)) {
+            node.getNode(PROFILE).remove();
+        }
+        Node content = node.addNode(PROFILE, JcrConstants.NT_FILE).addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
+        ValueFactory valueFactory = node.getSession().getValueFactory();
+        Binary data = valueFactory.createBinary(new ByteArrayInputStream(profile.getBytes(StandardCharsets.UTF_8)));
+        try {
+            content.setProperty(JcrConstants.JCR_DATA, data);
+        } finally {
+            data.dispose();
+        }
+        content.setProperty(JcrConstants.JCR_MIMETYPE, "text/plain");
+        content.setProperty(JcrConstants.JCR_ENCODING, "UTF-8");
+        content.setProperty(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
+    }
+
+    /**
+     * Return the absolute JCR path to the version status information.
+     * @param packageId The package ID to build the path from.
+     * @return The status path.
+     */
+    public static String getStatusPath(PackageId packageId) {
+        return STATUS_PATH + "/" + packageId.getGroup() + "/" + packageId.getName();
+    }
+
+    /**
+     * Return the absolute JCR path to the status information of an upgrade info.
+     * @param packageId The package ID to build the path from.
+     * @param infoName  The name of the upgrade info.
+     * @return The status path.
+     */
+    public static String getInfoStatusPath(PackageId packageId, String infoName) {
+        return getStatusPath(packageId) + "/" + INFOS + "/" + infoName;
+    }
+
+    private static class PendingMeasurements {
+        private final String path;
+        private final Measurement total;
+        private final List<Measurement> steps;
+
+        private PendingMeasurements(String path, Measurement total, List<Measurement> steps) {
+            this.path = path;
+            this.total = total;
+            this.steps = steps;
+        }
+    }
+
+    private static class PendingStatus {
+        private final String path;
+        private final String version;
+        private final String upgraderFingerprint;
+        private final long time;
+
+        private PendingStatus(String path, String version, String upgraderFingerprint, long time) {
+            this.path = path;
+            this.version = version;
+            this.upgraderFingerprint = upgraderFingerprint;
+            this.time = time;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import static biz.netcentric.vlt.upgrade.util.LogUtil.warn;
 import static biz.netcentric.vlt.upgrade.util.Util.getService;
 import static org.apache.jackrabbit.vault.packaging.InstallContext.Phase;
 
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -22,12 +23,14 @@ import javax.jcr.RepositoryException;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.JcrConstants;
-import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 
 import biz.netcentric.vlt.upgrade.util.FakeRequest;
+import biz.netcentric.vlt.upgrade.util.Measurement;
+import biz.netcentric.vlt.upgrade.util.UpgradeEvents;
+import biz.netcentric.vlt.upgrade.util.Watchdog;
 import com.citytechinc.aem.groovy.console.GroovyConsoleService;
 import com.citytechinc.aem.groovy.console.response.RunScriptResponse;
 import org.apache.jackrabbit.vault.packaging.InstallContext;
@@ -38,8 +41,10 @@ import com.day.text.Text;
  */
 public class GroovyConsoleHandler extends UpgradeHandlerBase {
 
+    private static final String PN_PRECOMPILED = "precompiled";
+    private static final String ATTR_HANDLER = "handler";
+
     private Map<Phase, LinkedList<String>> scripts;
-    private static final Phase[] phases = Phase.values();
 
     @Override
     public void execute(InstallContext ctx) throws RepositoryException {
@@ -49,8 +54,21 @@ public class GroovyConsoleHandler extends UpgradeHandlerBase {
 
         Collections.sort(scripts.get(ctx.getPhase())); // make sure we're executing in alphabetical order
         for (String scriptPath : scripts.get(ctx.getPhase())) {
-            runScript(scriptPath);
+            checkCancelled();
+            Watchdog watchdog = startScriptWatchdog(Text.getName(scriptPath));
+            Measurement measurement = startMeasurement(Text.getName(scriptPath));
+            UpgradeEvents.Event event = beginScriptEvent(scriptPath);
+            getProgress().startScript(scriptPath, -1);
+            try {
+                runScript(scriptPath);
+            } finally {
+                event.commit();
+                watchdog.stop();
+                recordMeasurement(measurement);
+            }
+            guardTransientSpace();
         }
+        checkCancelled();
     }
 
     /**
@@ -63,7 +81,15 @@ public class GroovyConsoleHandler extends UpgradeHandlerBase {
             scripts.put(phase, new LinkedList<String>());
         }
 
-        Resource resource = upgradeInfo.getConfigResource();
+        if (upgradeInfo.getScripts() != null) {
+            // listed by the upgrader index of the package
+            for (Phase phase : Phase.values()) {
+                scripts.get(phase).addAll(upgradeInfo.getScripts().get(phase));
+            }
+            return scripts;
+        }
+
+        Resource resource = getConfigResource();
         for (Resource child : resource.getChildren()) {
             // groovy scripts
             if (StringUtils.endsWith(child.getName(), ".groovy") && child.isResourceType("nt:file")) {
@@ -74,57 +100,104 @@ public class GroovyConsoleHandler extends UpgradeHandlerBase {
         return scripts;
     }
 
-    /**
-     * returns the correct Phase for a script name by its prefix.
-     * Important to handle PREPARE_FAILED and PREPARE correctly
-     * @param text  the script name
-     * @return      related phase. defaults to INSTALLED
-     */
-    private Phase getPhaseFromPrefix(String text) {
-        String scriptName = text.toLowerCase();
-        Phase phase = Phase.INSTALLED;
-        for (int i = phases.length - 1; i >= 0; i--) {
-            if (StringUtils.startsWithIgnoreCase(scriptName, phases[i].name())) {
-                phase = phases[i];
-                break;
-            }
-        }
-        return phase;
-    }
-
     /**
      * Executes the script from a given path via GroovyConsole.
      * @param scriptPath    the path a package definition to execute
      */
     public void runScript(String scriptPath) {
 
-        GroovyConsoleService groovyConsoleService = getService(GroovyConsoleService.class);
-        SlingHttpServletRequest request = getRequestForScript(scriptPath);
-        if (request != null) {
+        if (isPrecompiled() && runPrecompiled(scriptPath, getGroovyClassLoader())) {
+            return;
+        }
+        String script = getScript(scriptPath);
+        if (script != null) {
             info("I", "Executing " + Text.getName(scriptPath), ctx);
-            RunScriptResponse scriptResponse = groovyConsoleService.runScript(request);
-            info("I", "Run in " + scriptResponse.getRunningTime() + "ms with output of",ctx );
-            info("", scriptResponse.getOutput().trim() ,ctx);
+            runSource(scriptPath, script);
         }
     }
 
-    private SlingHttpServletRequest getRequestForScript(String scriptPath) {
+    /**
+     * @return the class loader providing the Groovy runtime to precompiled scripts
+     */
+    protected ClassLoader getGroovyClassLoader() {
+        return getService(GroovyConsoleService.class).getClass().getClassLoader();
+    }
+
+    /**
+     * Runs the source of a script, called by {@link #runScript(String)} within the watchdog, measurement and event
+     * of the script.
+     * @param scriptPath    the path of the script
+     * @param script        the source of the script
+     */
+    protected void runSource(String scriptPath, String script) {
+        Map<String, Object> parameters = Collections.<String, Object>singletonMap("script", script);
+        FakeRequest request = new FakeRequest(getResourceResolver(), "GET", "/bin/groovyconsole/post.json", parameters);
+        // the console binds the request only, scripts reach the handler via slingRequest.getAttribute("handler")
+        request.setAttribute(ATTR_HANDLER, this);
+        RunScriptResponse scriptResponse = getService(GroovyConsoleService.class).runScript(request);
+        info("I", "Run in " + scriptResponse.getRunningTime() + "ms with output of",ctx );
+        info("", scriptResponse.getOutput().trim() ,ctx);
+    }
+
+    /**
+     * Called if a script failed. The failure is logged, the following scripts still run.
+     * @param scriptPath    the path of the script
+     * @param e             the failure
+     */
+    protected void scriptFailed(String scriptPath, Exception e) {
+        warn("E", "Script " + Text.getName(scriptPath) + " failed. " + e, ctx);
+    }
+
+    /**
+     * @return true if the upgrade info enables precompiled scripts.
+     */
+    protected boolean isPrecompiled() {
+        return upgradeInfo.getConfig().get(PN_PRECOMPILED, false);
+    }
+
+    /**
+     * Executes the precompiled classes of the script, if the package ships them next to the script.
+     * @param scriptPath            the path of the script source
+     * @param groovyClassLoader     the class loader providing the Groovy runtime
+     * @return true if the precompiled script has been run
+     */
+    protected boolean runPrecompiled(String scriptPath, ClassLoader groovyClassLoader) {
 
         ResourceResolver resourceResolver = getResourceResolver();
-        Resource resource = resourceResolver.getResource(scriptPath + "/" + JcrConstants.JCR_CONTENT);
+        Resource jar = resourceResolver.getResource(StringUtils.removeEnd(scriptPath, ".groovy") + ".jar/" + JcrConstants.JCR_CONTENT);
+        InputStream in = jar != null ? jar.adaptTo(ValueMap.class).get(JcrConstants.JCR_DATA, InputStream.class) : null;
+        if (in == null) {
+            return false;
+        }
+
+        info("I", "Executing precompiled " + Text.getName(scriptPath), ctx);
+        long start = System.currentTimeMillis();
+        try {
+            Map<String, Object> variables = new HashMap<>();
+            variables.put("session", getSession());
+            variables.put("resourceResolver", resourceResolver);
+            variables.put("handler", this);
+            String output = new PrecompiledGroovyScript(in, groovyClassLoader).run(variables);
+            info("I", "Run in " + (System.currentTimeMillis() - start) + "ms with output of", ctx);
+            info("", output.trim(), ctx);
+        } catch (Exception e) {
+            scriptFailed(scriptPath, e);
+        }
+        return true;
+    }
+
+    private String getScript(String scriptPath) {
+
+        Resource resource = getResourceResolver().getResource(scriptPath + "/" + JcrConstants.JCR_CONTENT);
         String script = null;
 
         if (resource != null) {
             script = resource.adaptTo(ValueMap.class).get(JcrConstants.JCR_DATA, String.class);
         }
-        if (script != null) {
-            Map<String, Object> parameters = Collections.<String, Object>singletonMap("script", script);
-            return new FakeRequest(resourceResolver, "GET", "/bin/groovyconsole/post.json", parameters);
-        } else {
+        if (script == null) {
             warn("E", "Can't load script at " + scriptPath, ctx);
-            return null;
         }
-
+        return script;
     }
 
     public static boolean isAvailable() {
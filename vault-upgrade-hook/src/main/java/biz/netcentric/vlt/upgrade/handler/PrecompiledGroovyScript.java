@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Groovy script compiled at build time by the vault-upgrade-maven-plugin and shipped as jar next to its source.
+ * The script classes are defined by a class loader on top of the given parent, which has to see the Groovy runtime,
+ * so the hook itself does not need Groovy on its class path. Groovy is only accessed via reflection.
+ */
+public class PrecompiledGroovyScript {
+
+    private static final Logger log = LoggerFactory.getLogger(PrecompiledGroovyScript.class);
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final ClassLoader classLoader;
+    private final String mainClass;
+
+    /**
+     * Load the script classes from the jar.
+     * @param jar       The jar written by the maven plugin.
+     * @param parent    The parent class loader, seeing the Groovy runtime and the APIs the script uses.
+     * @throws IOException if the jar can't be read
+     */
+    public PrecompiledGroovyScript(InputStream jar, ClassLoader parent) throws IOException {
+        final Map<String, byte[]> classes = new HashMap<>();
+        JarInputStream in = new JarInputStream(jar);
+        try {
+            mainClass = in.getManifest() != null ? in.getManifest().getMainAttributes().getValue("Main-Class") : null;
+            JarEntry entry;
+            while ((entry = in.getNextJarEntry()) != null) {
+                if (entry.getName().endsWith(CLASS_SUFFIX)) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    for (int read; (read = in.read(buffer)) > 0; ) {
+                        bytes.write(buffer, 0, read);
+                    }
+                    String name = StringUtils.removeEnd(entry.getName(), CLASS_SUFFIX).replace('/', '.');
+                    classes.put(name, bytes.toByteArray());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (mainClass == null) {
+            throw new IOException("Precompiled script without Main-Class");
+        }
+        classLoader = new ClassLoader(parent) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] bytes = classes.get(name);
+                if (bytes == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+    }
+
+    /**
+     * Run the script.
+     * @param variables The binding variables; {@code out} and {@code log} are added.
+     * @return The output the script printed.
+     * @throws Exception if the script fails
+     */
+    public String run(Map<String, Object> variables) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output, true, "UTF-8");
+
+        Class<?> bindingClass = classLoader.loadClass("groovy.lang.Binding");
+        Object binding = bindingClass.newInstance();
+        for (Map.Entry<String, Object> variable : variables.entrySet()) {
+            bindingClass.getMethod("setVariable", String.class, Object.class).invoke(binding, variable.getKey(), variable.getValue());
+        }
+        bindingClass.getMethod("setVariable", String.class, Object.class).invoke(binding, "out", out);
+        bindingClass.getMethod("setVariable", String.class, Object.class).invoke(binding, "log", log);
+
+        Object script = classLoader.loadClass(mainClass).newInstance();
+        script.getClass().getMethod("setBinding", bindingClass).invoke(script, binding);
+        script.getClass().getMethod("run").invoke(script);
+        out.flush();
+        return output.toString("UTF-8");
+    }
+}
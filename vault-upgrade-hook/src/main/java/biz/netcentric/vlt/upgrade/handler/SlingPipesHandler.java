@@ -8,21 +8,38 @@
  */
 package biz.netcentric.vlt.upgrade.handler;
 
+import biz.netcentric.vlt.upgrade.util.OverlayResource;
+import biz.netcentric.vlt.upgrade.util.Util;
+import biz.netcentric.vlt.upgrade.util.Measurement;
+import biz.netcentric.vlt.upgrade.util.TransientSpaceGuard;
+import biz.netcentric.vlt.upgrade.util.UpgradeEvents;
+import biz.netcentric.vlt.upgrade.util.Watchdog;
 import com.day.text.Text;
 import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.vault.packaging.InstallContext;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.pipes.Pipe;
 import org.apache.sling.pipes.Plumber;
 
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static biz.netcentric.vlt.upgrade.util.LogUtil.info;
 import static biz.netcentric.vlt.upgrade.util.LogUtil.warn;
@@ -34,8 +51,14 @@ import static org.apache.jackrabbit.vault.packaging.InstallContext.Phase;
  */
 public class SlingPipesHandler extends UpgradeHandlerBase {
 
+    private static final String PN_PATH = "path";
+    private static final String PN_PARTITION = "partition";
+    private static final String PN_PARTITION_THREADS = "partitionThreads";
+    private static final String PARTITION_CHILDREN = "children";
+    private static final String PN_ESTIMATE_PROGRESS = "estimateProgress";
+    private static final String PN_DRY_RUN = "dryRun";
+
     private Map<Phase, LinkedList<String>> scripts;
-    private static final Phase[] phases = Phase.values();
 
     @Override
     public void execute(InstallContext ctx) throws RepositoryException {
@@ -43,8 +66,21 @@ public class SlingPipesHandler extends UpgradeHandlerBase {
         scripts = getScriptsFromConfig();
         Collections.sort(scripts.get(ctx.getPhase())); // make sure we're executing in alphabetical order
         for (String scriptPath : scripts.get(ctx.getPhase())) {
-            runScript(scriptPath);
+            checkCancelled();
+            Watchdog watchdog = startScriptWatchdog(Text.getName(scriptPath));
+            Measurement measurement = startMeasurement(Text.getName(scriptPath));
+            UpgradeEvents.Event event = beginScriptEvent(scriptPath);
+            getProgress().startScript(scriptPath, -1);
+            try {
+                runScript(scriptPath);
+            } finally {
+                event.commit();
+                watchdog.stop();
+                recordMeasurement(measurement);
+            }
+            guardTransientSpace();
         }
+        checkCancelled();
     }
 
     /**
@@ -57,7 +93,15 @@ public class SlingPipesHandler extends UpgradeHandlerBase {
             scripts.put(phase, new LinkedList<String>());
         }
 
-        Resource resource = upgradeInfo.getConfigResource();
+        if (upgradeInfo.getScripts() != null) {
+            // listed by the upgrader index of the package
+            for (Phase phase : Phase.values()) {
+                scripts.get(phase).addAll(upgradeInfo.getScripts().get(phase));
+            }
+            return scripts;
+        }
+
+        Resource resource = getConfigResource();
         for (Resource child : resource.getChildren()) {
             // sling pipes
             if (StringUtils.startsWith(child.getResourceType(), "slingPipes/")) {
@@ -67,35 +111,20 @@ public class SlingPipesHandler extends UpgradeHandlerBase {
         return scripts;
     }
 
-    /**
-     * returns the correct Phase for a script name by its prefix.
-     * Important to handle PREPARE_FAILED and PREPARE correctly
-     * @param text  the script name
-     * @return      related phase. defaults to INSTALLED
-     */
-    private Phase getPhaseFromPrefix(String text) {
-        String scriptName = text.toLowerCase();
-        Phase phase = Phase.INSTALLED;
-        for (int i = phases.length - 1; i >= 0; i--) {
-            if (StringUtils.startsWithIgnoreCase(scriptName, phases[i].name())) {
-                phase = phases[i];
-                break;
-            }
-        }
-        return phase;
-    }
-
     /**
      * Executes the sling pipe
      * @param pipePath    the path a package definition to execute
+     * @throws RepositoryException if partitions of a partitioned pipe failed
      */
-    public void runScript(String pipePath) {
+    public void runScript(String pipePath) throws RepositoryException {
 
         info("I", "Running sling pipe at " + Text.getName(pipePath), ctx);
-        Plumber plumber = getService(Plumber.class);
+        Plumber plumber = getService(ctx, Plumber.class);
         ResourceResolver resourceResolver = getResourceResolver();
         Resource resource = resourceResolver.getResource(pipePath);
-        if (resource != null) {
+        if (resource != null && PARTITION_CHILDREN.equals(resource.adaptTo(ValueMap.class).get(PN_PARTITION, String.class))) {
+            runPartitioned(resource);
+        } else if (resource != null) {
             Pipe pipe = plumber.getPipe(resource);
             if (pipe.isDryRun()) {
                 info("I", "Executing dry run of " + Text.getName(pipePath), ctx);
@@ -103,15 +132,32 @@ public class SlingPipesHandler extends UpgradeHandlerBase {
                 info("I", "Executing " + Text.getName(pipePath), ctx);
             }
 
+            if (upgradeInfo.getConfig().get(PN_ESTIMATE_PROGRESS, false) && !pipe.isDryRun()) {
+                estimateProgress(estimate(plumber, resource));
+            }
+
             final Iterator<Resource> output = pipe.getOutput();
 
-            while (output.hasNext()) {
+            boolean save = pipe.modifiesContent() && !pipe.isDryRun();
+            UpgradeEvents.Event batch = UpgradeEvents.begin(UpgradeEvents.Type.PIPE_BATCH);
+            long batchCount = 0;
+            while (!isCancelled() && output.hasNext()) {
                 Resource r = output.next();
                 // output affected resource path for information
                 info("I", r.getPath(), ctx);
+                if (save) {
+                    guardTransientSpace();
+                }
+                reportProgress(1);
+                if (++batchCount >= SAVE_THRESHOLD) {
+                    batch.set("path", pipePath).set("nodes", batchCount).commit();
+                    batch = UpgradeEvents.begin(UpgradeEvents.Type.PIPE_BATCH);
+                    batchCount = 0;
+                }
             }
+            batch.set("path", pipePath).set("nodes", batchCount).commit();
 
-            if (pipe.modifiesContent() && !pipe.isDryRun()) {
+            if (pipe.modifiesContent() && !pipe.isDryRun() && !isCancelled()) {
                 try {
                     resourceResolver.commit();
                 } catch (PersistenceException e) {
@@ -121,6 +167,111 @@ public class SlingPipesHandler extends UpgradeHandlerBase {
         }
     }
 
+    /**
+     * Executes the sling pipe once per child of its root path. The partitions are processed in parallel, each worker
+     * uses its own session and commits after every partition. The root resource itself is not part of any partition.
+     * Partitions which completed stay committed if others fail.
+     * @param pipeResource the pipe definition
+     * @throws RepositoryException if any partition failed
+     */
+    private void runPartitioned(Resource pipeResource) throws RepositoryException {
+
+        String pipeName = Text.getName(pipeResource.getPath());
+        ValueMap properties = pipeResource.adaptTo(ValueMap.class);
+        String rootPath = properties.get(PN_PATH, String.class);
+        Resource root = rootPath != null ? pipeResource.getResourceResolver().getResource(rootPath) : null;
+        if (root == null) {
+            warn("E", "Can't partition sling pipe " + pipeName + ", root path " + rootPath + " not found", ctx);
+            return;
+        }
+
+        Queue<String> partitions = new ConcurrentLinkedQueue<>();
+        for (Resource child : root.getChildren()) {
+            partitions.add(child.getPath());
+        }
+        int threads = Math.min(properties.get(PN_PARTITION_THREADS, Runtime.getRuntime().availableProcessors()), partitions.size());
+        if (threads < 1) {
+            info("I", "No partitions found below " + rootPath, ctx);
+            return;
+        }
+        info("I", "Executing " + pipeName + " on " + partitions.size() + " partitions with " + threads + " threads", ctx);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<PartitionResult>>> futures = new ArrayList<>();
+        String error = null;
+        try {
+            for (int i = 0; i < threads; i++) {
+                // sessions are opened here as the install session must not be used by the workers
+                futures.add(executor.submit(new PartitionWorker(Util.openWorkerSession(getSession()), pipeName, pipeResource.getPath(), partitions)));
+            }
+        } catch (RepositoryException e) {
+            partitions.clear();
+            error = "Can't open worker session for sling pipe " + pipeName + ". " + e.getMessage();
+            warn("E", error, ctx);
+        } finally {
+            executor.shutdown();
+        }
+
+        // aggregate progress, measurements and errors into the log of the install thread
+        long count = 0;
+        int failures = 0;
+        for (Future<List<PartitionResult>> future : futures) {
+            try {
+                for (PartitionResult result : future.get()) {
+                    addMeasurement(result.measurement);
+                    if (result.error == null) {
+                        count += result.count;
+                        info("I", result.path + ": " + result.count + " resources", ctx);
+                    } else {
+                        failures++;
+                        error = "Exception running sling pipe " + pipeName + " on " + result.path + ". " + result.error;
+                        warn("E", error, ctx);
+                    }
+                }
+            } catch (ExecutionException e) {
+                failures++;
+                error = "Exception running sling pipe " + pipeName + ". " + e.getCause().getMessage();
+                warn("E", error, ctx);
+            } catch (InterruptedException e) {
+                // stop waiting, the workers stop at their next cancellation check
+                cancel("Interrupted while running sling pipe " + pipeName);
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("Interrupted while running sling pipe " + pipeName, e);
+            }
+        }
+        info("I", pipeName + " finished with " + count + " resources, " + failures + " failed partitions", ctx);
+        checkCancelled();
+        if (error != null) {
+            throw new RepositoryException(pipeName + " failed on " + Math.max(failures, 1) + " partition(s), last error: " + error);
+        }
+    }
+
+    /**
+     * Count the output of a dry run of the pipe, for the ETA of the progress MBean. Costs about as much reading as
+     * the pipe itself, hence only done if the upgrade info sets estimateProgress.
+     * @param plumber   The plumber.
+     * @param resource  The pipe definition.
+     * @return The count of output resources, -1 if the dry run failed.
+     */
+    private long estimate(Plumber plumber, Resource resource) {
+        long start = System.currentTimeMillis();
+        long count = 0;
+        try {
+            Pipe dryRun = plumber.getPipe(new OverlayResource(resource, Collections.<String, Object>singletonMap(PN_DRY_RUN, true)));
+            for (Iterator<Resource> output = dryRun.getOutput(); !isCancelled() && output.hasNext(); output.next()) {
+                count++;
+            }
+        } catch (Exception e) {
+            warn("W", "Dry run of " + Text.getName(resource.getPath()) + " failed, no estimate. " + e.getMessage(), ctx);
+            return -1;
+        } finally {
+            // a dry run must not change anything, revert in case a sub pipe did not honour it
+            resource.getResourceResolver().revert();
+        }
+        info("I", "Estimated " + count + " resources in " + (System.currentTimeMillis() - start) + "ms", ctx);
+        return count;
+    }
+
     public static boolean isAvailable() {
         try {
             SlingPipesHandler.class.getClassLoader().loadClass("org.apache.sling.pipes.Plumber");
@@ -130,4 +281,85 @@ public class SlingPipesHandler extends UpgradeHandlerBase {
         }
     }
 
+    private static class PartitionResult {
+        private final String path;
+        private long count;
+        private String error;
+        private Measurement measurement;
+
+        private PartitionResult(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Takes partitions from the shared queue until it is empty or the handler is cancelled, and runs the pipe with its
+     * root path set to the partition. Each partition is measured and its transient space guarded.
+     */
+    private class PartitionWorker implements Callable<List<PartitionResult>> {
+
+        private final Session session;
+        private final String pipeName;
+        private final String pipePath;
+        private final Queue<String> partitions;
+
+        private PartitionWorker(Session session, String pipeName, String pipePath, Queue<String> partitions) {
+            this.session = session;
+            this.pipeName = pipeName;
+            this.pipePath = pipePath;
+            this.partitions = partitions;
+        }
+
+        @Override
+        public List<PartitionResult> call() throws Exception {
+            List<PartitionResult> results = new ArrayList<>();
+            ResourceResolver resourceResolver = null;
+            try {
+                resourceResolver = Util.getResourceResolver(ctx, session);
+                Resource pipeResource = resourceResolver.getResource(pipePath);
+                Plumber plumber = getService(ctx, Plumber.class);
+                TransientSpaceGuard guard = createTransientSpaceGuard();
+                String partition;
+                while (!isCancelled() && (partition = partitions.poll()) != null) {
+                    PartitionResult result = new PartitionResult(partition);
+                    results.add(result);
+                    result.measurement = Measurement.start(pipeName + "@" + Text.getName(partition));
+                    UpgradeEvents.Event batch = UpgradeEvents.begin(UpgradeEvents.Type.PIPE_BATCH);
+                    try {
+                        Pipe pipe = plumber.getPipe(new OverlayResource(pipeResource, Collections.<String, Object>singletonMap(PN_PATH, partition)));
+                        boolean save = pipe.modifiesContent() && !pipe.isDryRun();
+                        Iterator<Resource> output = pipe.getOutput();
+                        while (!isCancelled() && output.hasNext()) {
+                            output.next();
+                            result.count++;
+                            reportProgress(1);
+                            if (save) {
+                                guardTransientSpace(guard, session);
+                            }
+                        }
+                        batch.set("path", pipePath + "@" + partition).set("nodes", result.count).commit();
+                        if (isCancelled()) {
+                            resourceResolver.revert();
+                            result.error = "cancelled";
+                        } else if (save) {
+                            resourceResolver.commit();
+                            guard.markSaved();
+                        }
+                    } catch (Exception e) {
+                        result.error = e.getMessage();
+                        resourceResolver.revert();
+                    } finally {
+                        result.measurement.stop();
+                    }
+                }
+            } finally {
+                if (resourceResolver != null) {
+                    resourceResolver.close();
+                }
+                session.logout();
+            }
+            return results;
+        }
+    }
+
 }
@@ -0,0 +1,22 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Thrown by {@link UpgradeHandlerBase#checkCancelled()} once a handler has been cancelled, e.g. because it exceeded
+ * its time budget.
+ */
+public class UpgradeCancelledException extends RepositoryException {
+
+    public UpgradeCancelledException(String message) {
+        super(message);
+    }
+}
@@ -9,24 +9,45 @@
 package biz.netcentric.vlt.upgrade.handler;
 
 import static biz.netcentric.vlt.upgrade.util.LogUtil.info;
+import static biz.netcentric.vlt.upgrade.util.LogUtil.warn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.InstallContext.Phase;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 
 import biz.netcentric.vlt.upgrade.UpgradeInfo;
+import biz.netcentric.vlt.upgrade.util.Measurement;
+import biz.netcentric.vlt.upgrade.util.PagedQuery;
+import biz.netcentric.vlt.upgrade.util.StackSampler;
+import biz.netcentric.vlt.upgrade.util.TransientSpaceGuard;
+import biz.netcentric.vlt.upgrade.util.UpgradeEvents;
+import biz.netcentric.vlt.upgrade.util.UpgradeProgress;
 import biz.netcentric.vlt.upgrade.util.Util;
+import biz.netcentric.vlt.upgrade.util.Watchdog;
 
 public abstract class UpgradeHandlerBase {
 
     public static final long SAVE_THRESHOLD = 1000;
 
+    private static final Phase[] phases = Phase.values();
+
     protected InstallContext ctx;
     protected UpgradeInfo upgradeInfo;
-    private Session session;
-
+    private volatile String cancelReason;
+    private TransientSpaceGuard transientSpaceGuard;
+    private final List<Measurement> measurements = new ArrayList<>();
+    private final Map<Measurement, StackSampler> profilers = new HashMap<>();
+    private long profileInterval;
 
 	// ----< lifecycle >--------------------------------------------------------
 
@@ -73,16 +94,50 @@ public abstract class UpgradeHandlerBase {
 	}
 
 
+    /**
+     * returns the correct Phase for a script name by its prefix.
+     * Important to handle PREPARE_FAILED and PREPARE correctly
+     * @param text  the script name
+     * @return      related phase. defaults to INSTALLED
+     */
+    public static Phase getPhaseFromPrefix(String text) {
+        String scriptName = text.toLowerCase();
+        Phase phase = Phase.INSTALLED;
+        for (int i = phases.length - 1; i >= 0; i--) {
+            if (StringUtils.startsWithIgnoreCase(scriptName, phases[i].name())) {
+                phase = phases[i];
+                break;
+            }
+        }
+        return phase;
+    }
+
     // ----< saving >--------------------------------------------------------
 
     /**
      * Save the JCR session.
      */
     public void save() {
+        save(getSession(), transientSpaceGuard, -1);
+    }
+
+    /**
+     * Save a JCR session, recorded as Flight Recorder event.
+     * @param session The session to save.
+     * @param guard   The transient space guard of the session, null if none.
+     * @param changes The approximate count of changes, -1 if unknown.
+     */
+    private void save(Session session, TransientSpaceGuard guard, long changes) {
+        UpgradeEvents.Event event = UpgradeEvents.begin(UpgradeEvents.Type.SAVE);
         try {
             session.save();
+            if (guard != null) {
+                guard.markSaved();
+            }
         } catch (RepositoryException e) {
             info("E", "Failed to save changes." ,ctx);
+        } finally {
+            event.set("info", upgradeInfo.getName()).set("changes", changes).commit();
         }
     }
 
@@ -95,13 +150,246 @@ public abstract class UpgradeHandlerBase {
         long returnCount = count;
         if(count >= UpgradeHandlerBase.SAVE_THRESHOLD) {
             info("", "Saving approx " + count + " nodes." ,ctx);
-            save();
+            save(getSession(), transientSpaceGuard, count);
+            returnCount = 0;
+        } else if (guardTransientSpace()) {
             returnCount = 0;
         }
 
         return returnCount;
     }
 
+    /**
+     * Protect the heap from a growing transient space: saves the pending changes once the live heap exceeds the save
+     * threshold of the upgrade info, and cancels the handler if the abort threshold is exceeded even though there is
+     * nothing left to save or the heap has been collected since the last save. Cheap enough to be called per node, the
+     * heap is sampled at most every 100ms.
+     * @return true if the pending changes were saved.
+     */
+    public boolean guardTransientSpace() {
+        return guardTransientSpace(getTransientSpaceGuard(), getSession());
+    }
+
+    /**
+     * Protect the heap from the transient space of another session, e.g. of a worker thread, see
+     * {@link #guardTransientSpace()}.
+     * @param guard     The guard of the session, created by {@link #createTransientSpaceGuard()}.
+     * @param session   The session.
+     * @return true if the pending changes were saved.
+     */
+    protected boolean guardTransientSpace(TransientSpaceGuard guard, Session session) {
+        if (!guard.sample()) {
+            return false;
+        }
+        if (!guard.isCollectedSinceSave()) {
+            // the sample still shows the heap from before the last save
+            return false;
+        }
+        boolean saved = false;
+        try {
+            if (guard.isSaveRequired() && session.hasPendingChanges() && !(guard.isSavedOnLastSample() && guard.isExhausted())) {
+                info("", "Heap usage at " + guard.getHeapUsage() + "%, saving pending changes.", ctx);
+                save(session, guard, -1);
+                saved = true;
+            } else if (guard.isExhausted()) {
+                cancel("Heap usage at " + guard.getHeapUsage() + "% exceeds the limit of " + upgradeInfo.getHeapAbortThreshold() + "%");
+            }
+        } catch (RepositoryException e) {
+            warn("E", "Failed to check pending changes. " + e.getMessage(), ctx);
+        }
+        guard.setSavedOnLastSample(saved);
+        return saved;
+    }
+
+    /**
+     * Visit the nodes found by a query page by page, with {@link #saveOnThreshold(long)} called after each page. The
+     * result is streamed by a background thread, so memory stays bounded for result sets of any size.
+     * @param language  The query language, e.g. {@link javax.jcr.query.Query#JCR_SQL2}.
+     * @param statement The query statement.
+     * @param visitor   Called for each hit which still exists.
+     * @return The number of visited nodes.
+     * @throws RepositoryException if the query or the visitor failed
+     */
+    public long forEachQueryResult(String language, String statement, PagedQuery.Visitor visitor) throws RepositoryException {
+        PagedQuery query = new PagedQuery(getSession(), language, statement, PagedQuery.DEFAULT_PAGE_SIZE);
+        long count = 0;
+        long changes = 0;
+        try {
+            for (List<String> page = query.nextPage(); page != null; page = query.nextPage()) {
+                checkCancelled();
+                for (String path : page) {
+                    if (getSession().nodeExists(path)) {
+                        visitor.visit(getSession().getNode(path));
+                        count++;
+                        changes++;
+                    }
+                }
+                reportProgress(page.size());
+                changes = saveOnThreshold(changes);
+            }
+        } catch (InterruptedException e) {
+            checkCancelled();
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting for the results of " + statement, e);
+        } catch (RepositoryException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RepositoryException("Failed to process the results of " + statement, e);
+        } finally {
+            query.close();
+        }
+        info("", "Processed " + count + " results of " + statement, ctx);
+        return count;
+    }
+
+    private TransientSpaceGuard getTransientSpaceGuard() {
+        if (transientSpaceGuard == null) {
+            transientSpaceGuard = createTransientSpaceGuard();
+        }
+        return transientSpaceGuard;
+    }
+
+    /**
+     * @return A new guard with the thresholds of the upgrade info, for a session used by one thread.
+     */
+    protected TransientSpaceGuard createTransientSpaceGuard() {
+        return new TransientSpaceGuard(upgradeInfo.getHeapSaveThreshold(), upgradeInfo.getHeapAbortThreshold());
+    }
+
+    // ----< cancellation >--------------------------------------------------------
+
+    /**
+     * Cancel this handler. The handler stops at the next call of {@link #checkCancelled()}.
+     * @param reason The reason, reported in the failure.
+     */
+    public void cancel(String reason) {
+        this.cancelReason = reason;
+    }
+
+    /**
+     * Clear a previous cancellation, the handler is reused for all phases of an install.
+     */
+    public void resetCancellation() {
+        this.cancelReason = null;
+    }
+
+    public boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    /**
+     * Cooperative cancellation check, to be called regularly by long running handlers and scripts, e.g. via
+     * {@code handler.checkCancelled()} in a loop of a Groovy script.
+     * @throws UpgradeCancelledException if the handler has been cancelled
+     */
+    public void checkCancelled() throws UpgradeCancelledException {
+        if (cancelReason != null) {
+            throw new UpgradeCancelledException(cancelReason);
+        }
+    }
+
+    /**
+     * Start a watchdog enforcing the script time budget of the upgrade info.
+     * @param scriptName The name of the script.
+     * @return The watchdog, to be stopped after the script ran.
+     */
+    protected Watchdog startScriptWatchdog(String scriptName) {
+        return Watchdog.start(this, scriptName, upgradeInfo.getScriptTimeout());
+    }
+
+    /**
+     * Begin the Flight Recorder event of a script, to be committed after the script ran.
+     * @param scriptPath The path of the script or pipe.
+     * @return The event.
+     */
+    protected UpgradeEvents.Event beginScriptEvent(String scriptPath) {
+        return UpgradeEvents.begin(UpgradeEvents.Type.SCRIPT)
+                .set("phase", ctx.getPhase().name())
+                .set("info", upgradeInfo.getName())
+                .set("path", scriptPath);
+    }
+
+    // ----< measurements >--------------------------------------------------------
+
+    /**
+     * Start measuring a script, pipe or other step of this handler on the current thread, and sample its stack if
+     * profiling is enabled.
+     * @param name The name of the step.
+     * @return The measurement, to be recorded by {@link #recordMeasurement(Measurement)}.
+     */
+    protected Measurement startMeasurement(String name) {
+        Measurement measurement = Measurement.start(name);
+        if (profileInterval > 0) {
+            profilers.put(measurement, StackSampler.start(profileInterval));
+        }
+        return measurement;
+    }
+
+    /**
+     * Stop and record the measurement of a script, pipe or other step of this handler.
+     * @param measurement The started measurement.
+     */
+    protected void recordMeasurement(Measurement measurement) {
+        measurement.stop();
+        StackSampler profiler = profilers.remove(measurement);
+        if (profiler != null) {
+            measurement.setProfile(profiler.stop());
+            info("I", "Profiled " + measurement.getName() + " with " + profiler.getSamples() + " samples", ctx);
+        }
+        addMeasurement(measurement);
+    }
+
+    /**
+     * Record the measurement of a step which ran on another thread, e.g. a partition of a pipe. Has to be called by
+     * the thread executing the handler.
+     * @param measurement The measurement, stopped by the thread which started it.
+     */
+    protected void addMeasurement(Measurement measurement) {
+        measurements.add(measurement);
+        info("I", measurement.toString(), ctx);
+    }
+
+    /**
+     * Enable sampling the stacks of the scripts and pipes of this handler.
+     * @param profileInterval The sampling interval in ms, 0 to disable profiling.
+     */
+    public void setProfileInterval(long profileInterval) {
+        this.profileInterval = profileInterval;
+    }
+
+    /**
+     * @return The measurements of the steps this handler ran during the install.
+     */
+    public List<Measurement> getMeasurements() {
+        return measurements;
+    }
+
+    // ----< progress >--------------------------------------------------------
+
+    /**
+     * Report processed items to the {@link UpgradeProgress} MBean, e.g. from scripts via the {@code handler} binding.
+     * @param count The count of items processed since the last report.
+     */
+    public void reportProgress(long count) {
+        getProgress().addProcessedItems(count);
+    }
+
+    /**
+     * Report the estimated total of items of the running script to the {@link UpgradeProgress} MBean.
+     * @param estimatedItems The estimated count, -1 if unknown.
+     */
+    public void estimateProgress(long estimatedItems) {
+        getProgress().setEstimatedItems(estimatedItems);
+    }
+
+    /**
+     * @return The progress of the upgrade info of this handler, tracked by the {@link UpgradeProgress} MBean of the
+     * install or of the deferred upgrades.
+     */
+    protected UpgradeProgress.Info getProgress() {
+        return UpgradeProgress.get(ctx).getInfo(upgradeInfo.getPath());
+    }
+
     // ----< accessors >--------------------------------------------------------
 
     public void setUpgradeInfo(UpgradeInfo upgradeInfo) {
@@ -112,15 +400,22 @@ public abstract class UpgradeHandlerBase {
         return ctx;
     }
 
+    /**
+     * @return The session of the current execution, a worker session if upgrade infos run concurrently.
+     */
     protected Session getSession() {
-        if(session == null) {
-            session = ctx.getSession();
-        }
-        return session;
+        return ctx.getSession();
     }
 
     protected ResourceResolver getResourceResolver() {
         return Util.getResourceResolver(ctx);
     }
 
+    /**
+     * @return The resource of the upgrade info, resolved with the session of the current execution.
+     */
+    protected Resource getConfigResource() {
+        return getResourceResolver().getResource(upgradeInfo.getPath());
+    }
+
 }
@@ -0,0 +1,40 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler;
+
+import org.apache.jackrabbit.vault.packaging.PackageException;
+
+import biz.netcentric.vlt.upgrade.UpgradeInfo;
+
+/**
+ * Creates the handlers of one handler type, i.e. one value of the {@code handler} property of an upgrade info.
+ * Factories are registered via {@link java.util.ServiceLoader} in
+ * {@code META-INF/services/biz.netcentric.vlt.upgrade.handler.UpgradeHandlerFactory} or via
+ * {@link UpgradeHandlerRegistry#register(UpgradeHandlerFactory)}.
+ */
+public interface UpgradeHandlerFactory {
+
+    /**
+     * @return The handler type, matched case insensitive against the {@code handler} property.
+     */
+    String getType();
+
+    /**
+     * @return true if the handlers can be run in this environment, e.g. their service is installed.
+     */
+    boolean isAvailable();
+
+    /**
+     * Create the handler of an upgrade info. Called once per upgrade info and install.
+     * @param upgradeInfo   The upgrade info.
+     * @return The handler, never null.
+     * @throws PackageException if the handler can't be created
+     */
+    UpgradeHandlerBase create(UpgradeInfo upgradeInfo) throws PackageException;
+}
@@ -0,0 +1,203 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.netcentric.vlt.upgrade.UpgradeInfo;
+import biz.netcentric.vlt.upgrade.handler.bulk.BulkRewriteHandler;
+
+/**
+ * The handler factories of one install: the built-in ones, the ones found via {@link ServiceLoader} and the ones
+ * registered programmatically. Factories, their availability and custom handler classes are resolved once, so an
+ * install does not probe class loaders per upgrade info and phase.
+ */
+public class UpgradeHandlerRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(UpgradeHandlerRegistry.class);
+
+    private static final String PN_HANDLERCLASS = "handlerClass";
+
+    private static final Map<String, UpgradeHandlerFactory> REGISTERED = new ConcurrentHashMap<>();
+
+    private final Map<String, UpgradeHandlerFactory> factories = new LinkedHashMap<>();
+    private final Map<String, Boolean> availability = new HashMap<>();
+
+    /**
+     * Register a factory for all following installs, e.g. when running outside of a package install. Overrides
+     * factories of the same type.
+     * @param factory The factory.
+     */
+    public static void register(UpgradeHandlerFactory factory) {
+        REGISTERED.put(factory.getType().toLowerCase(), factory);
+    }
+
+    /**
+     * Resolve the factories visible to the given class loader.
+     * @param classLoader The class loader to look up {@link ServiceLoader} factories with.
+     */
+    public UpgradeHandlerRegistry(ClassLoader classLoader) {
+        add(new GroovyFactory());
+        add(new SlingPipesFactory());
+        add(new BulkFactory());
+        add(new CustomFactory(classLoader));
+        Iterator<UpgradeHandlerFactory> loaded = ServiceLoader.load(UpgradeHandlerFactory.class, classLoader).iterator();
+        while (true) {
+            try {
+                if (!loaded.hasNext()) {
+                    break;
+                }
+                add(loaded.next());
+            } catch (ServiceConfigurationError e) {
+                log.warn("Could not load upgrade handler factory", e);
+            }
+        }
+        for (UpgradeHandlerFactory factory : REGISTERED.values()) {
+            add(factory);
+        }
+    }
+
+    private void add(UpgradeHandlerFactory factory) {
+        factories.put(factory.getType().toLowerCase(), factory);
+    }
+
+    /**
+     * Create the handler of an upgrade info.
+     * @param upgradeInfo   The upgrade info.
+     * @return The handler, never null.
+     * @throws PackageException if there is no factory for the handler type, or its handlers are not available
+     */
+    public UpgradeHandlerBase createHandler(UpgradeInfo upgradeInfo) throws PackageException {
+        String type = upgradeInfo.getHandlerName();
+        UpgradeHandlerFactory factory = factories.get(type);
+        if (factory == null) {
+            throw new PackageException("Did not recognise upgrade handler of name '" + type + "' in " + upgradeInfo.getTitle()
+                    + ". Please use one of " + StringUtils.join(factories.keySet(), ", "));
+        }
+        Boolean available = availability.get(type);
+        if (available == null) {
+            available = factory.isAvailable();
+            availability.put(type, available);
+        }
+        if (!available) {
+            throw new PackageException("Could not find handler of type '" + type + "', do you have it installed?");
+        }
+        UpgradeHandlerBase handler = factory.create(upgradeInfo);
+        handler.setUpgradeInfo(upgradeInfo);
+        return handler;
+    }
+
+    // ----< built-in factories >-----------------------------------------------
+
+    private static class GroovyFactory implements UpgradeHandlerFactory {
+
+        @Override
+        public String getType() {
+            return UpgradeInfo.HandlerType.GROOVY.name();
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return GroovyConsoleHandler.isAvailable();
+        }
+
+        @Override
+        public UpgradeHandlerBase create(UpgradeInfo upgradeInfo) {
+            return new GroovyConsoleHandler();
+        }
+    }
+
+    private static class SlingPipesFactory implements UpgradeHandlerFactory {
+
+        @Override
+        public String getType() {
+            return UpgradeInfo.HandlerType.SLINGPIPES.name();
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return SlingPipesHandler.isAvailable();
+        }
+
+        @Override
+        public UpgradeHandlerBase create(UpgradeInfo upgradeInfo) {
+            return new SlingPipesHandler();
+        }
+    }
+
+    private static class BulkFactory implements UpgradeHandlerFactory {
+
+        @Override
+        public String getType() {
+            return UpgradeInfo.HandlerType.BULK.name();
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public UpgradeHandlerBase create(UpgradeInfo upgradeInfo) {
+            return new BulkRewriteHandler();
+        }
+    }
+
+    /**
+     * Instantiates the class given by the {@code handlerClass} property, loaded once per class name.
+     */
+    private static class CustomFactory implements UpgradeHandlerFactory {
+
+        private final ClassLoader classLoader;
+        private final Map<String, Class<? extends UpgradeHandlerBase>> classes = new HashMap<>();
+
+        CustomFactory(ClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        public String getType() {
+            return UpgradeInfo.HandlerType.CUSTOM.name();
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public UpgradeHandlerBase create(UpgradeInfo upgradeInfo) throws PackageException {
+            String handlerClass = upgradeInfo.getConfig().get(PN_HANDLERCLASS, String.class);
+            if (StringUtils.isBlank(handlerClass)) {
+                throw new PackageException("Custom upgrade handler, but no handlerClass specified in " + upgradeInfo.getTitle());
+            }
+            try {
+                Class<? extends UpgradeHandlerBase> clazz = classes.get(handlerClass);
+                if (clazz == null) {
+                    clazz = classLoader.loadClass(handlerClass).asSubclass(UpgradeHandlerBase.class);
+                    classes.put(handlerClass, clazz);
+                }
+                return clazz.newInstance();
+            } catch (ClassNotFoundException | ClassCastException | InstantiationException | IllegalAccessException e) {
+                throw new PackageException("Could not load custom handler: " + handlerClass, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler.bulk;
+
+import static biz.netcentric.vlt.upgrade.util.LogUtil.info;
+import static biz.netcentric.vlt.upgrade.util.LogUtil.warn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+
+import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerBase;
+import biz.netcentric.vlt.upgrade.util.Measurement;
+
+/**
+ * Runs declarative rewrite rules over the {@code defaultSearchPaths} of the upgrade info. The rules are the child
+ * nodes of the upgrade info with a {@code type} property, assigned to a phase by the prefix of their name like
+ * scripts. All rules of a phase are applied in a single traversal; changes are saved in batches.
+ * <p>
+ * With {@code backend="nodestore"} property rules are applied to the Oak node store directly, see
+ * {@link NodeStoreBulkBackend}. The handler falls back to JCR if the session is not an admin session, Oak is not
+ * available or a rule changes more than properties.
+ */
+public class BulkRewriteHandler extends UpgradeHandlerBase {
+
+    private static final String PN_BACKEND = "backend";
+    private static final String BACKEND_NODESTORE = "nodestore";
+
+    private long nodes;
+    private long changes;
+    private long pendingChanges;
+
+    @Override
+    public void execute(InstallContext ctx) throws RepositoryException {
+        this.ctx = ctx;
+
+        BulkRuleSet rules = new BulkRuleSet(getRules(ctx.getPhase()));
+        if (rules.isEmpty()) {
+            return;
+        }
+        if (upgradeInfo.getDefaultSearchPaths().isEmpty()) {
+            warn("W", "No defaultSearchPaths to apply " + rules.getRules() + " to", ctx);
+            return;
+        }
+
+        info("I", "Applying " + rules.getRules() + " to " + upgradeInfo.getDefaultSearchPaths(), ctx);
+        Measurement measurement = startMeasurement(ctx.getPhase().name().toLowerCase() + "-bulk-rules");
+        getProgress().startScript(upgradeInfo.getPath() + "/" + measurement.getName(), -1);
+        try {
+            applyRules(rules);
+        } finally {
+            recordMeasurement(measurement);
+        }
+    }
+
+    private void applyRules(BulkRuleSet rules) throws RepositoryException {
+        long start = System.currentTimeMillis();
+        nodes = 0;
+        changes = 0;
+        pendingChanges = 0;
+        Session session = getSession();
+        if (BACKEND_NODESTORE.equalsIgnoreCase(upgradeInfo.getConfig().get(PN_BACKEND, String.class))
+                && runOnNodeStore(rules, session)) {
+            info("I", "Applied " + changes + " changes to " + nodes + " nodes in the node store in " + (System.currentTimeMillis() - start) + "ms", ctx);
+            return;
+        }
+        for (String path : upgradeInfo.getDefaultSearchPaths()) {
+            if (session.nodeExists(path)) {
+                traverse(session.getNode(path), rules);
+            } else {
+                warn("W", "Search path " + path + " does not exist", ctx);
+            }
+        }
+        if (session.hasPendingChanges()) {
+            save();
+        }
+        info("I", "Applied " + changes + " changes to " + nodes + " nodes in " + (System.currentTimeMillis() - start) + "ms", ctx);
+    }
+
+    /**
+     * Apply the rules with the {@link NodeStoreBulkBackend}, if possible.
+     * @return false if the rules have to be applied via JCR
+     */
+    private boolean runOnNodeStore(BulkRuleSet rules, Session session) throws RepositoryException {
+        if (!rules.isPropertyRulesOnly()) {
+            info("I", "Using JCR, the node store backend only supports property rules", ctx);
+            return false;
+        }
+        if (!isAdmin(session)) {
+            info("I", "Using JCR, the node store backend requires an admin session", ctx);
+            return false;
+        }
+        if (!isOakAvailable()) {
+            info("I", "Using JCR, Oak is not available", ctx);
+            return false;
+        }
+        NodeStoreBulkBackend backend = NodeStoreBulkBackend.create(rules, this, SAVE_THRESHOLD);
+        if (backend == null) {
+            info("I", "Using JCR, no node store service found", ctx);
+            return false;
+        }
+        // the backend commits besides the session, pending changes would conflict
+        if (session.hasPendingChanges()) {
+            save();
+        }
+        try {
+            backend.run(upgradeInfo.getDefaultSearchPaths());
+        } catch (Exception e) {
+            throw new RepositoryException("Failed to apply " + rules.getRules() + " to the node store", e);
+        } finally {
+            nodes = backend.getNodes();
+            changes = backend.getChanges();
+            session.refresh(true);
+        }
+        checkCancelled();
+        return true;
+    }
+
+    private static boolean isAdmin(Session session) throws RepositoryException {
+        if (!(session instanceof JackrabbitSession)) {
+            return false;
+        }
+        Authorizable authorizable = ((JackrabbitSession) session).getUserManager().getAuthorizable(session.getUserID());
+        return authorizable != null && !authorizable.isGroup() && ((User) authorizable).isAdmin();
+    }
+
+    private static boolean isOakAvailable() {
+        try {
+            BulkRewriteHandler.class.getClassLoader().loadClass("org.apache.jackrabbit.oak.spi.state.NodeStore");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private void traverse(Node node, BulkRuleSet rules) throws RepositoryException {
+        checkCancelled();
+        int nodeChanges = rules.apply(node);
+        nodes++;
+        reportProgress(1);
+        changes += nodeChanges;
+        pendingChanges = saveOnThreshold(pendingChanges + nodeChanges);
+
+        // children are listed after the rules ran, so moved subtrees are traversed at their new location
+        for (NodeIterator children = node.getNodes(); children.hasNext(); ) {
+            Node child = children.nextNode();
+            // versions, node types and other system content, unless a search path points into it
+            if (node.getDepth() > 0 || !JcrConstants.JCR_SYSTEM.equals(child.getName())) {
+                traverse(child, rules);
+            }
+        }
+    }
+
+    /**
+     * Read the rules of a phase, sorted by name.
+     * @param phase The phase.
+     * @return The rules.
+     * @throws RepositoryException if a rule is invalid
+     */
+    List<BulkRule> getRules(InstallContext.Phase phase) throws RepositoryException {
+        List<Resource> definitions = new ArrayList<>();
+        for (Resource child : getConfigResource().getChildren()) {
+            ValueMap properties = child.adaptTo(ValueMap.class);
+            if (properties.containsKey(BulkRule.PN_TYPE) && getPhaseFromPrefix(child.getName()) == phase) {
+                definitions.add(child);
+            }
+        }
+        Collections.sort(definitions, new Comparator<Resource>() {
+            @Override
+            public int compare(Resource a, Resource b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        List<BulkRule> rules = new ArrayList<>();
+        for (Resource definition : definitions) {
+            rules.add(BulkRule.create(definition.getName(), definition.adaptTo(ValueMap.class)));
+        }
+        return rules;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler.bulk;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * A rewrite rule of the bulk handler, defined by a child node of the upgrade info with a {@code type} property.
+ * Rules may be restricted to nodes of a resource type ({@code filterResourceType}) and primary type
+ * ({@code filterPrimaryType}).
+ */
+public abstract class BulkRule {
+
+    static final String PN_TYPE = "type";
+    static final String PN_FILTER_RESOURCE_TYPE = "filterResourceType";
+    static final String PN_FILTER_PRIMARY_TYPE = "filterPrimaryType";
+    static final String PN_PROPERTY = "property";
+    static final String PN_FROM = "from";
+    static final String PN_TO = "to";
+    static final String PN_MAPPING = "mapping";
+
+    private final String name;
+    private final String resourceType;
+    private final String primaryType;
+
+    protected BulkRule(String name, ValueMap config) {
+        this.name = name;
+        this.resourceType = config.get(PN_FILTER_RESOURCE_TYPE, String.class);
+        this.primaryType = config.get(PN_FILTER_PRIMARY_TYPE, String.class);
+    }
+
+    /**
+     * Create a rule from its definition.
+     * @param name      The name of the rule.
+     * @param config    The properties of the rule.
+     * @return The rule.
+     * @throws RepositoryException if the type is unknown or a mandatory property is missing
+     */
+    public static BulkRule create(String name, ValueMap config) throws RepositoryException {
+        String type = config.get(PN_TYPE, "");
+        switch (type.toLowerCase()) {
+            case "rename":
+                return new RenamePropertyRule(name, config);
+            case "map":
+                return new MapValueRule(name, config);
+            case "resourcetype":
+                return new ResourceTypeRule(name, config);
+            case "move":
+                return new MoveRule(name, config);
+            default:
+                throw new RepositoryException("Unknown type '" + type + "' of bulk rule " + name + ". Please use rename, map, resourceType or move");
+        }
+    }
+
+    static String getMandatory(String name, ValueMap config, String property) throws RepositoryException {
+        String value = config.get(property, String.class);
+        if (value == null) {
+            throw new RepositoryException("Bulk rule " + name + " requires the property " + property);
+        }
+        return value;
+    }
+
+    /**
+     * @return The resource type a node must have, null to match all nodes.
+     */
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    /**
+     * @param node  The node.
+     * @return true if the node has the primary type this rule is restricted to, if any.
+     * @throws RepositoryException
+     */
+    boolean matchesPrimaryType(Node node) throws RepositoryException {
+        return primaryType == null || primaryType.equals(node.getPrimaryNodeType().getName());
+    }
+
+    /**
+     * @param nodePrimaryType   The primary type of a node.
+     * @return true if the node has the primary type this rule is restricted to, if any.
+     */
+    boolean matchesPrimaryType(String nodePrimaryType) {
+        return primaryType == null || primaryType.equals(nodePrimaryType);
+    }
+
+    /**
+     * @return true if the rule only changes properties of the matching node, and so can be run by the
+     * {@link NodeStoreBulkBackend}.
+     */
+    boolean isPropertyRule() {
+        return true;
+    }
+
+    /**
+     * Apply the rule to a node matching its filters.
+     * @param node  The node.
+     * @return The number of changes.
+     * @throws RepositoryException
+     */
+    public abstract int apply(Node node) throws RepositoryException;
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + name;
+    }
+}
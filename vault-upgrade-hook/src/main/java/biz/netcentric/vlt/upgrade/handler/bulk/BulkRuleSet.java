@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler.bulk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+/**
+ * The rules of one phase, indexed by the resource type they are restricted to. Per node the resource type is read
+ * once and only the rules for it and the unrestricted rules are applied, in the order they are defined in. Once a
+ * {@link ResourceTypeRule} changed the resource type, the rules defined after it are those of the new resource type.
+ */
+public class BulkRuleSet {
+
+    private final List<BulkRule> rules;
+    /**
+     * Per resource type the rules restricted to it merged with the unrestricted ones, in definition order.
+     */
+    private final Map<String, List<BulkRule>> byResourceType = new HashMap<>();
+    private final List<BulkRule> unrestricted = new ArrayList<>();
+    private final Map<BulkRule, Integer> positions = new HashMap<>();
+
+    public BulkRuleSet(List<BulkRule> rules) {
+        this.rules = rules;
+        for (BulkRule rule : rules) {
+            positions.put(rule, positions.size());
+            if (rule.getResourceType() == null) {
+                unrestricted.add(rule);
+                for (List<BulkRule> list : byResourceType.values()) {
+                    list.add(rule);
+                }
+            } else {
+                List<BulkRule> list = byResourceType.get(rule.getResourceType());
+                if (list == null) {
+                    list = new ArrayList<>(unrestricted);
+                    byResourceType.put(rule.getResourceType(), list);
+                }
+                list.add(rule);
+            }
+        }
+    }
+
+    /**
+     * Apply the matching rules to a node.
+     * @param node  The node.
+     * @return The number of changes.
+     * @throws RepositoryException
+     */
+    public int apply(Node node) throws RepositoryException {
+        String resourceType = null;
+        if (hasResourceTypeRules() && node.hasProperty(ResourceTypeRule.PN_RESOURCE_TYPE)) {
+            Property property = node.getProperty(ResourceTypeRule.PN_RESOURCE_TYPE);
+            resourceType = property.isMultiple() ? null : property.getString();
+        }
+        return apply(node, getRules(resourceType));
+    }
+
+    boolean hasResourceTypeRules() {
+        return !byResourceType.isEmpty();
+    }
+
+    /**
+     * @param resourceType  The resource type of a node, or null if it has none.
+     * @return The rules to apply to a node of the resource type, in definition order.
+     */
+    List<BulkRule> getRules(String resourceType) {
+        List<BulkRule> matching = resourceType != null ? byResourceType.get(resourceType) : null;
+        return matching != null ? matching : unrestricted;
+    }
+
+    /**
+     * @param rule          The resource type rule which was applied to a node.
+     * @param resourceType  The resource type the rule set.
+     * @return The rules of the new resource type defined after the rule, to be applied to the node next.
+     */
+    List<BulkRule> getRulesAfter(BulkRule rule, String resourceType) {
+        List<BulkRule> matching = getRules(resourceType);
+        int position = positions.get(rule);
+        for (int i = 0; i < matching.size(); i++) {
+            if (positions.get(matching.get(i)) > position) {
+                return matching.subList(i, matching.size());
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return true if all rules can be run by the {@link NodeStoreBulkBackend}.
+     */
+    boolean isPropertyRulesOnly() {
+        for (BulkRule rule : rules) {
+            if (!rule.isPropertyRule()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int apply(Node node, List<BulkRule> matching) throws RepositoryException {
+        int changes = 0;
+        for (int i = 0; i < matching.size(); i++) {
+            BulkRule rule = matching.get(i);
+            if (rule.matchesPrimaryType(node)) {
+                changes += rule.apply(node);
+                if (rule instanceof ResourceTypeRule) {
+                    matching = getRulesAfter(rule, ((ResourceTypeRule) rule).getTo());
+                    i = -1;
+                }
+            }
+        }
+        return changes;
+    }
+
+    public List<BulkRule> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler.bulk;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * Maps the string values of {@code property} according to {@code mapping}, a multi-value property of
+ * {@code old=new} entries. Values without a mapping are kept; multi-value properties are mapped value by value.
+ * Only text based properties are mapped, the type of the property is kept.
+ */
+public class MapValueRule extends BulkRule {
+
+    private final String property;
+    private final Map<String, String> mapping = new HashMap<>();
+
+    public MapValueRule(String name, ValueMap config) throws RepositoryException {
+        super(name, config);
+        this.property = getMandatory(name, config, PN_PROPERTY);
+        for (String entry : config.get(PN_MAPPING, ArrayUtils.EMPTY_STRING_ARRAY)) {
+            if (!entry.contains("=")) {
+                throw new RepositoryException("Bulk rule " + name + " has a mapping without '=': " + entry);
+            }
+            mapping.put(StringUtils.substringBefore(entry, "="), StringUtils.substringAfter(entry, "="));
+        }
+    }
+
+    @Override
+    public int apply(Node node) throws RepositoryException {
+        if (!node.hasProperty(property)) {
+            return 0;
+        }
+        Property source = node.getProperty(property);
+        if (!isText(source.getType())) {
+            return 0;
+        }
+        if (!source.isMultiple()) {
+            String mapped = mapping.get(source.getString());
+            if (mapped == null) {
+                return 0;
+            }
+            source.setValue(mapped);
+            return 1;
+        }
+        String[] values = null;
+        Value[] sourceValues = source.getValues();
+        for (int i = 0; i < sourceValues.length; i++) {
+            String mapped = mapping.get(sourceValues[i].getString());
+            if (mapped != null) {
+                if (values == null) {
+                    // only copy the values once one of them changes
+                    values = new String[sourceValues.length];
+                    for (int j = 0; j < sourceValues.length; j++) {
+                        values[j] = sourceValues[j].getString();
+                    }
+                }
+                values[i] = mapped;
+            }
+        }
+        if (values == null) {
+            return 0;
+        }
+        source.setValue(values);
+        return 1;
+    }
+
+    /**
+     * @param type  A {@link PropertyType}.
+     * @return true if values of the type are represented as text, e.g. strings, names or paths.
+     */
+    static boolean isText(int type) {
+        switch (type) {
+            case PropertyType.LONG:
+            case PropertyType.DOUBLE:
+            case PropertyType.DECIMAL:
+            case PropertyType.BOOLEAN:
+            case PropertyType.BINARY:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    String getProperty() {
+        return property;
+    }
+
+    /**
+     * @param value The value.
+     * @return The mapped value, or null if there is no mapping.
+     */
+    String map(String value) {
+        return mapping.get(value);
+    }
+}
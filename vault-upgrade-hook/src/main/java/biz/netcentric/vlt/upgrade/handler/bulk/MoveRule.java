@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler.bulk;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * Moves the subtree at the relative path {@code from} to the relative path {@code to}, both relative to the
+ * matching node. Nothing is moved if the target exists already; the parent of the target has to exist.
+ */
+public class MoveRule extends BulkRule {
+
+    private final String from;
+    private final String to;
+
+    public MoveRule(String name, ValueMap config) throws RepositoryException {
+        super(name, config);
+        this.from = getMandatory(name, config, PN_FROM);
+        this.to = getMandatory(name, config, PN_TO);
+        if (from.startsWith("/") || to.startsWith("/")) {
+            throw new RepositoryException("Bulk rule " + name + " requires relative paths");
+        }
+    }
+
+    @Override
+    boolean isPropertyRule() {
+        return false;
+    }
+
+    @Override
+    public int apply(Node node) throws RepositoryException {
+        if (!node.hasNode(from) || node.hasNode(to)) {
+            return 0;
+        }
+        node.getSession().move(node.getPath() + "/" + from, node.getPath() + "/" + to);
+        return 1;
+    }
+}
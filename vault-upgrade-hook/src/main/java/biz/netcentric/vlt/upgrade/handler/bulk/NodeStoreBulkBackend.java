@@ -0,0 +1,260 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler.bulk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.plugins.index.CompositeIndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.IndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.IndexUpdateProvider;
+import org.apache.jackrabbit.oak.plugins.memory.PropertyStates;
+import org.apache.jackrabbit.oak.spi.commit.CommitHook;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.EditorHook;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+import biz.netcentric.vlt.upgrade.util.Util;
+
+/**
+ * Applies property rules directly to the Oak {@link NodeStore}, bypassing the JCR session: no item states, no access
+ * control evaluation and no transient space, one commit per batch. The commits run the synchronous index editors;
+ * other commit hooks of the repository, e.g. type validation or observation, are not run, which is why only rules
+ * changing properties of existing nodes are supported, and only for admin sessions.
+ * <p>
+ * Only loaded once {@link BulkRewriteHandler} made sure Oak is visible to the hook.
+ */
+class NodeStoreBulkBackend {
+
+    /**
+     * Maintained by the validators the commits don't run, so rules must not touch them.
+     */
+    private static final Set<String> SYSTEM_PROPERTIES = new HashSet<>(Arrays.asList(
+            JcrConstants.JCR_PRIMARYTYPE, JcrConstants.JCR_MIXINTYPES, JcrConstants.JCR_UUID));
+
+    private final NodeStore store;
+    private final CommitHook hook;
+    private final BulkRuleSet rules;
+    private final BulkRewriteHandler handler;
+    private final long batchSize;
+
+    private NodeBuilder root;
+    private long nodes;
+    private long changes;
+    private long pendingChanges;
+
+    private NodeStoreBulkBackend(NodeStore store, CommitHook hook, BulkRuleSet rules, BulkRewriteHandler handler, long batchSize) {
+        this.store = store;
+        this.hook = hook;
+        this.rules = rules;
+        this.handler = handler;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Create the backend for the node store of the repository.
+     * @param rules     The rules to apply.
+     * @param handler   The handler, checked for cancellation.
+     * @param batchSize The number of changes per commit.
+     * @return The backend, or null if no node store service is available or provided by the install context.
+     * @throws RepositoryException if a rule changes a system property
+     */
+    static NodeStoreBulkBackend create(BulkRuleSet rules, BulkRewriteHandler handler, long batchSize) throws RepositoryException {
+        for (BulkRule rule : rules.getRules()) {
+            checkProperty(rule, rule instanceof RenamePropertyRule ? ((RenamePropertyRule) rule).getProperty() : null);
+            checkProperty(rule, rule instanceof RenamePropertyRule ? ((RenamePropertyRule) rule).getTo() : null);
+            checkProperty(rule, rule instanceof MapValueRule ? ((MapValueRule) rule).getProperty() : null);
+        }
+        NodeStore store = Util.getService(handler.getCtx(), NodeStore.class);
+        if (store == null) {
+            return null;
+        }
+        return new NodeStoreBulkBackend(store, createIndexHook(handler), rules, handler, batchSize);
+    }
+
+    private static void checkProperty(BulkRule rule, String property) throws RepositoryException {
+        if (property != null && SYSTEM_PROPERTIES.contains(property)) {
+            throw new RepositoryException("Bulk rule " + rule.getName() + " changes the system property " + property
+                    + ", which is not supported by the node store backend");
+        }
+    }
+
+    private static CommitHook createIndexHook(BulkRewriteHandler handler) {
+        List<IndexEditorProvider> providers = new ArrayList<>();
+        Bundle bundle = FrameworkUtil.getBundle(IndexEditorProvider.class);
+        if (bundle != null) {
+            BundleContext context = bundle.getBundleContext();
+            try {
+                ServiceReference[] references = context.getServiceReferences(IndexEditorProvider.class.getName(), null);
+                if (references != null) {
+                    for (ServiceReference reference : references) {
+                        providers.add((IndexEditorProvider) context.getService(reference));
+                    }
+                }
+            } catch (InvalidSyntaxException e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            // not running in OSGi, use the index editors provided along with the node store
+            IndexEditorProvider provided = Util.getService(handler.getCtx(), IndexEditorProvider.class);
+            if (provided != null) {
+                providers.add(provided);
+            }
+        }
+        return new EditorHook(new IndexUpdateProvider(CompositeIndexEditorProvider.compose(providers)));
+    }
+
+    /**
+     * Apply the rules below the given paths. Stops after the current batch once the handler has been cancelled.
+     * @param paths The paths to traverse.
+     * @throws CommitFailedException if a batch can't be committed; earlier batches stay committed
+     */
+    void run(List<String> paths) throws CommitFailedException {
+        root = store.getRoot().builder();
+        for (String path : paths) {
+            NodeBuilder builder = root;
+            for (String name : PathUtils.elements(path)) {
+                builder = builder.getChildNode(name);
+            }
+            if (builder.exists()) {
+                traverse(builder);
+            }
+        }
+        commit();
+    }
+
+    private void traverse(NodeBuilder builder) throws CommitFailedException {
+        if (handler.isCancelled()) {
+            return;
+        }
+        int nodeChanges = apply(builder);
+        nodes++;
+        handler.reportProgress(1);
+        changes += nodeChanges;
+        pendingChanges += nodeChanges;
+        if (pendingChanges >= batchSize) {
+            commit();
+        }
+        for (String name : builder.getChildNodeNames()) {
+            // e.g. the :index data of property indexes, maintained by the index editors, and the system content
+            if (!NodeStateUtils.isHidden(name) && !(builder == root && JcrConstants.JCR_SYSTEM.equals(name))) {
+                traverse(builder.getChildNode(name));
+            }
+        }
+    }
+
+    private void commit() throws CommitFailedException {
+        if (pendingChanges > 0) {
+            // rebases the builder, so the builders of the traversal stay valid
+            store.merge(root, hook, CommitInfo.EMPTY);
+            pendingChanges = 0;
+        }
+    }
+
+    private int apply(NodeBuilder builder) {
+        PropertyState primaryType = builder.getProperty(JcrConstants.JCR_PRIMARYTYPE);
+        String nodePrimaryType = primaryType != null ? primaryType.getValue(Type.NAME) : null;
+        String nodeResourceType = null;
+        if (rules.hasResourceTypeRules()) {
+            PropertyState resourceType = builder.getProperty(ResourceTypeRule.PN_RESOURCE_TYPE);
+            nodeResourceType = resourceType != null && !resourceType.isArray() ? resourceType.getValue(Type.STRING) : null;
+        }
+        return apply(builder, nodePrimaryType, rules.getRules(nodeResourceType));
+    }
+
+    private int apply(NodeBuilder builder, String nodePrimaryType, List<BulkRule> matching) {
+        int nodeChanges = 0;
+        for (int i = 0; i < matching.size(); i++) {
+            BulkRule rule = matching.get(i);
+            if (!rule.matchesPrimaryType(nodePrimaryType)) {
+                continue;
+            }
+            if (rule instanceof RenamePropertyRule) {
+                nodeChanges += rename(builder, (RenamePropertyRule) rule);
+            } else if (rule instanceof MapValueRule) {
+                nodeChanges += map(builder, (MapValueRule) rule);
+            } else if (rule instanceof ResourceTypeRule) {
+                builder.setProperty(ResourceTypeRule.PN_RESOURCE_TYPE, ((ResourceTypeRule) rule).getTo());
+                nodeChanges++;
+                // like in BulkRuleSet, the rules after it are those of the new resource type
+                matching = rules.getRulesAfter(rule, ((ResourceTypeRule) rule).getTo());
+                i = -1;
+            }
+        }
+        return nodeChanges;
+    }
+
+    private static int rename(NodeBuilder builder, RenamePropertyRule rule) {
+        PropertyState property = builder.getProperty(rule.getProperty());
+        if (property == null) {
+            return 0;
+        }
+        builder.setProperty(copy(property, rule.getTo()));
+        builder.removeProperty(rule.getProperty());
+        return 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> PropertyState copy(PropertyState property, String name) {
+        Type<T> type = (Type<T>) property.getType();
+        return PropertyStates.createProperty(name, property.getValue(type), type);
+    }
+
+    private static int map(NodeBuilder builder, MapValueRule rule) {
+        PropertyState property = builder.getProperty(rule.getProperty());
+        if (property == null || !MapValueRule.isText(property.getType().tag())) {
+            return 0;
+        }
+        if (!property.isArray()) {
+            String mapped = rule.map(property.getValue(Type.STRING));
+            if (mapped == null) {
+                return 0;
+            }
+            builder.setProperty(PropertyStates.createProperty(rule.getProperty(), mapped, property.getType()));
+            return 1;
+        }
+        List<String> values = new ArrayList<>(property.count());
+        boolean changed = false;
+        for (String value : property.getValue(Type.STRINGS)) {
+            String mapped = rule.map(value);
+            changed |= mapped != null;
+            values.add(mapped != null ? mapped : value);
+        }
+        if (!changed) {
+            return 0;
+        }
+        builder.setProperty(PropertyStates.createProperty(rule.getProperty(), values, property.getType()));
+        return 1;
+    }
+
+    long getNodes() {
+        return nodes;
+    }
+
+    long getChanges() {
+        return changes;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler.bulk;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * Renames the property {@code property} to {@code to}, keeping its type and values. An existing target property
+ * is overwritten.
+ */
+public class RenamePropertyRule extends BulkRule {
+
+    private final String property;
+    private final String to;
+
+    public RenamePropertyRule(String name, ValueMap config) throws RepositoryException {
+        super(name, config);
+        this.property = getMandatory(name, config, PN_PROPERTY);
+        this.to = getMandatory(name, config, PN_TO);
+    }
+
+    @Override
+    public int apply(Node node) throws RepositoryException {
+        if (!node.hasProperty(property)) {
+            return 0;
+        }
+        Property source = node.getProperty(property);
+        if (source.isMultiple()) {
+            node.setProperty(to, source.getValues(), source.getType());
+        } else {
+            node.setProperty(to, source.getValue(), source.getType());
+        }
+        source.remove();
+        return 1;
+    }
+
+    String getProperty() {
+        return property;
+    }
+
+    String getTo() {
+        return to;
+    }
+}
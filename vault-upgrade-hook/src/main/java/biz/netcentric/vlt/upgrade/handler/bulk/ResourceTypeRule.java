@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler.bulk;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * Changes the resource type {@code from} to {@code to}. The rule is dispatched by resource type, so it only sees
+ * nodes of resource type {@code from}.
+ */
+public class ResourceTypeRule extends BulkRule {
+
+    static final String PN_RESOURCE_TYPE = "sling:resourceType";
+
+    private final String from;
+    private final String to;
+
+    public ResourceTypeRule(String name, ValueMap config) throws RepositoryException {
+        super(name, config);
+        this.from = getMandatory(name, config, PN_FROM);
+        this.to = getMandatory(name, config, PN_TO);
+    }
+
+    @Override
+    public String getResourceType() {
+        return from;
+    }
+
+    @Override
+    public int apply(Node node) throws RepositoryException {
+        node.setProperty(PN_RESOURCE_TYPE, to);
+        return 1;
+    }
+
+    String getTo() {
+        return to;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.index;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.util.ISO8601;
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.InstallContext.Phase;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+import biz.netcentric.vlt.upgrade.UpgradeInfo;
+
+/**
+ * Index of the upgrade infos of a package, written at build time by the {@code upgrader-index} goal of the
+ * vault-upgrade-maven-plugin to META-INF/vault/upgrader-index.properties. Reading it from the package archive
+ * replaces the tree walk of the installed upgrader definition.
+ * <p>
+ * Format: {@code infos} lists the info names in execution order, {@code info.<n>.<property>} holds the properties
+ * of the n-th info in FileVault DocView notation, {@code scripts.<n>.<PHASE>} its script names per phase and
+ * {@code digest} the SHA-1 digest of all files of the upgrader definitions.
+ */
+public class UpgradeIndex {
+
+    public static final String INDEX_FILE = "upgrader-index.properties";
+    public static final String INDEX_PATH = "META-INF/vault/" + INDEX_FILE;
+
+    static final String KEY_INFOS = "infos";
+    static final String KEY_DIGEST = "digest";
+    static final String PREFIX_INFO = "info.";
+    static final String PREFIX_SCRIPTS = "scripts.";
+    static final String SEPARATOR = ",";
+
+    private final Properties index;
+
+    private UpgradeIndex(Properties index) {
+        this.index = index;
+    }
+
+    /**
+     * Read the index from the archive of the package being installed.
+     * @param ctx   The install context.
+     * @return The index, or null if the package does not contain one.
+     * @throws IOException
+     */
+    public static UpgradeIndex read(InstallContext ctx) throws IOException {
+        Archive archive = ctx.getPackage().getArchive();
+        Archive.Entry entry = archive != null ? archive.getEntry(INDEX_PATH) : null;
+        if (entry == null) {
+            return null;
+        }
+        Properties index = new Properties();
+        InputStream in = archive.openInputStream(entry);
+        try {
+            index.load(in);
+        } finally {
+            in.close();
+        }
+        return new UpgradeIndex(index);
+    }
+
+    /**
+     * Create the upgrade infos listed in the index.
+     * @param upgraderPath  The path of the upgrader folder in the repository.
+     * @param ctx           The install context.
+     * @return The upgrade infos in execution order.
+     */
+    public List<UpgradeInfo> getUpgradeInfos(String upgraderPath, InstallContext ctx) {
+        String[] names = StringUtils.split(index.getProperty(KEY_INFOS, ""), SEPARATOR);
+
+        // group the properties by info in a single pass
+        List<Map<String, Object>> configs = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            configs.add(new HashMap<String, Object>());
+        }
+        for (String key : index.stringPropertyNames()) {
+            if (key.startsWith(PREFIX_INFO)) {
+                int end = key.indexOf('.', PREFIX_INFO.length());
+                int position = Integer.parseInt(key.substring(PREFIX_INFO.length(), end));
+                configs.get(position).put(key.substring(end + 1), parseValue(index.getProperty(key)));
+            }
+        }
+
+        List<UpgradeInfo> infos = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            String path = upgraderPath + "/" + names[i];
+            infos.add(new UpgradeInfo(names[i], path, new ValueMapDecorator(configs.get(i)), getScripts(i, path), ctx));
+        }
+        return infos;
+    }
+
+    /**
+     * @return The digest of the upgrader definitions, null if the index has been written by an older version.
+     */
+    public String getDigest() {
+        return index.getProperty(KEY_DIGEST);
+    }
+
+    private Map<Phase, List<String>> getScripts(int position, String path) {
+        String prefix = PREFIX_SCRIPTS + position + ".";
+        if (index.getProperty(prefix + Phase.INSTALLED) == null) {
+            return null;
+        }
+        Map<Phase, List<String>> scripts = new EnumMap<>(Phase.class);
+        for (Phase phase : Phase.values()) {
+            List<String> paths = new ArrayList<>();
+            for (String script : StringUtils.split(index.getProperty(prefix + phase, ""), SEPARATOR)) {
+                paths.add(path + "/" + script);
+            }
+            scripts.put(phase, paths);
+        }
+        return scripts;
+    }
+
+    /**
+     * Parse a property value in DocView notation, e.g. {@code {Long}5} or {@code {Boolean}[true,false]}.
+     * @param value The value.
+     * @return The typed value.
+     */
+    static Object parseValue(String value) {
+        String type = null;
+        String raw = value;
+        if (raw.startsWith("{") && raw.indexOf('}') > 0) {
+            type = raw.substring(1, raw.indexOf('}'));
+            raw = raw.substring(raw.indexOf('}') + 1);
+        }
+        if (raw.startsWith("[") && raw.endsWith("]")) {
+            List<String> values = new ArrayList<>();
+            StringBuilder current = new StringBuilder();
+            for (int i = 1; i < raw.length() - 1; i++) {
+                char c = raw.charAt(i);
+                if (c == '\\' && i + 1 < raw.length() - 1) {
+                    current.append(raw.charAt(++i));
+                } else if (c == ',') {
+                    values.add(current.toString());
+                    current.setLength(0);
+                } else {
+                    current.append(c);
+                }
+            }
+            if (raw.length() > 2) {
+                values.add(current.toString());
+            }
+            Object[] array = (Object[]) Array.newInstance(getValueClass(type), values.size());
+            for (int i = 0; i < array.length; i++) {
+                array[i] = parseScalar(type, values.get(i));
+            }
+            return array;
+        }
+        return parseScalar(type, raw.replace("\\{", "{").replace("\\[", "["));
+    }
+
+    private static Class<?> getValueClass(String type) {
+        if ("Long".equals(type)) {
+            return Long.class;
+        } else if ("Boolean".equals(type)) {
+            return Boolean.class;
+        } else if ("Double".equals(type) || "Decimal".equals(type)) {
+            return Double.class;
+        } else if ("Date".equals(type)) {
+            return Calendar.class;
+        }
+        return String.class;
+    }
+
+    private static Object parseScalar(String type, String raw) {
+        if ("Long".equals(type)) {
+            return Long.valueOf(raw);
+        } else if ("Boolean".equals(type)) {
+            return Boolean.valueOf(raw);
+        } else if ("Double".equals(type) || "Decimal".equals(type)) {
+            return Double.valueOf(raw);
+        } else if ("Date".equals(type)) {
+            return ISO8601.parse(raw);
+        }
+        return raw;
+    }
+}
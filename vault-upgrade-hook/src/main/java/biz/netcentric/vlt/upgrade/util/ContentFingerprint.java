@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.apache.jackrabbit.JcrConstants;
+
+/**
+ * SHA-1 fingerprint of a content subtree: node names, properties and binaries in document order. Properties which
+ * the repository or the package import set on every install (creation and modification stamps, identifiers) are
+ * left out, so reinstalling unchanged content yields the same fingerprint.
+ */
+public class ContentFingerprint {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Set<String> IGNORED_PROPERTIES = new HashSet<>(Arrays.asList(
+            JcrConstants.JCR_CREATED, "jcr:createdBy", JcrConstants.JCR_LASTMODIFIED, "jcr:lastModifiedBy",
+            JcrConstants.JCR_UUID, JcrConstants.JCR_BASEVERSION, JcrConstants.JCR_PREDECESSORS,
+            JcrConstants.JCR_VERSIONHISTORY, JcrConstants.JCR_ISCHECKEDOUT));
+
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[8192];
+
+    private ContentFingerprint() {
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
+    /**
+     * Compute the fingerprint of a node and its descendants.
+     * @param node The root node.
+     * @return The fingerprint as hex string.
+     * @throws RepositoryException
+     */
+    public static String compute(Node node) throws RepositoryException {
+        ContentFingerprint fingerprint = new ContentFingerprint();
+        fingerprint.update(node);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : fingerprint.digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private void update(Node node) throws RepositoryException {
+        updateToken("node:" + node.getName());
+
+        // property order is not defined, sort by name
+        TreeMap<String, Property> properties = new TreeMap<>();
+        for (PropertyIterator it = node.getProperties(); it.hasNext(); ) {
+            Property property = it.nextProperty();
+            if (!IGNORED_PROPERTIES.contains(property.getName())) {
+                properties.put(property.getName(), property);
+            }
+        }
+        for (Property property : properties.values()) {
+            updateToken("property:" + property.getName());
+            if (property.isMultiple()) {
+                for (Value value : property.getValues()) {
+                    updateValue(value);
+                }
+            } else {
+                updateValue(property.getValue());
+            }
+        }
+
+        for (NodeIterator children = node.getNodes(); children.hasNext(); ) {
+            update(children.nextNode());
+        }
+        updateToken("end");
+    }
+
+    private void updateValue(Value value) throws RepositoryException {
+        if (value.getType() != PropertyType.BINARY) {
+            updateToken("value:" + value.getString());
+            return;
+        }
+        Binary binary = value.getBinary();
+        try {
+            updateToken("binary:" + binary.getSize());
+            InputStream in = binary.getStream();
+            try {
+                for (int read; (read = in.read(buffer)) > 0; ) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RepositoryException("Could not read binary", e);
+        } finally {
+            binary.dispose();
+        }
+    }
+
+    private void updateToken(String token) {
+        byte[] bytes = token.getBytes(UTF_8);
+        // length prefix, so adjacent tokens can't be shifted into each other
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+}
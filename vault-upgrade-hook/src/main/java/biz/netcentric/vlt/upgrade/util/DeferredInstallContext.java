@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.VaultPackage;
+
+/**
+ * Stands in for the install context when deferred upgrades run after the install returned. There is no package and
+ * no progress listener any more, so messages are only logged. The services passed by the install context, if any,
+ * are still provided.
+ */
+public class DeferredInstallContext implements InstallContext, ServiceProvider {
+
+    private final Session session;
+    private final ServiceProvider services;
+    private final ImportOptions options = new ImportOptions();
+    private Phase phase = Phase.INSTALLED;
+
+    /**
+     * @param session   The session of the deferred upgrades, owned by the caller.
+     * @param install   The context of the install which queued the deferred upgrades.
+     */
+    public DeferredInstallContext(Session session, InstallContext install) {
+        this.session = session;
+        this.services = install instanceof ServiceProvider ? (ServiceProvider) install : null;
+    }
+
+    @Override
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return null, the package of the install is closed.
+     */
+    @Override
+    public VaultPackage getPackage() {
+        return null;
+    }
+
+    @Override
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public void setPhase(Phase phase) {
+        this.phase = phase;
+    }
+
+    @Override
+    public ImportOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public <T> T getService(Class<T> clazz) {
+        return services != null ? services.getService(clazz) : null;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.SlingException;
+import org.apache.sling.api.resource.AbstractResource;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.jcr.resource.JcrPropertyMap;
+
+/**
+ * Minimal resource resolver on top of a plain JCR session, for offline runners and benchmarks outside of Sling.
+ * Supports reading resources, listing children and committing; everything else is unsupported. Closing the resolver
+ * does not log out the session.
+ */
+public class JcrResourceResolver implements InvocationHandler {
+
+    private static final String PN_RESOURCE_TYPE = "sling:resourceType";
+    private static final String PN_RESOURCE_SUPER_TYPE = "sling:resourceSuperType";
+
+    private final Session session;
+    private ResourceResolver proxy;
+
+    private JcrResourceResolver(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * @return A factory creating resolvers for the session passed as {@code user.jcr.session}, to be passed to the
+     * hook by a {@link ServiceProvider} install context.
+     */
+    public static ResourceResolverFactory createFactory() {
+        return (ResourceResolverFactory) Proxy.newProxyInstance(JcrResourceResolver.class.getClassLoader(),
+                new Class<?>[] { ResourceResolverFactory.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getResourceResolver":
+                                return create((Session) ((Map<?, ?>) args[0]).get("user.jcr.session"));
+                            case "toString":
+                                return "JcrResourceResolverFactory";
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    public static ResourceResolver create(Session session) {
+        JcrResourceResolver handler = new JcrResourceResolver(session);
+        handler.proxy = (ResourceResolver) Proxy.newProxyInstance(JcrResourceResolver.class.getClassLoader(),
+                new Class<?>[] { ResourceResolver.class }, handler);
+        return handler.proxy;
+    }
+
+    @Override
+    public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            switch (method.getName()) {
+                case "getResource":
+                    return getResource(args.length == 1 ? (String) args[0] : absolute((Resource) args[0], (String) args[1]));
+                case "resolve":
+                    Resource resource = getResource((String) args[args.length - 1]);
+                    return resource != null ? resource : new NonExistingResource(proxy, (String) args[args.length - 1]);
+                case "listChildren":
+                    return listChildren((Resource) args[0]).iterator();
+                case "getChildren":
+                    return listChildren((Resource) args[0]);
+                case "hasChildren":
+                    return session.getNode(((Resource) args[0]).getPath()).hasNodes();
+                case "getParent":
+                    String path = ((Resource) args[0]).getPath();
+                    return "/".equals(path) ? null : getResource(path.substring(0, Math.max(1, path.lastIndexOf('/'))));
+                case "isResourceType":
+                    return args[0] != null && ((Resource) args[0]).getResourceType().equals(args[1]);
+                case "adaptTo":
+                    return args[0] == Session.class ? session : null;
+                case "map":
+                    return args[args.length - 1];
+                case "getSearchPath":
+                    return new String[] { "/apps/", "/libs/" };
+                case "getUserID":
+                    return session.getUserID();
+                case "isLive":
+                    return session.isLive();
+                case "hasChanges":
+                    return session.hasPendingChanges();
+                case "commit":
+                    session.save();
+                    return null;
+                case "revert":
+                    session.refresh(false);
+                    return null;
+                case "close":
+                    return null;
+                case "equals":
+                    return target == args[0];
+                case "hashCode":
+                    return System.identityHashCode(target);
+                case "toString":
+                    return "JcrResourceResolver[" + session.getUserID() + "]";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        } catch (RepositoryException e) {
+            if ("commit".equals(method.getName())) {
+                throw new PersistenceException(e.getMessage(), e);
+            }
+            throw new SlingException(e.getMessage(), e);
+        }
+    }
+
+    private String absolute(Resource base, String path) {
+        return path.startsWith("/") ? path : base.getPath() + "/" + path;
+    }
+
+    private Resource getResource(String path) throws RepositoryException {
+        if (!path.startsWith("/") || !session.nodeExists(path)) {
+            return null;
+        }
+        return new JcrNodeResource(session.getNode(path));
+    }
+
+    private List<Resource> listChildren(Resource parent) throws RepositoryException {
+        List<Resource> children = new ArrayList<>();
+        if (session.nodeExists(parent.getPath())) {
+            for (NodeIterator nodes = session.getNode(parent.getPath()).getNodes(); nodes.hasNext(); ) {
+                children.add(new JcrNodeResource(nodes.nextNode()));
+            }
+        }
+        return children;
+    }
+
+    private class JcrNodeResource extends AbstractResource {
+
+        private final Node node;
+        private final String path;
+        private final String resourceType;
+        private final String resourceSuperType;
+        private final ResourceMetadata metadata;
+
+        private JcrNodeResource(Node node) throws RepositoryException {
+            this.node = node;
+            this.path = node.getPath();
+            this.resourceType = node.hasProperty(PN_RESOURCE_TYPE)
+                    ? node.getProperty(PN_RESOURCE_TYPE).getString() : node.getPrimaryNodeType().getName();
+            this.resourceSuperType = node.hasProperty(PN_RESOURCE_SUPER_TYPE)
+                    ? node.getProperty(PN_RESOURCE_SUPER_TYPE).getString() : null;
+            this.metadata = new ResourceMetadata();
+            this.metadata.setResolutionPath(path);
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        @Override
+        public String getResourceSuperType() {
+            return resourceSuperType;
+        }
+
+        @Override
+        public ResourceMetadata getResourceMetadata() {
+            return metadata;
+        }
+
+        @Override
+        public ResourceResolver getResourceResolver() {
+            return proxy;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <AdapterType> AdapterType adaptTo(Class<AdapterType> type) {
+            if (type == Node.class) {
+                return (AdapterType) node;
+            } else if (type == ValueMap.class) {
+                return (AdapterType) new JcrPropertyMap(node);
+            }
+            return super.adaptTo(type);
+        }
+    }
+}
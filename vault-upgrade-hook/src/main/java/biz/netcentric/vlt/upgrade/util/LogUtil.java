@@ -16,31 +16,35 @@ import org.slf4j.LoggerFactory;
 
 import biz.netcentric.vlt.upgrade.UpgradeProcessor;
 
+/**
+ * Logs to the progress listener of the install and to slf4j. Safe to be called from worker threads, the listener is
+ * only called by one thread at a time.
+ */
 public class LogUtil {
 	private static final Logger log = LoggerFactory.getLogger(UpgradeProcessor.class);
 
 	public static void info(String action, String msg, InstallContext ctx) {
         ProgressTrackerListener l = ctx.getOptions().getListener();
 		if (l != null) {
-			l.onMessage(Mode.TEXT, action, msg);
+			synchronized (l) {
+				l.onMessage(Mode.TEXT, action, msg);
+			}
 		}
 		log.info(action + " " + msg);
 	}
 
 	public static void info(String action, String msg, InstallContext ctx, InstallContext.Phase phase) {
         if(ctx.getPhase().equals(phase)) {
-            ProgressTrackerListener l = ctx.getOptions().getListener();
-            if (l != null) {
-                l.onMessage(Mode.TEXT, action, msg);
-            }
-            log.info(action + " " + msg);
+            info(action, msg, ctx);
         }
 	}
 
 	public static void warn(String action, String msg, InstallContext ctx) {
 		ProgressTrackerListener l = ctx.getOptions().getListener();
 		if (l != null) {
-            l.onMessage(Mode.TEXT, action, msg);
+			synchronized (l) {
+				l.onMessage(Mode.TEXT, action, msg);
+			}
         }
         log.warn(action + " " + msg);
 	}
@@ -48,7 +52,9 @@ public class LogUtil {
 	public static void error(String msg, Exception e, InstallContext ctx) {
 		ProgressTrackerListener l = ctx.getOptions().getListener();
 		if (l != null) {
-			l.onError(Mode.TEXT, msg, e);
+			synchronized (l) {
+				l.onError(Mode.TEXT, msg, e);
+			}
 		}
 		log.error(msg, e);
 	}
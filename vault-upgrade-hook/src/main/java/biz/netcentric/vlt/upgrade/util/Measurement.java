@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall clock time, CPU time and allocated bytes of the current thread between {@link #start(String)} and
+ * {@link #stop()}. CPU time and allocations are -1 if the JVM does not measure them; allocations are read via
+ * {@code com.sun.management.ThreadMXBean}, which not every JVM provides.
+ */
+public class Measurement {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final Method ALLOCATED_BYTES = getAllocatedBytesMethod();
+
+    private final String name;
+    private long wallTime;
+    private long cpuTime;
+    private long allocatedBytes;
+    private String profile;
+
+    private Measurement(String name, long wallTime, long cpuTime, long allocatedBytes) {
+        this.name = name;
+        this.wallTime = wallTime;
+        this.cpuTime = cpuTime;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    private static Method getAllocatedBytesMethod() {
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return method.getDeclaringClass().isInstance(THREADS) ? method : null;
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Start measuring the current thread.
+     * @param name  The name of the measured step.
+     * @return The measurement, to be stopped by the same thread.
+     */
+    public static Measurement start(String name) {
+        return new Measurement(name, System.nanoTime(), currentCpuTime(), currentAllocatedBytes());
+    }
+
+    /**
+     * Create an empty measurement, to {@link #add(Measurement)} others to.
+     * @param name  The name.
+     * @return The measurement.
+     */
+    public static Measurement total(String name) {
+        return new Measurement(name, 0, 0, 0);
+    }
+
+    /**
+     * Stop measuring.
+     * @return This measurement.
+     */
+    public Measurement stop() {
+        wallTime = System.nanoTime() - wallTime;
+        cpuTime = difference(currentCpuTime(), cpuTime);
+        allocatedBytes = difference(currentAllocatedBytes(), allocatedBytes);
+        return this;
+    }
+
+    /**
+     * Add another measurement to this one.
+     * @param other The stopped measurement.
+     * @return This measurement.
+     */
+    public synchronized Measurement add(Measurement other) {
+        wallTime += other.wallTime;
+        cpuTime = cpuTime < 0 || other.cpuTime < 0 ? -1 : cpuTime + other.cpuTime;
+        allocatedBytes = allocatedBytes < 0 || other.allocatedBytes < 0 ? -1 : allocatedBytes + other.allocatedBytes;
+        return this;
+    }
+
+    private static long difference(long end, long start) {
+        return end < 0 || start < 0 ? -1 : end - start;
+    }
+
+    private static long currentCpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long currentAllocatedBytes() {
+        if (ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        try {
+            return (Long) ALLOCATED_BYTES.invoke(THREADS, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The wall clock time in ms.
+     */
+    public long getWallTime() {
+        return TimeUnit.NANOSECONDS.toMillis(wallTime);
+    }
+
+    /**
+     * @return The CPU time in ms, -1 if not measured.
+     */
+    public long getCpuTime() {
+        return cpuTime < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(cpuTime);
+    }
+
+    /**
+     * @return The allocated bytes, -1 if not measured.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return The collapsed stacks sampled while the step ran, null if it has not been profiled.
+     */
+    public String getProfile() {
+        return profile;
+    }
+
+    public void setProfile(String profile) {
+        this.profile = profile;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getWallTime() + "ms wall, "
+                + (cpuTime < 0 ? "n/a" : getCpuTime() + "ms") + " cpu, "
+                + (allocatedBytes < 0 ? "n/a" : (allocatedBytes >> 10) + "KB") + " allocated";
+    }
+}
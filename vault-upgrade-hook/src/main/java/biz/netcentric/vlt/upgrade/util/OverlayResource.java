@@ -0,0 +1,50 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceWrapper;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+/**
+ * Resource wrapper that overlays some properties of the wrapped resource, e.g. to run a sling pipe definition with a
+ * different root path without modifying the definition in the repository.
+ */
+public class OverlayResource extends ResourceWrapper {
+
+    private final Map<String, Object> properties;
+
+    public OverlayResource(Resource resource, Map<String, Object> overlay) {
+        super(resource);
+        properties = new HashMap<>();
+        ValueMap original = resource.adaptTo(ValueMap.class);
+        if (original != null) {
+            properties.putAll(original);
+        }
+        properties.putAll(overlay);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <AdapterType> AdapterType adaptTo(Class<AdapterType> type) {
+        if (type == ValueMap.class || type == Map.class) {
+            return (AdapterType) getValueMap();
+        }
+        return super.adaptTo(type);
+    }
+
+    @Override
+    public ValueMap getValueMap() {
+        return new ValueMapDecorator(properties);
+    }
+}
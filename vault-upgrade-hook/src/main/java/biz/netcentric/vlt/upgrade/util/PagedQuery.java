@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Streams the result of a JCR query in pages of paths. The query is executed and iterated by a background thread
+ * with its own session, which keeps up to {@link #PREFETCH_PAGES} pages ahead of the consumer, so neither the result
+ * nor the nodes of processed pages are held in the consumer's session.
+ * <p>
+ * The repository can't compare paths in range conditions, so instead of re-querying per page with a path keyset the
+ * result of a single query execution is consumed lazily. Nodes changed by the consumer may or may not show up in the
+ * result, and hits removed in the meantime have to be skipped by the consumer.
+ */
+public class PagedQuery {
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    public static final int PREFETCH_PAGES = 2;
+
+    private static final List<String> END = Collections.emptyList();
+    private static final long OFFER_TIMEOUT = 100;
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    /**
+     * Processes a single query hit.
+     */
+    public interface Visitor {
+        void visit(Node node) throws Exception;
+    }
+
+    private final BlockingQueue<List<String>> pages = new ArrayBlockingQueue<>(PREFETCH_PAGES);
+    private final Session workerSession;
+    private final Thread producer;
+    private volatile boolean closed;
+    private volatile Exception failure;
+    private boolean done;
+
+    /**
+     * Start executing the query in the background.
+     * @param session   The session whose user executes the query, it is not used by the background thread.
+     * @param language  The query language, e.g. {@link javax.jcr.query.Query#JCR_SQL2}.
+     * @param statement The query statement.
+     * @param pageSize  The number of paths per page.
+     * @throws RepositoryException if the worker session can't be opened
+     */
+    public PagedQuery(Session session, final String language, final String statement, final int pageSize) throws RepositoryException {
+        workerSession = Util.openWorkerSession(session);
+        producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                produce(language, statement, pageSize);
+            }
+        }, "vault-upgrade-paged-query");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    private void produce(String language, String statement, int pageSize) {
+        try {
+            NodeIterator nodes = workerSession.getWorkspace().getQueryManager().createQuery(statement, language).execute().getNodes();
+            List<String> page = new ArrayList<>(pageSize);
+            while (nodes.hasNext() && !closed) {
+                page.add(nodes.nextNode().getPath());
+                if (page.size() == pageSize) {
+                    put(page);
+                    page = new ArrayList<>(pageSize);
+                }
+            }
+            if (!page.isEmpty()) {
+                put(page);
+            }
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            workerSession.logout();
+            put(END);
+        }
+    }
+
+    private void put(List<String> page) {
+        try {
+            while (!closed) {
+                if (pages.offer(page, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Return the next page, waiting for the background thread if it is not prefetched yet.
+     * @return The paths of the next page, or null if the result is exhausted.
+     * @throws RepositoryException if the query failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<String> nextPage() throws RepositoryException, InterruptedException {
+        if (done) {
+            return null;
+        }
+        List<String> page = pages.take();
+        if (page == END) {
+            done = true;
+            if (failure instanceof RepositoryException) {
+                throw (RepositoryException) failure;
+            } else if (failure != null) {
+                throw new RepositoryException("Query failed", failure);
+            }
+            return null;
+        }
+        return page;
+    }
+
+    /**
+     * Stop the background thread, must be called once the consumer is done. The thread is not interrupted, as
+     * interrupts may close the file channels of the repository; it notices the close within {@value #OFFER_TIMEOUT}ms
+     * when waiting for the consumer, or after fetching the current hit.
+     */
+    public void close() {
+        closed = true;
+        pages.clear();
+        try {
+            producer.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
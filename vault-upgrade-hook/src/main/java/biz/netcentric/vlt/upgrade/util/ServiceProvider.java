@@ -0,0 +1,22 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+/**
+ * Implemented by install contexts which run the hook outside of OSGi, e.g. in benchmarks or offline runners, to pass
+ * the services the hook otherwise looks up in OSGi, see {@link Util#getService(org.apache.jackrabbit.vault.packaging.InstallContext, Class)}.
+ */
+public interface ServiceProvider {
+
+    /**
+     * @param clazz The service interface.
+     * @return The service, or null if it is not provided.
+     */
+    <T> T getService(Class<T> clazz);
+}
@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the stack of a thread at a fixed interval and aggregates the samples as collapsed stacks, one line per
+ * distinct stack with its frames from root to leaf separated by semicolons followed by the sample count. This is the
+ * input format of flame graph tools. Frames of Groovy scripts carry their line number.
+ */
+public class StackSampler {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "vault-upgrade-profiler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Thread thread;
+    private final Map<String, Long> stacks = new TreeMap<>();
+    private ScheduledFuture<?> sampling;
+    private boolean stopped;
+    private long samples;
+
+    private StackSampler(Thread thread) {
+        this.thread = thread;
+    }
+
+    /**
+     * Start sampling the current thread.
+     * @param interval  The sampling interval in ms.
+     * @return The sampler, to be stopped after the profiled step.
+     */
+    public static StackSampler start(long interval) {
+        final StackSampler sampler = new StackSampler(Thread.currentThread());
+        sampler.sampling = TIMER.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sampler.sample();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return sampler;
+    }
+
+    private synchronized void sample() {
+        if (stopped) {
+            return;
+        }
+        StackTraceElement[] trace = thread.getStackTrace();
+        if (trace.length == 0) {
+            return;
+        }
+        StringBuilder stack = new StringBuilder();
+        for (int i = trace.length - 1; i >= 0; i--) {
+            StackTraceElement frame = trace[i];
+            stack.append(frame.getClassName()).append('.').append(frame.getMethodName());
+            if (frame.getFileName() != null && frame.getFileName().endsWith(".groovy") && frame.getLineNumber() > 0) {
+                stack.append(':').append(frame.getLineNumber());
+            }
+            if (i > 0) {
+                stack.append(';');
+            }
+        }
+        String key = stack.toString();
+        Long count = stacks.get(key);
+        stacks.put(key, count == null ? 1 : count + 1);
+        samples++;
+    }
+
+    /**
+     * Stop sampling.
+     * @return The collapsed stacks, empty if no sample has been taken.
+     */
+    public synchronized String stop() {
+        stopped = true;
+        sampling.cancel(false);
+        StringBuilder collapsed = new StringBuilder();
+        for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+            collapsed.append(stack.getKey()).append(' ').append(stack.getValue()).append('\n');
+        }
+        return collapsed.toString();
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the live heap, i.e. the heap usage after the last garbage collection, to protect the instance from a
+ * transient space growing out of bounds. Sampling is rate limited, so the guard is cheap to call per node. A guard
+ * is used by one thread only.
+ * <p>
+ * The usage after the last collection of a pool does not change until the pool is collected again, so after a save
+ * the samples are only meaningful once each pool has been collected since, see {@link #isCollectedSinceSave()}.
+ */
+public class TransientSpaceGuard {
+
+    private static final long SAMPLE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int saveThreshold;
+    private final int abortThreshold;
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    private final List<List<GarbageCollectorMXBean>> poolCollectors = new ArrayList<>();
+    private long lastSample;
+    private int heapUsage;
+    private long[] collectionsAtSave;
+    private boolean savedOnLastSample;
+
+    /**
+     * @param saveThreshold     Heap usage in percent from which on pending changes should be saved.
+     * @param abortThreshold    Heap usage in percent from which on the handler should be aborted.
+     */
+    public TransientSpaceGuard(int saveThreshold, int abortThreshold) {
+        this.saveThreshold = saveThreshold;
+        this.abortThreshold = abortThreshold;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+                List<GarbageCollectorMXBean> collectors = new ArrayList<>();
+                for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                    if (Arrays.asList(collector.getMemoryPoolNames()).contains(pool.getName())) {
+                        collectors.add(collector);
+                    }
+                }
+                heapPools.add(pool);
+                poolCollectors.add(collectors);
+            }
+        }
+        lastSample = System.nanoTime() - SAMPLE_INTERVAL;
+    }
+
+    /**
+     * Take a new sample if the last one is older than the sample interval.
+     * @return true if a new sample was taken.
+     */
+    public boolean sample() {
+        long now = System.nanoTime();
+        if (now - lastSample < SAMPLE_INTERVAL) {
+            return false;
+        }
+        lastSample = now;
+        long used = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        heapUsage = (int) (used * 100 / Runtime.getRuntime().maxMemory());
+        return true;
+    }
+
+    /**
+     * Remember that the pending changes have just been saved.
+     */
+    public void markSaved() {
+        collectionsAtSave = getCollections();
+    }
+
+    /**
+     * @return true if each heap pool has been collected since the last save, i.e. the samples reflect the heap
+     * after the save. Also true if nothing has been saved yet.
+     */
+    public boolean isCollectedSinceSave() {
+        if (collectionsAtSave == null) {
+            return true;
+        }
+        long[] collections = getCollections();
+        for (int i = 0; i < collections.length; i++) {
+            if (collections[i] >= 0 && collections[i] == collectionsAtSave[i]) {
+                return false;
+            }
+        }
+        collectionsAtSave = null;
+        return true;
+    }
+
+    /**
+     * @return true if the pending changes were saved on the last evaluated sample, so saving again won't help.
+     */
+    public boolean isSavedOnLastSample() {
+        return savedOnLastSample;
+    }
+
+    public void setSavedOnLastSample(boolean savedOnLastSample) {
+        this.savedOnLastSample = savedOnLastSample;
+    }
+
+    /**
+     * @return Per heap pool the number of collections of the collectors managing it, -1 if it has none.
+     */
+    private long[] getCollections() {
+        long[] collections = new long[heapPools.size()];
+        for (int i = 0; i < collections.length; i++) {
+            List<GarbageCollectorMXBean> collectors = poolCollectors.get(i);
+            collections[i] = collectors.isEmpty() ? -1 : 0;
+            for (GarbageCollectorMXBean collector : collectors) {
+                collections[i] += collector.getCollectionCount();
+            }
+        }
+        return collections;
+    }
+
+    /**
+     * @return The live heap usage in percent of the maximum heap, as of the last sample.
+     */
+    public int getHeapUsage() {
+        return heapUsage;
+    }
+
+    public boolean isSaveRequired() {
+        return heapUsage >= saveThreshold;
+    }
+
+    public boolean isExhausted() {
+        return heapUsage >= abortThreshold;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Java Flight Recorder events of the hook. The hook targets Java 7, so the event types are defined at runtime via
+ * {@code jdk.jfr.EventFactory} and accessed by reflection. On JVMs without JFR, and while no recording enables an
+ * event type, {@link #begin(Type)} returns a no-op event without allocating.
+ * <p>
+ * Usage: {@code Event event = UpgradeEvents.begin(Type.SCRIPT); ... event.set("path", path).commit();}
+ */
+public final class UpgradeEvents {
+
+    private static final Logger log = LoggerFactory.getLogger(UpgradeEvents.class);
+
+    private static final String CATEGORY = "Vault Upgrade Hook";
+
+    private static final List<String> LONG_FIELDS = Arrays.asList("changes", "nodes");
+
+    /**
+     * The event types and their fields, all of them strings or longs.
+     */
+    public enum Type {
+        PHASE("UpgradePhase", "Upgrade Phase", "packageId", "version", "phase"),
+        INFO("UpgradeInfoExecution", "Upgrade Info Execution", "packageId", "phase", "info", "path"),
+        SCRIPT("ScriptExecution", "Script Execution", "phase", "info", "path"),
+        SAVE("SessionSave", "Session Save", "info", "changes"),
+        PIPE_BATCH("PipeOutputBatch", "Pipe Output Batch", "path", "nodes");
+
+        private final String name;
+        private final String label;
+        private final List<String> fields;
+        private volatile Object factory;
+        private volatile Object eventType;
+
+        Type(String name, String label, String... fields) {
+            this.name = name;
+            this.label = label;
+            this.fields = Arrays.asList(fields);
+        }
+    }
+
+    /**
+     * An event in progress.
+     */
+    public interface Event {
+
+        /**
+         * Set a field; unknown fields are ignored.
+         * @param field The field.
+         * @param value A string or a long value.
+         * @return This event.
+         */
+        Event set(String field, Object value);
+
+        /**
+         * End the event and commit it to the recording.
+         */
+        void commit();
+    }
+
+    private static final Event NOOP = new Event() {
+        @Override
+        public Event set(String field, Object value) {
+            return this;
+        }
+
+        @Override
+        public void commit() {
+            // disabled
+        }
+    };
+
+    private static final Jfr JFR = Jfr.load();
+
+    private UpgradeEvents() {
+    }
+
+    /**
+     * Begin an event.
+     * @param type  The event type.
+     * @return The event, a no-op if the type is not enabled in any recording.
+     */
+    public static Event begin(Type type) {
+        if (JFR == null) {
+            return NOOP;
+        }
+        try {
+            Object factory = JFR.getFactory(type);
+            if (!(Boolean) JFR.isEnabled.invoke(type.eventType)) {
+                return NOOP;
+            }
+            Object event = JFR.newEvent.invoke(factory);
+            JFR.begin.invoke(event);
+            return new JfrEvent(type, event);
+        } catch (Exception e) {
+            log.debug("Could not create JFR event " + type.name, e);
+            return NOOP;
+        }
+    }
+
+    /**
+     * @return true if the JVM supports JFR.
+     */
+    public static boolean isSupported() {
+        return JFR != null;
+    }
+
+    private static class JfrEvent implements Event {
+
+        private final Type type;
+        private final Object event;
+
+        private JfrEvent(Type type, Object event) {
+            this.type = type;
+            this.event = event;
+        }
+
+        @Override
+        public Event set(String field, Object value) {
+            int index = type.fields.indexOf(field);
+            if (index >= 0) {
+                try {
+                    JFR.set.invoke(event, index, value instanceof Number ? ((Number) value).longValue() : String.valueOf(value));
+                } catch (Exception e) {
+                    log.debug("Could not set " + field + " of JFR event " + type.name, e);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public void commit() {
+            try {
+                JFR.end.invoke(event);
+                JFR.commit.invoke(event);
+            } catch (Exception e) {
+                log.debug("Could not commit JFR event " + type.name, e);
+            }
+        }
+    }
+
+    /**
+     * The reflective access to {@code jdk.jfr}.
+     */
+    private static class Jfr {
+
+        private Class<?> annotationElement;
+        private Class<?> valueDescriptor;
+        private Method create;
+        private Method getEventType;
+        private Method isEnabled;
+        private Method newEvent;
+        private Method begin;
+        private Method end;
+        private Method commit;
+        private Method set;
+
+        static Jfr load() {
+            try {
+                Jfr jfr = new Jfr();
+                jfr.annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+                jfr.valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+                Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+                Class<?> eventType = Class.forName("jdk.jfr.EventType");
+                Class<?> event = Class.forName("jdk.jfr.Event");
+                jfr.create = eventFactory.getMethod("create", List.class, List.class);
+                jfr.getEventType = eventFactory.getMethod("getEventType");
+                jfr.isEnabled = eventType.getMethod("isEnabled");
+                jfr.newEvent = eventFactory.getMethod("newEvent");
+                jfr.begin = event.getMethod("begin");
+                jfr.end = event.getMethod("end");
+                jfr.commit = event.getMethod("commit");
+                jfr.set = event.getMethod("set", int.class, Object.class);
+                return jfr;
+            } catch (ClassNotFoundException | NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        Object getFactory(Type type) throws Exception {
+            if (type.factory == null) {
+                synchronized (type) {
+                    if (type.factory == null) {
+                        Object factory = create.invoke(null, annotations(type), fields(type));
+                        type.eventType = getEventType.invoke(factory);
+                        type.factory = factory;
+                    }
+                }
+            }
+            return type.factory;
+        }
+
+        private List<Object> annotations(Type type) throws Exception {
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(annotation("jdk.jfr.Name", "biz.netcentric.vlt.upgrade." + type.name));
+            annotations.add(annotation("jdk.jfr.Label", type.label));
+            annotations.add(annotation("jdk.jfr.Category", new String[] { CATEGORY }));
+            return annotations;
+        }
+
+        private List<Object> fields(Type type) throws Exception {
+            Constructor<?> constructor = valueDescriptor.getConstructor(Class.class, String.class);
+            List<Object> fields = new ArrayList<>();
+            for (String field : type.fields) {
+                Class<?> fieldType = LONG_FIELDS.contains(field) ? long.class : String.class;
+                fields.add(constructor.newInstance(fieldType, field));
+            }
+            return fields;
+        }
+
+        private Object annotation(String annotationClass, Object value) throws Exception {
+            Class<? extends Annotation> annotationType = Class.forName(annotationClass).asSubclass(Annotation.class);
+            return annotationElement.getConstructor(Class.class, Object.class).newInstance(annotationType, value);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the progress of the running upgrades and exposes it via JMX, so it can be followed independently of the
+ * package manager. Installs and deferred upgrades run at the same time, so each has its own bean, registered on first
+ * use; as every package brings its own copy of the hook, the beans of a previous install are replaced. Within a bean
+ * the script and item counters are tracked per running upgrade info, so concurrent workers don't overwrite each other.
+ * All updates are cheap and safe to be called from worker threads.
+ */
+public class UpgradeProgress implements UpgradeProgressMBean {
+
+    public static final String OBJECT_NAME = "biz.netcentric.vlt.upgrade:type=UpgradeProgress";
+
+    /**
+     * What runs the upgrade infos tracked by a bean.
+     */
+    public enum Source {
+        INSTALL, DEFERRED
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(UpgradeProgress.class);
+
+    private static final AtomicReferenceArray<UpgradeProgress> INSTANCES = new AtomicReferenceArray<>(Source.values().length);
+
+    private final Source source;
+    private volatile String packageId;
+    private volatile String phase;
+    private volatile int includedInfos;
+    private final AtomicInteger finishedInfos = new AtomicInteger();
+    private final AtomicLong totalProcessedItems = new AtomicLong();
+    private volatile long installStart;
+    private final Map<String, Info> running = new ConcurrentHashMap<>();
+    private volatile Info last;
+
+    private UpgradeProgress(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * @param ctx The install context, or the context of the deferred upgrades.
+     * @return The progress of the install or the deferred upgrades the context belongs to.
+     */
+    public static UpgradeProgress get(InstallContext ctx) {
+        return get(ctx instanceof DeferredInstallContext ? Source.DEFERRED : Source.INSTALL);
+    }
+
+    /**
+     * @param source What runs the upgrade infos.
+     * @return The progress of this hook for the source, registered as MBean if possible.
+     */
+    public static UpgradeProgress get(Source source) {
+        UpgradeProgress progress = INSTANCES.get(source.ordinal());
+        if (progress == null) {
+            synchronized (INSTANCES) {
+                progress = INSTANCES.get(source.ordinal());
+                if (progress == null) {
+                    progress = new UpgradeProgress(source);
+                    progress.register();
+                    INSTANCES.set(source.ordinal(), progress);
+                }
+            }
+        }
+        return progress;
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME + ",source=" + source.name().toLowerCase());
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException | RuntimeException e) {
+            log.warn("Could not register upgrade progress MBean. " + e.getMessage());
+        }
+    }
+
+    // ----< updates >--------------------------------------------------------
+
+    /**
+     * Start a phase of an install.
+     * @param packageId     The package.
+     * @param phase         The phase.
+     * @param includedInfos The count of upgrade infos to run in the phase.
+     */
+    public void startPhase(String packageId, String phase, int includedInfos) {
+        if (!packageId.equals(this.packageId) || installStart == 0) {
+            installStart = System.currentTimeMillis();
+            totalProcessedItems.set(0);
+        }
+        this.packageId = packageId;
+        this.phase = phase;
+        this.includedInfos = includedInfos;
+        finishedInfos.set(0);
+        running.clear();
+        last = null;
+    }
+
+    /**
+     * End a phase. After the END phase or a failure the install is considered done.
+     * @param done true if the install is done.
+     */
+    public void endPhase(boolean done) {
+        running.clear();
+        last = null;
+        if (done) {
+            packageId = null;
+            phase = null;
+            installStart = 0;
+        }
+    }
+
+    /**
+     * Start tracking an upgrade info.
+     * @param path  The path of the upgrade info.
+     * @param title The title shown.
+     */
+    public void startInfo(String path, String title) {
+        Info info = new Info(title);
+        running.put(path, info);
+        last = info;
+    }
+
+    /**
+     * @param path The path of an upgrade info passed to {@link #startInfo(String, String)}.
+     */
+    public void endInfo(String path) {
+        Info info = running.remove(path);
+        finishedInfos.incrementAndGet();
+        if (info != null && info == last) {
+            Iterator<Info> others = running.values().iterator();
+            last = others.hasNext() ? others.next() : null;
+        }
+    }
+
+    /**
+     * @param path The path of an upgrade info.
+     * @return The progress of the upgrade info, a detached one which is not shown if it is not running.
+     */
+    public Info getInfo(String path) {
+        Info info = running.get(path);
+        return info != null ? info : new Info(null);
+    }
+
+    /**
+     * The progress of a running upgrade info.
+     */
+    public class Info {
+
+        private final String title;
+        private volatile String script;
+        private final AtomicLong processedItems = new AtomicLong();
+        private volatile long estimatedItems = -1;
+        private volatile long scriptStart = System.currentTimeMillis();
+
+        private Info(String title) {
+            this.title = title;
+        }
+
+        /**
+         * Start a script, pipe or other step, resetting the item counters.
+         * @param script            The path of the script.
+         * @param estimatedItems    The estimated count of items, -1 if unknown.
+         */
+        public void startScript(String script, long estimatedItems) {
+            this.script = script;
+            this.estimatedItems = estimatedItems;
+            processedItems.set(0);
+            scriptStart = System.currentTimeMillis();
+        }
+
+        public void setEstimatedItems(long estimatedItems) {
+            this.estimatedItems = estimatedItems;
+        }
+
+        public void addProcessedItems(long count) {
+            processedItems.addAndGet(count);
+            totalProcessedItems.addAndGet(count);
+        }
+
+        private double getThroughput() {
+            long elapsed = System.currentTimeMillis() - scriptStart;
+            return elapsed > 0 ? processedItems.get() * 1000d / elapsed : 0;
+        }
+
+        private long getEtaSeconds() {
+            long estimated = estimatedItems;
+            double throughput = getThroughput();
+            if (estimated < 0 || throughput <= 0) {
+                return -1;
+            }
+            return (long) (Math.max(0, estimated - processedItems.get()) / throughput);
+        }
+
+        @Override
+        public String toString() {
+            long estimated = estimatedItems;
+            return title + (script != null ? ": " + script : "") + ", " + processedItems.get()
+                    + (estimated >= 0 ? "/" + estimated : "") + " items";
+        }
+    }
+
+    // ----< MBean >--------------------------------------------------------
+
+    @Override
+    public String getSource() {
+        return source.name();
+    }
+
+    @Override
+    public String getPackageId() {
+        return packageId;
+    }
+
+    @Override
+    public String getPhase() {
+        return phase;
+    }
+
+    @Override
+    public String[] getRunningInfos() {
+        List<String> infos = new ArrayList<>();
+        for (Info info : running.values()) {
+            infos.add(info.toString());
+        }
+        return infos.toArray(new String[infos.size()]);
+    }
+
+    @Override
+    public String getUpgradeInfo() {
+        Info info = last;
+        return info != null ? info.title : null;
+    }
+
+    @Override
+    public String getScript() {
+        Info info = last;
+        return info != null ? info.script : null;
+    }
+
+    @Override
+    public int getFinishedInfos() {
+        return finishedInfos.get();
+    }
+
+    @Override
+    public int getIncludedInfos() {
+        return includedInfos;
+    }
+
+    @Override
+    public long getProcessedItems() {
+        Info info = last;
+        return info != null ? info.processedItems.get() : 0;
+    }
+
+    @Override
+    public long getEstimatedItems() {
+        Info info = last;
+        return info != null ? info.estimatedItems : -1;
+    }
+
+    @Override
+    public double getThroughput() {
+        Info info = last;
+        return info != null ? info.getThroughput() : 0;
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        Info info = last;
+        return info != null ? info.getEtaSeconds() : -1;
+    }
+
+    @Override
+    public long getTotalProcessedItems() {
+        return totalProcessedItems.get();
+    }
+
+    @Override
+    public long getElapsedSeconds() {
+        long start = installStart;
+        return start > 0 ? (System.currentTimeMillis() - start) / 1000 : 0;
+    }
+}
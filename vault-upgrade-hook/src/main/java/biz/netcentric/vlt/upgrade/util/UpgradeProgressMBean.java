@@ -0,0 +1,83 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+/**
+ * Live progress of the running upgrades, registered as {@value UpgradeProgress#OBJECT_NAME} with the source
+ * {@code install} or {@code deferred}.
+ */
+public interface UpgradeProgressMBean {
+
+    /**
+     * @return INSTALL for the upgrades of the package install, DEFERRED for the deferred upgrades.
+     */
+    String getSource();
+
+    /**
+     * @return The id of the package being installed, null if no upgrade is running.
+     */
+    String getPackageId();
+
+    String getPhase();
+
+    /**
+     * @return Per running upgrade info its title, script and processed items.
+     */
+    String[] getRunningInfos();
+
+    /**
+     * @return The running upgrade info started last, several may run at once.
+     */
+    String getUpgradeInfo();
+
+    /**
+     * @return The path of the script or pipe of that upgrade info.
+     */
+    String getScript();
+
+    /**
+     * @return The count of upgrade infos finished in the current phase.
+     */
+    int getFinishedInfos();
+
+    /**
+     * @return The count of upgrade infos to run in the current phase.
+     */
+    int getIncludedInfos();
+
+    /**
+     * @return The items (resources, nodes or query results) processed by the script of that upgrade info.
+     */
+    long getProcessedItems();
+
+    /**
+     * @return The estimated total of items of the current script, -1 if unknown.
+     */
+    long getEstimatedItems();
+
+    /**
+     * @return The items processed per second by the current script.
+     */
+    double getThroughput();
+
+    /**
+     * @return The estimated seconds until the current script is done, -1 if unknown.
+     */
+    long getEtaSeconds();
+
+    /**
+     * @return The items processed during the whole install.
+     */
+    long getTotalProcessedItems();
+
+    /**
+     * @return The seconds since the install started.
+     */
+    long getElapsedSeconds();
+}
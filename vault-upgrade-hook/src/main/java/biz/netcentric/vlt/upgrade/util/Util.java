@@ -14,6 +14,7 @@ import java.util.Collections;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
 
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -30,24 +31,77 @@ import org.apache.jackrabbit.vault.packaging.InstallContext;
  */
 public class Util {
 
+    /**
+     * Return a service looked up in OSGi.
+     * @param clazz The service interface.
+     * @return The service, or null when running outside of OSGi.
+     */
     @SuppressWarnings("unchecked")
     public static <T>T getService(Class<T> clazz) {
         Bundle bundle = FrameworkUtil.getBundle(clazz);
+        if (bundle == null) {
+            return null;
+        }
         BundleContext context = bundle.getBundleContext();
         ServiceReference serviceReference = context.getServiceReference(clazz.getName());
         return (T) context.getService(serviceReference);
     }
 
+    /**
+     * Return a service passed by the install context, if it is a {@link ServiceProvider}, or else looked up in OSGi.
+     * @param ctx   The install context.
+     * @param clazz The service interface.
+     * @return The service, or null if it is neither provided nor available in OSGi.
+     */
+    public static <T>T getService(InstallContext ctx, Class<T> clazz) {
+        if (ctx instanceof ServiceProvider) {
+            T service = ((ServiceProvider) ctx).getService(clazz);
+            if (service != null) {
+                return service;
+            }
+        }
+        return getService(clazz);
+    }
+
     public static ResourceResolver getResourceResolver(InstallContext ctx) {
-        ResourceResolverFactory resourceResolverFactory = getService(ResourceResolverFactory.class);
+        ResourceResolverFactory resourceResolverFactory = getService(ctx, ResourceResolverFactory.class);
         try {
-            return resourceResolverFactory.getResourceResolver(Collections.<String, Object>singletonMap("user.jcr.session", ctx.getSession()));
+            return getResourceResolver(resourceResolverFactory, ctx.getSession());
         } catch (LoginException e) {
             error("Login Exception", e, ctx);
             return null;
         }
     }
 
+    /**
+     * Return a resource resolver for another session than the install session, e.g. of a worker thread.
+     * @param ctx       The install context, providing the resource resolver factory.
+     * @param session   The session.
+     * @return The resource resolver, to be closed by the caller.
+     * @throws LoginException if no resource resolver factory is available
+     */
+    public static ResourceResolver getResourceResolver(InstallContext ctx, Session session) throws LoginException {
+        return getResourceResolver(getService(ctx, ResourceResolverFactory.class), session);
+    }
+
+    private static ResourceResolver getResourceResolver(ResourceResolverFactory resourceResolverFactory, Session session) throws LoginException {
+        if (resourceResolverFactory == null) {
+            throw new LoginException("No ResourceResolverFactory available");
+        }
+        return resourceResolverFactory.getResourceResolver(Collections.<String, Object>singletonMap("user.jcr.session", session));
+    }
+
+    /**
+     * Opens a new session for the user of the given session, e.g. for work done in a background thread. JCR sessions
+     * must not be shared between threads. The caller has to log out the returned session.
+     * @param session The session to impersonate, usually the install session.
+     * @return A new session of the same user.
+     * @throws RepositoryException
+     */
+    public static Session openWorkerSession(Session session) throws RepositoryException {
+        return session.impersonate(new SimpleCredentials(session.getUserID(), new char[0]));
+    }
+
     public static void save(InstallContext ctx, Session sess)
    			throws RepositoryException {
    		if (sess.hasPendingChanges()) {
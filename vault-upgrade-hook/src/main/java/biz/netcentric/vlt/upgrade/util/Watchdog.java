@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerBase;
+
+/**
+ * Enforces a time budget on a handler: once the budget is exceeded the handler is cancelled. Handlers and scripts
+ * notice the cancellation via {@link UpgradeHandlerBase#checkCancelled()}. The watched thread is not interrupted, as
+ * interrupts may close the file channels of the repository while the thread reads from it.
+ */
+public class Watchdog {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "vault-upgrade-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ScheduledFuture<?> timeout;
+
+    private Watchdog(ScheduledFuture<?> timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Start watching the handler.
+     * @param handler   The handler to cancel.
+     * @param name      The name of the watched item, used in the cancel message.
+     * @param budget    The time budget in ms, 0 or less to disable the watchdog.
+     * @return The started watchdog.
+     */
+    public static Watchdog start(final UpgradeHandlerBase handler, final String name, final long budget) {
+        if (budget <= 0) {
+            return new Watchdog(null);
+        }
+        ScheduledFuture<?> timeout = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                handler.cancel(name + " exceeded its time budget of " + budget + "ms");
+            }
+        }, budget, TimeUnit.MILLISECONDS);
+        return new Watchdog(timeout);
+    }
+
+    /**
+     * Stop the watchdog.
+     */
+    public void stop() {
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+}
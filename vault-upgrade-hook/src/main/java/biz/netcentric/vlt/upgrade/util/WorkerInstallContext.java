@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.VaultPackage;
+
+/**
+ * The install context as seen by a worker thread: everything is delegated to the install, except the session, which
+ * must not be shared between threads. Services passed by a {@link ServiceProvider} install context are passed on.
+ */
+public class WorkerInstallContext implements InstallContext, ServiceProvider {
+
+    private final InstallContext ctx;
+    private final Session session;
+
+    /**
+     * @param ctx       The install context.
+     * @param session   The session of the worker, see {@link Util#openWorkerSession(Session)}.
+     */
+    public WorkerInstallContext(InstallContext ctx, Session session) {
+        this.ctx = ctx;
+        this.session = session;
+    }
+
+    @Override
+    public Session getSession() {
+        return session;
+    }
+
+    @Override
+    public VaultPackage getPackage() {
+        return ctx.getPackage();
+    }
+
+    @Override
+    public Phase getPhase() {
+        return ctx.getPhase();
+    }
+
+    @Override
+    public ImportOptions getOptions() {
+        return ctx.getOptions();
+    }
+
+    @Override
+    public <T> T getService(Class<T> clazz) {
+        return ctx instanceof ServiceProvider ? ((ServiceProvider) ctx).getService(clazz) : null;
+    }
+}
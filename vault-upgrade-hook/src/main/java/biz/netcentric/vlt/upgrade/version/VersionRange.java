@@ -0,0 +1,166 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.version;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A set of versions given as Maven style ranges, e.g. {@code [1.2,2.0)}, {@code (,1.0],[1.5,)} or {@code [1.3]}, minus
+ * a list of excluded versions. The ranges are parsed once into bounds over the packed version form, see
+ * {@link #pack(ArtifactVersion)}, so matching a version costs a few long comparisons. Like the version window of the
+ * upgrade infos, the qualifier is ignored, but the build number is respected.
+ */
+public class VersionRange {
+
+    /**
+     * Contains all versions.
+     */
+    public static final VersionRange ALL = new VersionRange(new long[] { Long.MIN_VALUE }, new long[] { Long.MAX_VALUE }, new long[0]);
+
+    private static final int COMPONENT_BITS = 16;
+    private static final long COMPONENT_MAX = (1L << COMPONENT_BITS) - 1;
+    // one bit less, so the packed form stays positive
+    private static final long MAJOR_MAX = COMPONENT_MAX >> 1;
+
+    // inclusive bounds, exclusive bounds of the ranges are moved by one
+    private final long[] lower;
+    private final long[] upper;
+    private final long[] excluded;
+
+    private VersionRange(long[] lower, long[] upper, long[] excluded) {
+        this.lower = lower;
+        this.upper = upper;
+        this.excluded = excluded;
+    }
+
+    /**
+     * Parse ranges and excluded versions.
+     * @param ranges    Comma separated Maven style ranges, a version without brackets matches only itself. Blank
+     *                  matches all versions.
+     * @param excludes  Versions to exclude.
+     * @return The range.
+     * @throws IllegalArgumentException if a range is malformed
+     */
+    public static VersionRange parse(String ranges, String... excludes) {
+        long[] excluded = new long[excludes.length];
+        for (int i = 0; i < excludes.length; i++) {
+            excluded[i] = pack(new DefaultArtifactVersion(excludes[i].trim()));
+        }
+        Arrays.sort(excluded);
+        if (StringUtils.isBlank(ranges)) {
+            return excluded.length == 0 ? ALL : new VersionRange(ALL.lower, ALL.upper, excluded);
+        }
+
+        List<long[]> bounds = new ArrayList<>();
+        String rest = ranges.trim();
+        while (!rest.isEmpty()) {
+            char open = rest.charAt(0);
+            if (open != '[' && open != '(') {
+                // a single version without brackets
+                int comma = rest.indexOf(',');
+                String version = (comma < 0 ? rest : rest.substring(0, comma)).trim();
+                long packed = pack(new DefaultArtifactVersion(version));
+                bounds.add(new long[] { packed, packed });
+                rest = comma < 0 ? "" : rest.substring(comma + 1).trim();
+                continue;
+            }
+            int close = StringUtils.indexOfAny(rest, "])");
+            if (close < 0) {
+                throw new IllegalArgumentException("Unclosed version range in " + ranges);
+            }
+            bounds.add(parseRange(rest.substring(0, close + 1), ranges));
+            rest = rest.substring(close + 1).trim();
+            if (rest.startsWith(",")) {
+                rest = rest.substring(1).trim();
+            } else if (!rest.isEmpty()) {
+                throw new IllegalArgumentException("Expected ',' after version range in " + ranges);
+            }
+        }
+
+        long[] lower = new long[bounds.size()];
+        long[] upper = new long[bounds.size()];
+        for (int i = 0; i < bounds.size(); i++) {
+            lower[i] = bounds.get(i)[0];
+            upper[i] = bounds.get(i)[1];
+        }
+        return new VersionRange(lower, upper, excluded);
+    }
+
+    private static long[] parseRange(String range, String ranges) {
+        boolean lowerInclusive = range.charAt(0) == '[';
+        boolean upperInclusive = range.charAt(range.length() - 1) == ']';
+        String content = range.substring(1, range.length() - 1);
+        int comma = content.indexOf(',');
+        if (comma < 0) {
+            // [1.0] matches exactly this version
+            if (!lowerInclusive || !upperInclusive || StringUtils.isBlank(content)) {
+                throw new IllegalArgumentException("Invalid version range " + range + " in " + ranges);
+            }
+            long packed = pack(new DefaultArtifactVersion(content.trim()));
+            return new long[] { packed, packed };
+        }
+        String from = content.substring(0, comma).trim();
+        String to = content.substring(comma + 1).trim();
+        long lower = from.isEmpty() ? Long.MIN_VALUE : pack(new DefaultArtifactVersion(from)) + (lowerInclusive ? 0 : 1);
+        long upper = to.isEmpty() ? Long.MAX_VALUE : pack(new DefaultArtifactVersion(to)) - (upperInclusive ? 0 : 1);
+        if (lower > upper) {
+            throw new IllegalArgumentException("Empty version range " + range + " in " + ranges);
+        }
+        return new long[] { lower, upper };
+    }
+
+    /**
+     * Pack the numeric components of a version into a long, 16 bits each for major, minor, incremental version and
+     * build number, so versions compare like their packed forms. Components beyond 65535 and major versions beyond
+     * 32767 are capped.
+     * @param version The version.
+     * @return The packed version.
+     */
+    public static long pack(ArtifactVersion version) {
+        return component(version.getMajorVersion(), MAJOR_MAX) << (3 * COMPONENT_BITS)
+                | component(version.getMinorVersion(), COMPONENT_MAX) << (2 * COMPONENT_BITS)
+                | component(version.getIncrementalVersion(), COMPONENT_MAX) << COMPONENT_BITS
+                | component(version.getBuildNumber(), COMPONENT_MAX);
+    }
+
+    private static long component(int value, long max) {
+        return Math.min(Math.max(value, 0), max);
+    }
+
+    public boolean contains(ArtifactVersion version) {
+        return contains(pack(version));
+    }
+
+    /**
+     * @param packed A packed version.
+     * @return true if the version is in one of the ranges and not excluded.
+     */
+    public boolean contains(long packed) {
+        if (excluded.length > 0 && Arrays.binarySearch(excluded, packed) >= 0) {
+            return false;
+        }
+        for (int i = 0; i < lower.length; i++) {
+            if (packed >= lower[i] && packed <= upper[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if this range contains all versions.
+     */
+    public boolean isAll() {
+        return this == ALL;
+    }
+}
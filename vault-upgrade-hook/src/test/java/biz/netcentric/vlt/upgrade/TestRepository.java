@@ -0,0 +1,57 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade;
+
+import java.io.StringReader;
+
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+
+/**
+ * An in memory Oak repository with the node types the hook writes, for tests which need real sessions, e.g. to see
+ * what concurrent sessions save.
+ */
+public class TestRepository {
+
+    private final Repository repository;
+
+    public TestRepository() throws Exception {
+        repository = new Jcr(new Oak()).createRepository();
+        Session session = login();
+        try {
+            session.getWorkspace().getNamespaceRegistry().registerNamespace("vlt", "http://www.day.com/jcr/vault/1.0");
+            // the status of the upgrades is stored in sling:Folder nodes, as on AEM
+            CndImporter.registerNodeTypes(new StringReader("<sling='http://sling.apache.org/jcr/sling/1.0'>\n"
+                    + "[sling:Folder] > nt:folder\n"
+                    + "  - * (undefined) multiple\n"
+                    + "  - * (undefined)\n"
+                    + "  + * (nt:base) = sling:Folder version"), session);
+        } finally {
+            session.logout();
+        }
+    }
+
+    /**
+     * @return A new admin session, to be logged out by the caller.
+     */
+    public Session login() throws RepositoryException {
+        return repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+    }
+
+    public void shutdown() {
+        ((JackrabbitRepository) repository).shutdown();
+    }
+}
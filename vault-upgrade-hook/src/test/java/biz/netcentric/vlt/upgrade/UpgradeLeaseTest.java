@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UpgradeLeaseTest {
+
+    private static final PackageId PACKAGE_ID = new PackageId("test", "lease-test", "1.0.0");
+    private static final String LOCK_PATH = UpgradeStatusStore.getStatusPath(PACKAGE_ID) + "/" + UpgradeLease.LOCK;
+
+    private TestRepository repository;
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new TestRepository();
+        session = repository.login();
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+        repository.shutdown();
+    }
+
+    @Test
+    public void heldByOneInstallAtATime() throws Exception {
+        UpgradeLease lease = UpgradeLease.acquire(session, PACKAGE_ID, 0, 60000);
+        assertNotNull(lease);
+        assertTrue(lease.isHeld());
+
+        assertNull(UpgradeLease.acquire(session, PACKAGE_ID, 0, 60000));
+
+        lease.release();
+        assertFalse(session.nodeExists(LOCK_PATH));
+        UpgradeLease next = UpgradeLease.acquire(session, PACKAGE_ID, 0, 60000);
+        assertNotNull(next);
+        next.release();
+    }
+
+    @Test
+    public void waitsForRelease() throws Exception {
+        final UpgradeLease lease = UpgradeLease.acquire(session, PACKAGE_ID, 0, 60000);
+        Thread releasing = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                lease.release();
+            }
+        };
+        releasing.start();
+
+        UpgradeLease next = UpgradeLease.acquire(session, PACKAGE_ID, 10000, 60000);
+        assertNotNull(next);
+        assertTrue(next.isHeld());
+        next.release();
+        releasing.join();
+    }
+
+    @Test
+    public void heartbeatKeepsTheLease() throws Exception {
+        UpgradeLease lease = UpgradeLease.acquire(session, PACKAGE_ID, 0, 300);
+
+        // several lease timeouts, renewed every 100ms
+        Thread.sleep(1000);
+
+        assertNull(UpgradeLease.acquire(session, PACKAGE_ID, 0, 300));
+        assertTrue(lease.isHeld());
+        lease.release();
+    }
+
+    @Test
+    public void abandonedLeaseIsTakenOver() throws Exception {
+        UpgradeLease abandoned = UpgradeLease.acquire(session, PACKAGE_ID, 0, 60000);
+        // the heartbeat of a crashed instance stops
+        session.refresh(false);
+        session.getNode(LOCK_PATH).setProperty(UpgradeLease.PN_HEARTBEAT, System.currentTimeMillis() - 60000);
+        session.save();
+
+        UpgradeLease lease = UpgradeLease.acquire(session, PACKAGE_ID, 0, 60000);
+        assertNotNull(lease);
+
+        // the previous holder notices once it checks, and leaves the lock of the new holder untouched
+        assertFalse(abandoned.isHeld());
+        assertTrue(abandoned.isLost());
+        abandoned.release();
+        assertTrue(lease.isHeld());
+        lease.release();
+    }
+
+    @Test
+    public void heartbeatNoticesLostLease() throws Exception {
+        UpgradeLease lease = UpgradeLease.acquire(session, PACKAGE_ID, 0, 300);
+        session.refresh(false);
+        session.getNode(LOCK_PATH).setProperty(UpgradeLease.PN_OWNER, "other");
+        session.save();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!lease.isLost() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertTrue(lease.isLost());
+        assertFalse(lease.isHeld());
+        lease.release();
+        session.refresh(false);
+        assertTrue(session.nodeExists(LOCK_PATH));
+    }
+}
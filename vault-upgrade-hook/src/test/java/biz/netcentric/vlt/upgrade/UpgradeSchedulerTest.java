@@ -0,0 +1,166 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Credentials;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import biz.netcentric.vlt.upgrade.util.ServiceProvider;
+import biz.netcentric.vlt.upgrade.util.Util;
+import biz.netcentric.vlt.upgrade.util.WorkerInstallContext;
+
+public class UpgradeSchedulerTest {
+
+    @Test
+    public void keepsOrderWithoutDependencies() throws Exception {
+        UpgradeInfo a = info("a", "1.0");
+        UpgradeInfo b = info("b", "1.1");
+        UpgradeInfo c = info("c", "1.2");
+
+        assertEquals(Arrays.asList(a, b, c), new UpgradeScheduler(Arrays.asList(a, b, c)).getOrder());
+    }
+
+    @Test
+    public void runsDependenciesFirst() throws Exception {
+        UpgradeInfo a = info("a", "1.0");
+        UpgradeInfo b = info("b", "1.1", "d");
+        UpgradeInfo c = info("c", "1.2");
+        UpgradeInfo d = info("d", "1.3", "c");
+
+        // b waits for d, which waits for c; ties keep the version order
+        assertEquals(Arrays.asList(a, c, d, b), new UpgradeScheduler(Arrays.asList(a, b, c, d)).getOrder());
+    }
+
+    @Test
+    public void unknownDependency() {
+        try {
+            new UpgradeScheduler(Arrays.asList(info("a", "1.0", "missing")));
+            fail("unknown dependency accepted");
+        } catch (PackageException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("missing"));
+        }
+    }
+
+    @Test
+    public void cycle() {
+        try {
+            new UpgradeScheduler(Arrays.asList(info("a", "1.0", "c"), info("b", "1.1"), info("c", "1.2", "a")));
+            fail("cycle accepted");
+        } catch (PackageException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("a, c"));
+        }
+    }
+
+    @Test(expected = PackageException.class)
+    public void selfDependency() throws Exception {
+        new UpgradeScheduler(Arrays.asList(info("a", "1.0", "a")));
+    }
+
+    @Test
+    public void runsIncludedInfosInOrder() throws Exception {
+        UpgradeInfo a = info("a", "1.0", "c");
+        UpgradeInfo b = info("b", "1.1");
+        UpgradeInfo c = info("c", "1.2");
+        UpgradeScheduler scheduler = new UpgradeScheduler(Arrays.asList(a, b, c));
+        final List<UpgradeInfo> executed = new ArrayList<>();
+
+        scheduler.run(Arrays.asList(a, c), 1, null, new UpgradeScheduler.Execution() {
+            @Override
+            public void execute(UpgradeInfo upgradeInfo, InstallContext ctx) {
+                executed.add(upgradeInfo);
+            }
+        });
+
+        assertEquals(Arrays.asList(c, a), executed);
+        assertNull(scheduler.getFailedInfo());
+    }
+
+    @Test
+    public void stopsAtFirstFailure() throws Exception {
+        final UpgradeInfo a = info("a", "1.0");
+        UpgradeInfo b = info("b", "1.1");
+        UpgradeScheduler scheduler = new UpgradeScheduler(Arrays.asList(a, b));
+        final List<UpgradeInfo> executed = new ArrayList<>();
+
+        try {
+            scheduler.run(Arrays.asList(a, b), 1, null, new UpgradeScheduler.Execution() {
+                @Override
+                public void execute(UpgradeInfo upgradeInfo, InstallContext ctx) throws Exception {
+                    executed.add(upgradeInfo);
+                    if (upgradeInfo == a) {
+                        throw new IllegalStateException("failed");
+                    }
+                }
+            });
+            fail("failure not rethrown");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+
+        assertEquals(Arrays.asList(a), executed);
+        assertSame(a, scheduler.getFailedInfo());
+    }
+
+    @Test
+    public void workersResolveServicesOfTheInstallContext() throws Exception {
+        Session installSession = mock(Session.class);
+        Session workerSession = mock(Session.class);
+        when(installSession.getUserID()).thenReturn("admin");
+        when(installSession.impersonate(Matchers.any(Credentials.class))).thenReturn(workerSession);
+        final Runnable service = mock(Runnable.class);
+        InstallContext ctx = mock(InstallContext.class, withSettings().extraInterfaces(ServiceProvider.class));
+        when(ctx.getSession()).thenReturn(installSession);
+        when(((ServiceProvider) ctx).getService(Runnable.class)).thenReturn(service);
+
+        UpgradeInfo a = info("a", "1.0");
+        UpgradeInfo b = info("b", "1.1");
+        final List<Object> resolved = Collections.synchronizedList(new ArrayList<Object>());
+        new UpgradeScheduler(Arrays.asList(a, b)).run(Arrays.asList(a, b), 2, ctx, new UpgradeScheduler.Execution() {
+            @Override
+            public void execute(UpgradeInfo upgradeInfo, InstallContext workerCtx) {
+                assertTrue(workerCtx instanceof WorkerInstallContext);
+                resolved.add(Util.getService(workerCtx, Runnable.class));
+            }
+        });
+
+        assertEquals(Arrays.<Object>asList(service, service), resolved);
+        verify(workerSession, times(2)).logout();
+    }
+
+    private static UpgradeInfo info(String name, String version, String... dependsOn) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("version", version);
+        config.put("dependsOn", dependsOn);
+        return new UpgradeInfo(name, "/etc/upgrader/" + name, new ValueMapDecorator(config), null, null);
+    }
+}
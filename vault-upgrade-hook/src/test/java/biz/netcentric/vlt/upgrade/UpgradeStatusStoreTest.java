@@ -0,0 +1,169 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import biz.netcentric.vlt.upgrade.util.Measurement;
+
+public class UpgradeStatusStoreTest {
+
+    private static final PackageId PACKAGE_ID = new PackageId("test", "status-test", "1.1.0");
+
+    private TestRepository repository;
+    private Session session;
+    private InstallContext ctx;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new TestRepository();
+        session = repository.login();
+        ctx = mock(InstallContext.class);
+        when(ctx.getOptions()).thenReturn(new ImportOptions());
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+        repository.shutdown();
+    }
+
+    @Test
+    public void writesQueuedStatusOnSuccess() throws Exception {
+        UpgradeStatusStore store = new UpgradeStatusStore(session);
+        store.storeFailure(PACKAGE_ID, "failed before");
+        store.storeVersion(PACKAGE_ID, "1.1.0", "0a1b");
+        store.storeFingerprint(PACKAGE_ID, "a", "2c3d");
+        store.storeMeasurements(PACKAGE_ID, "a", Measurement.start("a").stop(), Collections.<Measurement>emptyList());
+
+        // queued statuses are read by the install, but not written before it ends
+        assertEquals("1.1.0", store.getVersion(PACKAGE_ID));
+        assertEquals("2c3d", store.getFingerprint(PACKAGE_ID, "a"));
+        assertFalse(session.getNode(UpgradeStatusStore.getStatusPath(PACKAGE_ID)).hasProperty("version"));
+
+        store.close(ctx, true);
+
+        assertFalse(session.hasPendingChanges());
+        Session reader = repository.login();
+        try {
+            Node status = reader.getNode(UpgradeStatusStore.getStatusPath(PACKAGE_ID));
+            assertEquals("1.1.0", status.getProperty("version").getString());
+            assertFalse(status.hasProperty("failure"));
+            Node info = reader.getNode(UpgradeStatusStore.getInfoStatusPath(PACKAGE_ID, "a"));
+            assertEquals("2c3d", info.getProperty("fingerprint").getString());
+            assertTrue(info.hasProperty("wallTime"));
+        } finally {
+            reader.logout();
+        }
+    }
+
+    @Test
+    public void discardsQueuedStatusOnFailure() throws Exception {
+        // changes of the install itself are left to Vault
+        session.getRootNode().addNode("content", JcrConstants.NT_UNSTRUCTURED);
+        UpgradeStatusStore store = new UpgradeStatusStore(session);
+        store.storeVersion(PACKAGE_ID, "1.1.0", "0a1b");
+        store.storeFingerprint(PACKAGE_ID, "a", "2c3d");
+
+        store.close(ctx, false);
+
+        assertTrue(session.hasPendingChanges());
+        assertFalse(session.nodeExists(UpgradeStatusStore.getStatusPath(PACKAGE_ID)));
+        // nothing is left queued for a later close
+        session.refresh(false);
+        store.close(ctx, true);
+        assertFalse(session.nodeExists(UpgradeStatusStore.getStatusPath(PACKAGE_ID)));
+    }
+
+    @Test
+    public void storesFailureImmediately() throws Exception {
+        UpgradeStatusStore store = new UpgradeStatusStore(session);
+        store.storeVersion(PACKAGE_ID, "1.0.0");
+        store.close(ctx, true);
+
+        store = new UpgradeStatusStore(session);
+        store.storeVersion(PACKAGE_ID, "1.1.0");
+        store.storeFailure(PACKAGE_ID, "a: failed");
+
+        Session reader = repository.login();
+        try {
+            Node status = reader.getNode(UpgradeStatusStore.getStatusPath(PACKAGE_ID));
+            assertEquals("a: failed", status.getProperty("failure").getString());
+            assertTrue(status.hasProperty("failureTime"));
+            // the version of the failed install is not stored
+            assertEquals("1.0.0", status.getProperty("version").getString());
+        } finally {
+            reader.logout();
+        }
+    }
+
+    @Test
+    public void unchangedOnceStoredWithTheSameFingerprint() throws Exception {
+        UpgradeStatusStore store = new UpgradeStatusStore(session);
+        store.storeVersion(PACKAGE_ID, "1.1.0", "0a1b");
+        // queued statuses don't count, the install may still fail
+        assertFalse(store.isUnchanged(PACKAGE_ID, "1.1.0", "0a1b"));
+
+        store.close(ctx, true);
+
+        assertTrue(store.isUnchanged(PACKAGE_ID, "1.1.0", "0a1b"));
+        assertFalse(store.isUnchanged(PACKAGE_ID, "1.1.0", "4e5f"));
+        assertFalse(store.isUnchanged(PACKAGE_ID, "1.2.0", "0a1b"));
+        assertFalse(store.isUnchanged(PACKAGE_ID, "1.1.0", null));
+
+        // a version stored without fingerprint never matches
+        store.storeVersion(PACKAGE_ID, "1.1.0");
+        store.close(ctx, true);
+        assertFalse(store.isUnchanged(PACKAGE_ID, "1.1.0", "0a1b"));
+    }
+
+    @Test
+    public void reloadReadsStatusStoredMeanwhile() throws Exception {
+        UpgradeStatusStore store = new UpgradeStatusStore(session);
+        assertNull(store.getVersion(PACKAGE_ID));
+        store.storeFingerprint(PACKAGE_ID, "b", "4e5f");
+
+        Session other = repository.login();
+        try {
+            UpgradeStatusStore otherStore = new UpgradeStatusStore(other);
+            otherStore.storeVersion(PACKAGE_ID, "1.1.0");
+            otherStore.storeFingerprint(PACKAGE_ID, "a", "2c3d");
+            otherStore.close(ctx, true);
+        } finally {
+            other.logout();
+        }
+
+        // cached until reloaded
+        assertNull(store.getVersion(PACKAGE_ID));
+        session.refresh(true);
+        store.reload();
+        assertEquals("1.1.0", store.getVersion(PACKAGE_ID));
+        assertEquals("2c3d", store.getFingerprint(PACKAGE_ID, "a"));
+        // queued by this install
+        assertEquals("4e5f", store.getFingerprint(PACKAGE_ID, "b"));
+    }
+}
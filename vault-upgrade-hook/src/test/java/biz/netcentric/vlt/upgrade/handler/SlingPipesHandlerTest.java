@@ -0,0 +1,169 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.InstallContext.Phase;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.pipes.Pipe;
+import org.apache.sling.pipes.Plumber;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import biz.netcentric.vlt.upgrade.TestRepository;
+import biz.netcentric.vlt.upgrade.UpgradeInfo;
+import biz.netcentric.vlt.upgrade.util.JcrResourceResolver;
+import biz.netcentric.vlt.upgrade.util.Measurement;
+import biz.netcentric.vlt.upgrade.util.ServiceProvider;
+
+public class SlingPipesHandlerTest {
+
+    private static final String PIPE_PATH = "/etc/upgrader/pipes/install-pipe";
+
+    private TestRepository repository;
+    private Session session;
+    private InstallContext ctx;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new TestRepository();
+        session = repository.login();
+        Node root = JcrUtils.getOrCreateByPath("/content/root", JcrConstants.NT_UNSTRUCTURED, session);
+        for (String name : new String[] { "p1", "p2", "p3", "p4" }) {
+            root.addNode(name, JcrConstants.NT_UNSTRUCTURED);
+        }
+        Node pipe = JcrUtils.getOrCreateByPath(PIPE_PATH, JcrConstants.NT_UNSTRUCTURED, session);
+        pipe.setProperty("sling:resourceType", "slingPipes/base");
+        pipe.setProperty("path", "/content/root");
+        pipe.setProperty("partition", "children");
+        pipe.setProperty("partitionThreads", 2L);
+        session.save();
+
+        ctx = mock(InstallContext.class, withSettings().extraInterfaces(ServiceProvider.class));
+        when(ctx.getSession()).thenReturn(session);
+        when(ctx.getPhase()).thenReturn(Phase.INSTALLED);
+        when(ctx.getOptions()).thenReturn(new ImportOptions());
+        when(((ServiceProvider) ctx).getService(ResourceResolverFactory.class)).thenReturn(JcrResourceResolver.createFactory());
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+        repository.shutdown();
+    }
+
+    @Test
+    public void aggregatesFailedPartitions() throws Exception {
+        SlingPipesHandler handler = handler(plumber("p2", "p4"));
+
+        try {
+            handler.execute(ctx);
+            fail("failed partitions not reported");
+        } catch (RepositoryException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("install-pipe failed on 2 partition(s), last error: "
+                    + "Exception running sling pipe install-pipe on /content/root/p"));
+            assertTrue(e.getMessage(), e.getMessage().endsWith(" broken"));
+        }
+
+        // the partitions which completed stay committed
+        session.refresh(false);
+        assertTrue(session.getNode("/content/root/p1").hasProperty("piped"));
+        assertFalse(session.getNode("/content/root/p2").hasProperty("piped"));
+        assertTrue(session.getNode("/content/root/p3").hasProperty("piped"));
+        assertFalse(session.getNode("/content/root/p4").hasProperty("piped"));
+        List<String> measured = new ArrayList<>();
+        for (Measurement measurement : handler.getMeasurements()) {
+            measured.add(measurement.getName());
+        }
+        Collections.sort(measured);
+        // one per partition, and the pipe itself
+        assertEquals(Arrays.asList("install-pipe", "install-pipe@p1", "install-pipe@p2", "install-pipe@p3", "install-pipe@p4"), measured);
+    }
+
+    @Test
+    public void succeedsIfAllPartitionsSucceed() throws Exception {
+        handler(plumber()).execute(ctx);
+
+        session.refresh(false);
+        for (String name : new String[] { "p1", "p2", "p3", "p4" }) {
+            assertTrue(name, session.getNode("/content/root/" + name).hasProperty("piped"));
+        }
+    }
+
+    private SlingPipesHandler handler(Plumber plumber) {
+        when(((ServiceProvider) ctx).getService(Plumber.class)).thenReturn(plumber);
+        Map<Phase, List<String>> scripts = new HashMap<>();
+        for (Phase phase : Phase.values()) {
+            scripts.put(phase, new ArrayList<String>());
+        }
+        scripts.get(Phase.INSTALLED).add(PIPE_PATH);
+        SlingPipesHandler handler = new SlingPipesHandler();
+        handler.setUpgradeInfo(new UpgradeInfo("pipes", "/etc/upgrader/pipes", new ValueMapDecorator(new HashMap<String, Object>()), scripts, ctx));
+        return handler;
+    }
+
+    /**
+     * @return A plumber whose pipes set a property on the root of their partition, and fail after doing so on the
+     * given partitions.
+     */
+    private static Plumber plumber(final String... failing) {
+        Plumber plumber = mock(Plumber.class);
+        when(plumber.getPipe(Matchers.any(Resource.class))).thenAnswer(new Answer<Pipe>() {
+            @Override
+            public Pipe answer(InvocationOnMock invocation) throws Throwable {
+                Resource definition = (Resource) invocation.getArguments()[0];
+                final String path = definition.adaptTo(ValueMap.class).get("path", String.class);
+                final Session session = definition.getResourceResolver().adaptTo(Session.class);
+                Pipe pipe = mock(Pipe.class);
+                when(pipe.modifiesContent()).thenReturn(true);
+                when(pipe.getOutput()).thenAnswer(new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) throws Throwable {
+                        session.getNode(path).setProperty("piped", true);
+                        if (Arrays.asList(failing).contains(path.substring(path.lastIndexOf('/') + 1))) {
+                            throw new IllegalStateException("broken");
+                        }
+                        return Collections.<Resource>emptyIterator();
+                    }
+                });
+                return pipe;
+            }
+        });
+        return plumber;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Value;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Test;
+
+public class BulkRuleSetTest {
+
+    @Test
+    public void dispatchesByResourceType() throws Exception {
+        BulkRule teaser = BulkRule.create("a", config("type", "rename", "property", "title", "to", "jcr:title", "filterResourceType", "app/teaser"));
+        BulkRule all = BulkRule.create("b", config("type", "rename", "property", "text", "to", "jcr:text"));
+        BulkRuleSet rules = new BulkRuleSet(Arrays.asList(teaser, all));
+
+        assertEquals(Arrays.asList(teaser, all), rules.getRules("app/teaser"));
+        assertEquals(Arrays.asList(all), rules.getRules("app/image"));
+        assertEquals(Arrays.asList(all), rules.getRules(null));
+    }
+
+    @Test
+    public void rulesAfterResourceTypeRuleSeeTheNewResourceType() throws Exception {
+        BulkRule change = BulkRule.create("a", config("type", "resourceType", "from", "app/old", "to", "app/new"));
+        BulkRule onNew = BulkRule.create("b", config("type", "rename", "property", "title", "to", "jcr:title", "filterResourceType", "app/new"));
+        BulkRule onOld = BulkRule.create("c", config("type", "rename", "property", "text", "to", "jcr:text", "filterResourceType", "app/old"));
+        BulkRuleSet rules = new BulkRuleSet(Arrays.asList(change, onNew, onOld));
+        Node node = node("app/old", "title", "text");
+
+        assertEquals(2, rules.apply(node));
+        verify(node).setProperty("sling:resourceType", "app/new");
+        verify(node).setProperty("jcr:title", (Value) null, 0);
+        verify(node, never()).setProperty("jcr:text", (Value) null, 0);
+    }
+
+    @Test
+    public void rulesBeforeResourceTypeRuleAreNotRepeated() throws Exception {
+        BulkRule onNew = BulkRule.create("a", config("type", "rename", "property", "title", "to", "jcr:title", "filterResourceType", "app/new"));
+        BulkRule change = BulkRule.create("b", config("type", "resourceType", "from", "app/old", "to", "app/new"));
+        BulkRuleSet rules = new BulkRuleSet(Arrays.asList(onNew, change));
+
+        assertEquals(Arrays.<BulkRule>asList(), rules.getRulesAfter(change, "app/new"));
+        assertEquals(1, rules.apply(node("app/old", "title")));
+    }
+
+    private static Node node(String resourceType, String... properties) throws Exception {
+        Node node = mock(Node.class);
+        Property type = mock(Property.class);
+        when(type.getString()).thenReturn(resourceType);
+        when(node.hasProperty("sling:resourceType")).thenReturn(true);
+        when(node.getProperty("sling:resourceType")).thenReturn(type);
+        for (String name : properties) {
+            when(node.hasProperty(name)).thenReturn(true);
+            when(node.getProperty(name)).thenReturn(mock(Property.class));
+        }
+        return node;
+    }
+
+    private static ValueMap config(String... properties) {
+        Map<String, Object> config = new HashMap<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            config.put(properties[i], properties[i + 1]);
+        }
+        return new ValueMapDecorator(config);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.handler.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Test;
+
+public class BulkRuleTest {
+
+    @Test
+    public void rename() throws Exception {
+        RenamePropertyRule rule = (RenamePropertyRule) BulkRule.create("rename", config("type", "rename", "property", "title", "to", "jcr:title"));
+
+        assertEquals("title", rule.getProperty());
+        assertEquals("jcr:title", rule.getTo());
+        assertNull(rule.getResourceType());
+        assertTrue(rule.isPropertyRule());
+    }
+
+    @Test
+    public void map() throws Exception {
+        ValueMap config = config("type", "Map", "property", "size", "filterResourceType", "app/text");
+        config.put("mapping", new String[] { "s=small", "m=medium=large" });
+        MapValueRule rule = (MapValueRule) BulkRule.create("map", config);
+
+        assertEquals("size", rule.getProperty());
+        assertEquals("small", rule.map("s"));
+        assertEquals("medium=large", rule.map("m"));
+        assertNull(rule.map("l"));
+        assertEquals("app/text", rule.getResourceType());
+    }
+
+    @Test
+    public void resourceType() throws Exception {
+        ResourceTypeRule rule = (ResourceTypeRule) BulkRule.create("resourceType", config("type", "resourceType", "from", "app/old", "to", "app/new"));
+
+        // restricted to the resource type it replaces
+        assertEquals("app/old", rule.getResourceType());
+        assertEquals("app/new", rule.getTo());
+    }
+
+    @Test
+    public void move() throws Exception {
+        BulkRule rule = BulkRule.create("move", config("type", "MOVE", "from", "image", "to", "media/image", "filterPrimaryType", "nt:unstructured"));
+
+        assertTrue(rule instanceof MoveRule);
+        assertFalse(rule.isPropertyRule());
+        assertTrue(rule.matchesPrimaryType("nt:unstructured"));
+        assertFalse(rule.matchesPrimaryType("cq:Page"));
+    }
+
+    @Test
+    public void unknownType() {
+        assertInvalid(config("type", "copy"), "Unknown type 'copy'");
+        assertInvalid(config("property", "title"), "Unknown type ''");
+    }
+
+    @Test
+    public void missingProperties() {
+        assertInvalid(config("type", "rename", "property", "title"), "requires the property to");
+        assertInvalid(config("type", "map"), "requires the property property");
+        assertInvalid(config("type", "resourceType", "to", "app/new"), "requires the property from");
+        assertInvalid(config("type", "move", "from", "image"), "requires the property to");
+    }
+
+    @Test
+    public void invalidMapping() {
+        ValueMap config = config("type", "map", "property", "size");
+        config.put("mapping", new String[] { "small" });
+
+        assertInvalid(config, "mapping without '='");
+    }
+
+    @Test
+    public void absoluteMove() {
+        assertInvalid(config("type", "move", "from", "/content/image", "to", "image"), "requires relative paths");
+    }
+
+    private static void assertInvalid(ValueMap config, String message) {
+        try {
+            BulkRule.create("rule", config);
+            fail("accepted " + config);
+        } catch (RepositoryException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static ValueMap config(String... properties) {
+        Map<String, Object> config = new HashMap<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            config.put(properties[i], properties[i + 1]);
+        }
+        return new ValueMapDecorator(config);
+    }
+}
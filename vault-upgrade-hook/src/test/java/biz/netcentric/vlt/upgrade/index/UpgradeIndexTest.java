@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.InstallContext.Phase;
+import org.apache.jackrabbit.vault.packaging.VaultPackage;
+import org.junit.Test;
+
+import biz.netcentric.vlt.upgrade.UpgradeInfo;
+
+public class UpgradeIndexTest {
+
+    @Test
+    public void parseScalars() {
+        assertEquals("text", UpgradeIndex.parseValue("text"));
+        assertEquals("{text}", UpgradeIndex.parseValue("\\{text}"));
+        assertEquals(5L, UpgradeIndex.parseValue("{Long}5"));
+        assertEquals(true, UpgradeIndex.parseValue("{Boolean}true"));
+        assertEquals(1.5, UpgradeIndex.parseValue("{Double}1.5"));
+        assertEquals(1.5, UpgradeIndex.parseValue("{Decimal}1.5"));
+
+        Calendar date = (Calendar) UpgradeIndex.parseValue("{Date}2016-03-01T10:00:00.000Z");
+        assertEquals(2016, date.get(Calendar.YEAR));
+        assertEquals(Calendar.MARCH, date.get(Calendar.MONTH));
+    }
+
+    @Test
+    public void parseArrays() {
+        assertArrayEquals(new String[] { "a", "b" }, (String[]) UpgradeIndex.parseValue("[a,b]"));
+        assertArrayEquals(new String[] { "a,b", "c" }, (String[]) UpgradeIndex.parseValue("[a\\,b,c]"));
+        assertArrayEquals(new String[0], (String[]) UpgradeIndex.parseValue("[]"));
+        assertArrayEquals(new Long[] { 1L, 2L }, (Long[]) UpgradeIndex.parseValue("{Long}[1,2]"));
+        assertArrayEquals(new Boolean[] { true, false }, (Boolean[]) UpgradeIndex.parseValue("{Boolean}[true,false]"));
+        assertArrayEquals(new Double[] { 0.5, 2.0 }, (Double[]) UpgradeIndex.parseValue("{Double}[0.5,2]"));
+
+        Calendar[] dates = (Calendar[]) UpgradeIndex.parseValue("{Date}[2016-03-01T10:00:00.000Z,2017-03-01T10:00:00.000Z]");
+        assertEquals(2, dates.length);
+        assertEquals(2017, dates[1].get(Calendar.YEAR));
+    }
+
+    @Test
+    public void readsInfosInIndexOrder() throws Exception {
+        InstallContext ctx = context("infos=b,a\n"
+                + "info.0.version=1.0\n"
+                + "info.0.priority={Long}5\n"
+                + "info.0.dependsOn=[a]\n"
+                + "info.1.version=1.1\n"
+                + "scripts.0.INSTALLED=install.groovy,install2.groovy\n"
+                + "scripts.0.END=end.groovy\n"
+                + "digest=0a1b2c\n");
+        UpgradeIndex index = UpgradeIndex.read(ctx);
+
+        assertEquals("0a1b2c", index.getDigest());
+        List<UpgradeInfo> infos = index.getUpgradeInfos("/etc/upgrader", ctx);
+        assertEquals(2, infos.size());
+
+        UpgradeInfo b = infos.get(0);
+        assertEquals("b", b.getName());
+        assertEquals("/etc/upgrader/b", b.getPath());
+        assertEquals("1.0", b.getVersion().toString());
+        assertEquals(5L, (long) b.getConfig().get("priority", Long.class));
+        assertEquals(Arrays.asList("a"), b.getDependsOn());
+        assertEquals(Arrays.asList("/etc/upgrader/b/install.groovy", "/etc/upgrader/b/install2.groovy"), b.getScripts().get(Phase.INSTALLED));
+        assertEquals(Arrays.asList("/etc/upgrader/b/end.groovy"), b.getScripts().get(Phase.END));
+        assertTrue(b.getScripts().get(Phase.PREPARE).isEmpty());
+
+        UpgradeInfo a = infos.get(1);
+        assertEquals("a", a.getName());
+        assertNull(a.getScripts());
+    }
+
+    @Test
+    public void digestOfOlderIndex() throws Exception {
+        InstallContext ctx = context("infos=a\ninfo.0.version=1.0\n");
+
+        assertNull(UpgradeIndex.read(ctx).getDigest());
+    }
+
+    @Test
+    public void packageWithoutIndex() throws Exception {
+        assertNull(UpgradeIndex.read(context(null)));
+    }
+
+    private static InstallContext context(String index) throws Exception {
+        Archive archive = mock(Archive.class);
+        if (index != null) {
+            Archive.Entry entry = mock(Archive.Entry.class);
+            when(archive.getEntry(UpgradeIndex.INDEX_PATH)).thenReturn(entry);
+            when(archive.openInputStream(entry)).thenReturn(new ByteArrayInputStream(index.getBytes("ISO-8859-1")));
+        }
+        VaultPackage vaultPackage = mock(VaultPackage.class);
+        when(vaultPackage.getArchive()).thenReturn(archive);
+        InstallContext ctx = mock(InstallContext.class);
+        when(ctx.getPackage()).thenReturn(vaultPackage);
+        return ctx;
+    }
+}
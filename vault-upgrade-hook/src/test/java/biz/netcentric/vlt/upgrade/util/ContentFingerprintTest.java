@@ -0,0 +1,235 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RangeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ContentFingerprintTest {
+
+    @Test
+    public void sameContent() throws Exception {
+        assertEquals(fingerprint(tree("a")), fingerprint(tree("a")));
+    }
+
+    @Test
+    public void ignoresStampsAndIdentifiers() throws Exception {
+        Map<String, Object> properties = properties("title", "a");
+        properties.put("jcr:created", "2016-01-01T00:00:00.000Z");
+        properties.put("jcr:lastModified", "2016-01-02T00:00:00.000Z");
+        properties.put("jcr:uuid", "0b1c2d3e");
+
+        assertEquals(fingerprint(node("content", properties("title", "a"))), fingerprint(node("content", properties)));
+    }
+
+    @Test
+    public void ignoresPropertyOrder() throws Exception {
+        Map<String, Object> properties = properties("title", "a");
+        properties.put("description", "b");
+        Map<String, Object> reordered = properties("description", "b");
+        reordered.put("title", "a");
+
+        assertEquals(fingerprint(node("content", properties)), fingerprint(node("content", reordered)));
+    }
+
+    @Test
+    public void changedContent() throws Exception {
+        String fingerprint = fingerprint(tree("a"));
+
+        assertNotEquals(fingerprint, fingerprint(tree("b")));
+        assertNotEquals(fingerprint, fingerprint(node("content", properties("title", "a"))));
+        assertNotEquals(fingerprint, fingerprint(node("content", properties("title", "a"),
+                node("renamed", properties("text", "a")))));
+    }
+
+    @Test
+    public void separatesValues() throws Exception {
+        assertNotEquals(fingerprint(node("content", properties("tags", new String[] { "ab" }))),
+                fingerprint(node("content", properties("tags", new String[] { "a", "b" }))));
+        assertNotEquals(fingerprint(node("content", properties("a", "b"))),
+                fingerprint(node("content", properties("ab", ""))));
+    }
+
+    @Test
+    public void binaries() throws Exception {
+        String fingerprint = fingerprint(node("file", properties("jcr:data", new byte[] { 1, 2, 3 })));
+
+        assertEquals(fingerprint, fingerprint(node("file", properties("jcr:data", new byte[] { 1, 2, 3 }))));
+        assertNotEquals(fingerprint, fingerprint(node("file", properties("jcr:data", new byte[] { 1, 2, 4 }))));
+    }
+
+    private static String fingerprint(Node node) throws RepositoryException {
+        return ContentFingerprint.compute(node);
+    }
+
+    private static Node tree(String text) throws RepositoryException {
+        return node("content", properties("title", "a"), node("child", properties("text", text)));
+    }
+
+    private static Map<String, Object> properties(String name, Object value) {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put(name, value);
+        return properties;
+    }
+
+    private static Node node(String name, Map<String, Object> properties, final Node... children) throws RepositoryException {
+        final List<Property> mocks = new ArrayList<>();
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            mocks.add(property(property.getKey(), property.getValue()));
+        }
+        Node node = mock(Node.class);
+        when(node.getName()).thenReturn(name);
+        when(node.getProperties()).thenAnswer(new Answer<PropertyIterator>() {
+            @Override
+            public PropertyIterator answer(InvocationOnMock invocation) {
+                return new Properties(mocks);
+            }
+        });
+        when(node.getNodes()).thenAnswer(new Answer<NodeIterator>() {
+            @Override
+            public NodeIterator answer(InvocationOnMock invocation) {
+                return new Nodes(Arrays.asList(children));
+            }
+        });
+        return node;
+    }
+
+    private static Property property(String name, Object value) throws RepositoryException {
+        Property property = mock(Property.class);
+        when(property.getName()).thenReturn(name);
+        if (value instanceof String[]) {
+            String[] strings = (String[]) value;
+            Value[] values = new Value[strings.length];
+            for (int i = 0; i < strings.length; i++) {
+                values[i] = value(strings[i]);
+            }
+            when(property.isMultiple()).thenReturn(true);
+            when(property.getValues()).thenReturn(values);
+        } else {
+            Value single = value instanceof byte[] ? binary((byte[]) value) : value((String) value);
+            when(property.getValue()).thenReturn(single);
+        }
+        return property;
+    }
+
+    private static Value value(String string) throws RepositoryException {
+        Value value = mock(Value.class);
+        when(value.getType()).thenReturn(PropertyType.STRING);
+        when(value.getString()).thenReturn(string);
+        return value;
+    }
+
+    private static Value binary(final byte[] bytes) throws RepositoryException {
+        Binary binary = mock(Binary.class);
+        when(binary.getSize()).thenReturn((long) bytes.length);
+        when(binary.getStream()).thenAnswer(new Answer<ByteArrayInputStream>() {
+            @Override
+            public ByteArrayInputStream answer(InvocationOnMock invocation) {
+                return new ByteArrayInputStream(bytes);
+            }
+        });
+        Value value = mock(Value.class);
+        when(value.getType()).thenReturn(PropertyType.BINARY);
+        when(value.getBinary()).thenReturn(binary);
+        return value;
+    }
+
+    private static class Items<T> implements RangeIterator {
+
+        private final Iterator<T> items;
+        private final long size;
+        private long position;
+
+        private Items(List<T> items) {
+            this.items = items.iterator();
+            this.size = items.size();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return items.hasNext();
+        }
+
+        @Override
+        public T next() {
+            position++;
+            return items.next();
+        }
+
+        @Override
+        public void skip(long skipNum) {
+            for (long i = 0; i < skipNum; i++) {
+                next();
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class Nodes extends Items<Node> implements NodeIterator {
+
+        private Nodes(List<Node> nodes) {
+            super(nodes);
+        }
+
+        @Override
+        public Node nextNode() {
+            return next();
+        }
+    }
+
+    private static class Properties extends Items<Property> implements PropertyIterator {
+
+        private Properties(List<Property> properties) {
+            super(properties);
+        }
+
+        @Override
+        public Property nextProperty() {
+            return next();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import biz.netcentric.vlt.upgrade.TestRepository;
+
+public class PagedQueryTest {
+
+    private static final String STATEMENT = "SELECT * FROM [nt:unstructured] AS n WHERE ISCHILDNODE(n, '/content/query')";
+
+    private TestRepository repository;
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new TestRepository();
+        session = repository.login();
+        Node parent = JcrUtils.getOrCreateByPath("/content/query", JcrConstants.NT_UNSTRUCTURED, session);
+        for (int i = 0; i < 10; i++) {
+            parent.addNode("n" + i, JcrConstants.NT_UNSTRUCTURED);
+        }
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+        repository.shutdown();
+    }
+
+    @Test
+    public void streamsResultInPages() throws Exception {
+        PagedQuery query = new PagedQuery(session, Query.JCR_SQL2, STATEMENT, 3);
+        List<String> paths = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        try {
+            for (List<String> page = query.nextPage(); page != null; page = query.nextPage()) {
+                sizes.add(page.size());
+                paths.addAll(page);
+            }
+            assertNull(query.nextPage());
+        } finally {
+            query.close();
+        }
+
+        Collections.sort(paths);
+        assertEquals(10, paths.size());
+        assertEquals("/content/query/n0", paths.get(0));
+        assertEquals("[3, 3, 3, 1]", sizes.toString());
+    }
+
+    @Test
+    public void closeStopsBlockedProducer() throws Exception {
+        // one path per page: the producer fills the prefetch queue and blocks long before the result is exhausted
+        PagedQuery query = new PagedQuery(session, Query.JCR_SQL2, STATEMENT, 1);
+        assertNotNull(query.nextPage());
+        Thread.sleep(300);
+        assertTrue(isProducerAlive());
+
+        long start = System.currentTimeMillis();
+        query.close();
+
+        assertTrue("close took " + (System.currentTimeMillis() - start) + "ms", System.currentTimeMillis() - start < 1000);
+        assertFalse(isProducerAlive());
+    }
+
+    @Test
+    public void reportsQueryFailure() throws Exception {
+        PagedQuery query = new PagedQuery(session, Query.JCR_SQL2, "SELECT * FROM", 3);
+        try {
+            query.nextPage();
+            fail("invalid query accepted");
+        } catch (RepositoryException e) {
+            // expected
+        } finally {
+            query.close();
+        }
+        assertNull(query.nextPage());
+    }
+
+    private static boolean isProducerAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("vault-upgrade-paged-query".equals(thread.getName()) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
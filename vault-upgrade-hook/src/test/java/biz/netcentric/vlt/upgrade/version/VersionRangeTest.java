@@ -0,0 +1,132 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.version;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class VersionRangeTest {
+
+    @Test
+    public void packKeepsVersionOrder() {
+        String[] ordered = { "0.0.1", "1.0", "1.0-1", "1.0.1", "1.9", "1.10", "2.0", "32767.0" };
+        for (int i = 1; i < ordered.length; i++) {
+            assertTrue(ordered[i - 1] + " < " + ordered[i], pack(ordered[i - 1]) < pack(ordered[i]));
+        }
+    }
+
+    @Test
+    public void packIgnoresQualifier() {
+        assertEquals(pack("1.2.3"), pack("1.2.3-SNAPSHOT"));
+    }
+
+    @Test
+    public void packCapsComponents() {
+        assertEquals(pack("1.65535"), pack("1.70000"));
+        assertEquals(pack("32767.0"), pack("40000.0"));
+        assertTrue(pack("40000.0") > 0);
+    }
+
+    @Test
+    public void blankContainsAll() {
+        assertSame(VersionRange.ALL, VersionRange.parse(null));
+        assertSame(VersionRange.ALL, VersionRange.parse(" "));
+        assertTrue(VersionRange.ALL.contains(version("0.0.0")));
+        assertTrue(VersionRange.ALL.contains(version("40000.0")));
+    }
+
+    @Test
+    public void inclusiveBounds() {
+        VersionRange range = VersionRange.parse("[1.0,2.0]");
+        assertFalse(range.contains(version("0.9.9")));
+        assertTrue(range.contains(version("1.0")));
+        assertTrue(range.contains(version("2.0")));
+        assertFalse(range.contains(version("2.0-1")));
+    }
+
+    @Test
+    public void exclusiveBounds() {
+        VersionRange range = VersionRange.parse("(1.0,2.0)");
+        assertFalse(range.contains(version("1.0")));
+        assertFalse(range.contains(version("1.0-SNAPSHOT")));
+        assertTrue(range.contains(version("1.0-1")));
+        assertTrue(range.contains(version("1.0.1")));
+        assertTrue(range.contains(version("1.99.99-99")));
+        assertFalse(range.contains(version("2.0")));
+    }
+
+    @Test
+    public void openRanges() {
+        VersionRange range = VersionRange.parse("(,1.0],[1.5,)");
+        assertTrue(range.contains(version("0.1")));
+        assertTrue(range.contains(version("1.0")));
+        assertFalse(range.contains(version("1.2")));
+        assertTrue(range.contains(version("1.5")));
+        assertTrue(range.contains(version("40000.0")));
+    }
+
+    @Test
+    public void exactVersions() {
+        VersionRange range = VersionRange.parse("[1.3], 1.5");
+        assertTrue(range.contains(version("1.3")));
+        assertFalse(range.contains(version("1.4")));
+        assertTrue(range.contains(version("1.5")));
+        assertFalse(range.contains(version("1.5-1")));
+    }
+
+    @Test
+    public void excludedVersions() {
+        VersionRange range = VersionRange.parse("[1.0,2.0)", "1.5", " 1.7 ");
+        assertTrue(range.contains(version("1.4")));
+        assertFalse(range.contains(version("1.5")));
+        assertFalse(range.contains(version("1.7")));
+
+        range = VersionRange.parse("", "1.5");
+        assertFalse(range.isAll());
+        assertTrue(range.contains(version("1.4")));
+        assertFalse(range.contains(version("1.5")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unclosedRange() {
+        VersionRange.parse("[1.0,2.0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void exclusiveExactVersion() {
+        VersionRange.parse("(1.0)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRange() {
+        VersionRange.parse("[2.0,1.0]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyExclusiveRange() {
+        VersionRange.parse("(1.0,1.0-1)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingSeparator() {
+        VersionRange.parse("[1.0,2.0)[3.0,)");
+    }
+
+    private static long pack(String version) {
+        return VersionRange.pack(version(version));
+    }
+
+    private static ArtifactVersion version(String version) {
+        return new DefaultArtifactVersion(version);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.maven;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import groovy.lang.GroovyClassLoader;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.tools.GroovyClass;
+
+/**
+ * Compiles the Groovy upgrade scripts of a content package and writes the classes of each script to a jar next to
+ * its source, e.g. {@code prepare_a.jar} for {@code prepare_a.groovy}. The build fails if a script does not compile.
+ * Upgrade infos with {@code precompiled="{Boolean}true"} run these classes instead of passing the source to the
+ * Groovy console.
+ */
+@Mojo(name = "compile-groovy", defaultPhase = LifecyclePhase.PREPARE_PACKAGE, requiresDependencyResolution = ResolutionScope.COMPILE)
+public class CompileGroovyMojo extends AbstractMojo {
+
+    private static final String GROOVY_EXTENSION = ".groovy";
+
+    /**
+     * The upgrader folder of the package work directory.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/vault-work/META-INF/vault/definition/upgrader")
+    private File upgraderDirectory;
+
+    /**
+     * Packages imported by default, the Groovy console imports the same ones.
+     */
+    @Parameter
+    private String[] starImports = { "javax.jcr", "org.apache.sling.api", "org.apache.sling.api.resource",
+            "com.day.cq.search", "com.day.cq.tagging", "com.day.cq.wcm.api", "com.day.cq.replication" };
+
+    @Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+    private List<String> classpathElements;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (!upgraderDirectory.isDirectory()) {
+            getLog().info("No upgrader definitions found at " + upgraderDirectory);
+            return;
+        }
+
+        List<File> scripts = new ArrayList<>();
+        findScripts(upgraderDirectory, scripts);
+
+        ClassLoader classLoader = createClassLoader();
+        List<String> errors = new ArrayList<>();
+        for (File script : scripts) {
+            try {
+                compile(script, classLoader);
+                getLog().info("Compiled " + script);
+            } catch (CompilationFailedException e) {
+                errors.add(script + ": " + e.getMessage());
+            } catch (IOException e) {
+                throw new MojoExecutionException("Could not write classes of " + script, e);
+            }
+        }
+        if (!errors.isEmpty()) {
+            for (String error : errors) {
+                getLog().error(error);
+            }
+            throw new MojoFailureException(errors.size() + " upgrade script(s) failed to compile");
+        }
+    }
+
+    private void findScripts(File dir, List<File> scripts) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                findScripts(child, scripts);
+            } else if (child.getName().endsWith(GROOVY_EXTENSION)) {
+                scripts.add(child);
+            }
+        }
+    }
+
+    private ClassLoader createClassLoader() throws MojoExecutionException {
+        List<URL> urls = new ArrayList<>();
+        try {
+            for (String element : classpathElements) {
+                urls.add(new File(element).toURI().toURL());
+            }
+        } catch (MalformedURLException e) {
+            throw new MojoExecutionException("Invalid class path", e);
+        }
+        return new URLClassLoader(urls.toArray(new URL[urls.size()]), getClass().getClassLoader());
+    }
+
+    private void compile(File script, ClassLoader classLoader) throws IOException {
+        CompilerConfiguration configuration = new CompilerConfiguration();
+        configuration.addCompilationCustomizers(new ImportCustomizer().addStarImports(starImports));
+
+        CompilationUnit unit = new CompilationUnit(configuration, null, new GroovyClassLoader(classLoader, configuration));
+        unit.addSource(script);
+        unit.compile(Phases.CLASS_GENERATION);
+
+        String baseName = script.getName().substring(0, script.getName().length() - GROOVY_EXTENSION.length());
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, baseName);
+
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(new File(script.getParentFile(), baseName + ".jar")), manifest);
+        try {
+            for (Object compiled : unit.getClasses()) {
+                GroovyClass groovyClass = (GroovyClass) compiled;
+                jar.putNextEntry(new JarEntry(groovyClass.getName().replace('.', '/') + ".class"));
+                jar.write(groovyClass.getBytes());
+                jar.closeEntry();
+            }
+        } finally {
+            jar.close();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.maven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.vault.packaging.InstallContext.Phase;
+import org.apache.jackrabbit.vault.util.PlatformNameFormat;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.xml.sax.SAXException;
+
+/**
+ * Writes the index of the upgrade infos of a content package to {@code META-INF/vault/upgrader-index.properties}, read
+ * by the hook instead of walking the installed upgrader definition. Runs on the package work directory after the
+ * upgrader definitions have been copied there. The format is described by {@code UpgradeIndex} of the hook.
+ */
+@Mojo(name = "upgrader-index", defaultPhase = LifecyclePhase.PREPARE_PACKAGE)
+public class UpgraderIndexMojo extends AbstractMojo {
+
+    private static final String UPGRADER_DIR = "definition/upgrader";
+    private static final String CONTENT_XML = ".content.xml";
+    private static final String INDEX_FILE = "upgrader-index.properties";
+
+    private static final String KEY_INFOS = "infos";
+    private static final String KEY_DIGEST = "digest";
+    private static final String PREFIX_INFO = "info.";
+    private static final String PREFIX_SCRIPTS = "scripts.";
+    private static final String SEPARATOR = ",";
+
+    private static final Phase[] PHASES = Phase.values();
+
+    /**
+     * The META-INF/vault folder of the package work directory.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/vault-work/META-INF/vault")
+    private File vaultDirectory;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        File[] infoDirs = new File(vaultDirectory, UPGRADER_DIR).listFiles();
+        if (infoDirs == null) {
+            getLog().info("No upgrader definitions found at " + new File(vaultDirectory, UPGRADER_DIR));
+            return;
+        }
+
+        try {
+            List<IndexedInfo> infos = new ArrayList<>();
+            for (File infoDir : infoDirs) {
+                File contentXml = new File(infoDir, CONTENT_XML);
+                if (infoDir.isDirectory() && contentXml.isFile()) {
+                    infos.add(new IndexedInfo(infoDir, readProperties(contentXml)));
+                }
+            }
+            // same order as UpgradeInfo.compareTo: version, then priority
+            Collections.sort(infos, new Comparator<IndexedInfo>() {
+                @Override
+                public int compare(IndexedInfo i1, IndexedInfo i2) {
+                    int versionCompare = i1.version.compareTo(i2.version);
+                    return versionCompare != 0 ? versionCompare : Long.compare(i1.priority, i2.priority);
+                }
+            });
+            write(infos);
+            getLog().info("Indexed " + infos.size() + " upgrade info(s)");
+        } catch (IOException | ParserConfigurationException | NoSuchAlgorithmException e) {
+            throw new MojoExecutionException("Could not write the upgrader index", e);
+        } catch (SAXException e) {
+            throw new MojoFailureException("Invalid upgrader definition: " + e.getMessage());
+        }
+    }
+
+    private void write(List<IndexedInfo> infos) throws IOException, NoSuchAlgorithmException {
+        Properties index = new Properties();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < infos.size(); i++) {
+            IndexedInfo info = infos.get(i);
+            names.add(info.name);
+            for (Map.Entry<String, String> property : info.properties.entrySet()) {
+                index.setProperty(PREFIX_INFO + i + "." + property.getKey(), property.getValue());
+            }
+            if (info.scripts != null) {
+                for (Map.Entry<Phase, List<String>> phaseScripts : info.scripts.entrySet()) {
+                    index.setProperty(PREFIX_SCRIPTS + i + "." + phaseScripts.getKey(), StringUtils.join(phaseScripts.getValue(), SEPARATOR));
+                }
+            }
+        }
+        index.setProperty(KEY_INFOS, StringUtils.join(names, SEPARATOR));
+        index.setProperty(KEY_DIGEST, digest(new File(vaultDirectory, UPGRADER_DIR)));
+
+        OutputStream out = new FileOutputStream(new File(vaultDirectory, INDEX_FILE));
+        try {
+            index.store(out, "vault upgrade hook index");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * SHA-1 digest of the relative paths and contents of all files below a folder, in path order.
+     */
+    private static String digest(File dir) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest(dir, "", digest);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void digest(File dir, String path, MessageDigest digest) throws IOException {
+        File[] children = dir.listFiles();
+        Arrays.sort(children);
+        byte[] buffer = new byte[8192];
+        for (File child : children) {
+            String childPath = path + "/" + child.getName();
+            if (child.isDirectory()) {
+                digest(child, childPath, digest);
+            } else {
+                digest.update(childPath.getBytes("UTF-8"));
+                digest.update((byte) 0);
+                InputStream in = new FileInputStream(child);
+                try {
+                    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                        digest.update(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+                digest.update((byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Read the properties of the root node of a DocView file, keeping their DocView notation.
+     */
+    private static Map<String, String> readProperties(File contentXml) throws IOException, ParserConfigurationException, SAXException {
+        Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(contentXml).getDocumentElement();
+        Map<String, String> properties = new LinkedHashMap<>();
+        NamedNodeMap attributes = root.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            String name = attribute.getName();
+            if (!name.startsWith("xmlns") && !name.equals("jcr:primaryType") && !name.equals("jcr:mixinTypes")) {
+                properties.put(name, attribute.getValue());
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Same as UpgradeHandlerBase.getPhaseFromPrefix: the longest phase name the script name starts with, INSTALLED
+     * by default.
+     */
+    private static Phase getPhaseFromPrefix(String name) {
+        for (int i = PHASES.length - 1; i >= 0; i--) {
+            if (StringUtils.startsWithIgnoreCase(name, PHASES[i].name())) {
+                return PHASES[i];
+            }
+        }
+        return Phase.INSTALLED;
+    }
+
+    /**
+     * @return The value of a {@code {Long}} property in DocView notation, or else {@link Long#MAX_VALUE}.
+     */
+    private static long parseLong(String value) {
+        String raw = StringUtils.removeStart(value, "{Long}");
+        try {
+            return Long.parseLong(raw);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static class IndexedInfo {
+        private final String name;
+        private final Map<String, String> properties;
+        private final DefaultArtifactVersion version;
+        private final long priority;
+        private final Map<Phase, List<String>> scripts;
+
+        private IndexedInfo(File dir, Map<String, String> properties) throws IOException, ParserConfigurationException, SAXException {
+            this.name = PlatformNameFormat.getRepositoryName(dir.getName());
+            this.properties = properties;
+            this.version = new DefaultArtifactVersion(properties.containsKey("version") ? properties.get("version") : "0.0.0");
+            this.priority = properties.containsKey("priority") ? parseLong(properties.get("priority")) : Long.MAX_VALUE;
+            this.scripts = findScripts(dir, StringUtils.defaultIfEmpty(properties.get("handler"), "groovy").toLowerCase());
+        }
+
+        /**
+         * Find the scripts of the built-in handlers, custom handlers look up their configuration themselves.
+         */
+        private static Map<Phase, List<String>> findScripts(File dir, String handler) throws IOException, ParserConfigurationException, SAXException {
+            if (!"groovy".equals(handler) && !"slingpipes".equals(handler)) {
+                return null;
+            }
+            Map<Phase, List<String>> scripts = new EnumMap<>(Phase.class);
+            for (Phase phase : PHASES) {
+                scripts.put(phase, new ArrayList<String>());
+            }
+            File[] children = dir.listFiles();
+            Arrays.sort(children);
+            for (File child : children) {
+                String name = PlatformNameFormat.getRepositoryName(child.getName());
+                boolean script;
+                if ("groovy".equals(handler)) {
+                    script = child.isFile() && name.endsWith(".groovy");
+                } else {
+                    File contentXml = new File(child, CONTENT_XML);
+                    script = contentXml.isFile() && StringUtils.startsWith(readProperties(contentXml).get("sling:resourceType"), "slingPipes/");
+                }
+                if (script) {
+                    scripts.get(getPhaseFromPrefix(name)).add(name);
+                }
+            }
+            return scripts;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.runner;
+
+import static biz.netcentric.vlt.upgrade.util.LogUtil.error;
+import static biz.netcentric.vlt.upgrade.util.LogUtil.info;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.netcentric.vlt.upgrade.UpgradeInfo;
+import biz.netcentric.vlt.upgrade.handler.GroovyConsoleHandler;
+import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerBase;
+import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerFactory;
+import com.day.text.Text;
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+
+/**
+ * Runs the Groovy scripts of an upgrade info with a plain {@link GroovyShell} instead of the Groovy Console, which
+ * needs OSGi. Scripts are found, ordered and wrapped like by the {@link GroovyConsoleHandler}; they get the same
+ * variables as precompiled scripts: {@code session}, {@code resourceResolver}, {@code handler}, {@code out} and
+ * {@code log}. Failed scripts are counted by the {@link Factory}, so the runner can report them.
+ */
+public class GroovyShellHandler extends GroovyConsoleHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(GroovyShellHandler.class);
+
+    private final AtomicInteger failures;
+
+    private GroovyShellHandler(AtomicInteger failures) {
+        this.failures = failures;
+    }
+
+    @Override
+    protected ClassLoader getGroovyClassLoader() {
+        return GroovyShell.class.getClassLoader();
+    }
+
+    @Override
+    protected void runSource(String scriptPath, String script) {
+        long start = System.currentTimeMillis();
+        StringWriter output = new StringWriter();
+        try {
+            Binding binding = new Binding();
+            binding.setVariable("session", getSession());
+            binding.setVariable("resourceResolver", getResourceResolver());
+            binding.setVariable("handler", this);
+            binding.setVariable("out", new PrintWriter(output, true));
+            binding.setVariable("log", log);
+            // named after the script, so stack traces and profiles point to its lines
+            Script compiled = new GroovyShell(getGroovyClassLoader(), binding).parse(script, Text.getName(scriptPath));
+            compiled.run();
+            info("I", "Run in " + (System.currentTimeMillis() - start) + "ms with output of", ctx);
+            info("", output.toString().trim(), ctx);
+        } catch (Exception e) {
+            info("", output.toString().trim(), ctx);
+            scriptFailed(scriptPath, e);
+        }
+    }
+
+    @Override
+    protected void scriptFailed(String scriptPath, Exception e) {
+        failures.incrementAndGet();
+        error("Script " + Text.getName(scriptPath) + " failed", e, ctx);
+    }
+
+    /**
+     * Replaces the built-in factory of the {@code groovy} handler type.
+     */
+    public static class Factory implements UpgradeHandlerFactory {
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        @Override
+        public String getType() {
+            return UpgradeInfo.HandlerType.GROOVY.name();
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public UpgradeHandlerBase create(UpgradeInfo upgradeInfo) {
+            return new GroovyShellHandler(failures);
+        }
+
+        /**
+         * @return The number of scripts which failed in the handlers created so far.
+         */
+        public int getFailures() {
+            return failures.get();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.runner;
+
+import java.util.Map;
+
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.VaultPackage;
+
+import biz.netcentric.vlt.upgrade.util.ServiceProvider;
+
+/**
+ * Stand-in for the install context Vault passes to install hooks. The phase is set by the runner driving the
+ * upgrade, the package is the one uploaded to the repository. It passes the services of the runner to the hook.
+ */
+public class RunnerInstallContext implements InstallContext, ServiceProvider {
+
+    private final Session session;
+    private final VaultPackage vaultPackage;
+    private final Map<Class<?>, Object> services;
+    private final ImportOptions options = new ImportOptions();
+    private Phase phase = Phase.PREPARE;
+
+    public RunnerInstallContext(Session session, VaultPackage vaultPackage, Map<Class<?>, Object> services) {
+        this.session = session;
+        this.vaultPackage = vaultPackage;
+        this.services = services;
+    }
+
+    @Override
+    public Session getSession() {
+        return session;
+    }
+
+    @Override
+    public VaultPackage getPackage() {
+        return vaultPackage;
+    }
+
+    @Override
+    public ImportOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public void setPhase(Phase phase) {
+        this.phase = phase;
+    }
+
+    @Override
+    public <T> T getService(Class<T> clazz) {
+        return clazz.cast(services.get(clazz));
+    }
+}
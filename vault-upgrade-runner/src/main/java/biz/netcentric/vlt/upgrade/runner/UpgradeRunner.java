@@ -0,0 +1,263 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.runner;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.plugins.blob.datastore.DataStoreBlobStore;
+import org.apache.jackrabbit.oak.plugins.blob.datastore.OakFileDataStore;
+import org.apache.jackrabbit.oak.plugins.index.CompositeIndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.IndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.counter.NodeCounterEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.property.PropertyIndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.reference.ReferenceEditorProvider;
+import org.apache.jackrabbit.oak.segment.SegmentNodeStoreBuilders;
+import org.apache.jackrabbit.oak.segment.file.FileStore;
+import org.apache.jackrabbit.oak.segment.file.FileStoreBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.vault.packaging.InstallContext.Phase;
+import org.apache.jackrabbit.vault.packaging.JcrPackage;
+import org.apache.jackrabbit.vault.packaging.JcrPackageManager;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.apache.jackrabbit.vault.packaging.impl.JcrPackageManagerImpl;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.netcentric.vlt.upgrade.DeferredUpgrades;
+import biz.netcentric.vlt.upgrade.UpgradeProcessor;
+import biz.netcentric.vlt.upgrade.handler.UpgradeHandlerRegistry;
+import biz.netcentric.vlt.upgrade.util.JcrResourceResolver;
+import biz.netcentric.vlt.upgrade.util.Util;
+
+/**
+ * Runs the upgrades of a package against a local Oak segment store, e.g. a copy of a production repository, without
+ * starting AEM. The {@link UpgradeProcessor} is driven through the phases of an install like Vault does, but the
+ * content of the package is not imported. Groovy scripts run with a plain Groovy shell, bulk rewrites directly on the
+ * node store; Sling pipes need a Sling instance and are not available.
+ */
+public class UpgradeRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(UpgradeRunner.class);
+
+    private static final String USAGE = "Usage: java -jar vault-upgrade-runner.jar [options] <segmentstore> <package>\n"
+            + "  <segmentstore>         the segment store directory, e.g. crx-quickstart/repository/segmentstore\n"
+            + "  <package>              the id (group:name:version) of a package uploaded to the repository,\n"
+            + "                         or a package file which is uploaded first\n"
+            + "Options:\n"
+            + "  --datastore <dir>      the file data store directory, if the repository uses one\n"
+            + "  --user <name>          the user running the upgrades, admin by default\n"
+            + "  --password <password>  the password of the user, admin by default\n"
+            + "  --threads <count>      the number of upgrade infos run concurrently, all cores by default";
+
+    private File segmentStore;
+    private File dataStore;
+    private String packageArg;
+    private String user = "admin";
+    private String password = "admin";
+    private int threads;
+    private final GroovyShellHandler.Factory groovyHandlers = new GroovyShellHandler.Factory();
+
+    public UpgradeRunner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads The number of upgrade infos run concurrently.
+     */
+    UpgradeRunner(int threads) {
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) {
+        UpgradeRunner runner = new UpgradeRunner();
+        if (!runner.parse(args)) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            System.exit(runner.run() ? 0 : 1);
+        } catch (Exception e) {
+            log.error("Content upgrade failed", e);
+            System.exit(1);
+        }
+    }
+
+    private boolean parse(String[] args) {
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("--"); i++) {
+                switch (args[i]) {
+                    case "--datastore":
+                        dataStore = new File(args[++i]);
+                        break;
+                    case "--user":
+                        user = args[++i];
+                        break;
+                    case "--password":
+                        password = args[++i];
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        System.err.println("Unknown option " + args[i]);
+                        return false;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Invalid value of option " + args[i - 1]);
+            return false;
+        }
+        if (args.length - i != 2) {
+            return false;
+        }
+        segmentStore = new File(args[i]);
+        packageArg = args[i + 1];
+        return segmentStore.isDirectory() && threads > 0;
+    }
+
+    /**
+     * Open the repository, run the upgrades of the package and wait for its deferred upgrades.
+     * @return true if the upgrades succeeded, see {@link #upgrade(RunnerInstallContext)}
+     * @throws Exception if the repository or the package can't be opened
+     */
+    private boolean run() throws Exception {
+        long start = System.currentTimeMillis();
+        FileStoreBuilder builder = FileStoreBuilder.fileStoreBuilder(segmentStore);
+        if (dataStore != null) {
+            OakFileDataStore fileDataStore = new OakFileDataStore();
+            fileDataStore.setPath(dataStore.getAbsolutePath());
+            fileDataStore.init(null);
+            builder.withBlobStore(new DataStoreBlobStore(fileDataStore));
+        }
+        FileStore fileStore = builder.build();
+        try {
+            NodeStore nodeStore = SegmentNodeStoreBuilders.builder(fileStore).build();
+            Map<Class<?>, Object> services = createServices(nodeStore);
+            Repository repository = new Jcr(new Oak(nodeStore)).createRepository();
+            try {
+                Session session = repository.login(new SimpleCredentials(user, password.toCharArray()));
+                try {
+                    return upgrade(session, services);
+                } finally {
+                    session.logout();
+                }
+            } finally {
+                ((JackrabbitRepository) repository).shutdown();
+            }
+        } finally {
+            fileStore.close();
+            log.info("Finished after {}ms", System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Make the hook work outside of OSGi: resources are read from plain JCR, Groovy scripts run without the Groovy
+     * Console, bulk rewrites commit to the node store and update the synchronous indexes.
+     * @param nodeStore The node store of the repository.
+     * @return The services passed to the hook by the {@link RunnerInstallContext}.
+     */
+    Map<Class<?>, Object> createServices(NodeStore nodeStore) {
+        Map<Class<?>, Object> services = new HashMap<>();
+        services.put(ResourceResolverFactory.class, JcrResourceResolver.createFactory());
+        services.put(NodeStore.class, nodeStore);
+        services.put(IndexEditorProvider.class, CompositeIndexEditorProvider.compose(Arrays.<IndexEditorProvider>asList(
+                new PropertyIndexEditorProvider(), new ReferenceEditorProvider(), new NodeCounterEditorProvider())));
+        UpgradeHandlerRegistry.register(groovyHandlers);
+        return services;
+    }
+
+    private boolean upgrade(Session session, Map<Class<?>, Object> services) throws Exception {
+        JcrPackage jcrPackage = openPackage(session);
+        if (jcrPackage == null) {
+            log.error("Package {} not found", packageArg);
+            return false;
+        }
+        try {
+            return upgrade(new RunnerInstallContext(session, jcrPackage.getPackage(), services));
+        } finally {
+            jcrPackage.close();
+        }
+    }
+
+    /**
+     * Drive the install phases through the upgrade processor, the way Vault calls the hook.
+     * @param ctx The install context of the package, with the services passed to the hook.
+     * @return true if the upgrades, their scripts and the deferred upgrades succeeded
+     * @throws Exception if the changes can't be saved or the deferred upgrades can't be read
+     */
+    boolean upgrade(RunnerInstallContext ctx) throws Exception {
+        Session session = ctx.getSession();
+        log.info("Upgrading {} with {} threads", ctx.getPackage().getId(), threads);
+        UpgradeProcessor processor = new UpgradeProcessor();
+        processor.setThreads(threads);
+
+        if (!execute(processor, ctx, Phase.PREPARE)) {
+            execute(processor, ctx, Phase.PREPARE_FAILED);
+            return false;
+        }
+        if (!execute(processor, ctx, Phase.INSTALLED)) {
+            execute(processor, ctx, Phase.INSTALL_FAILED);
+            return false;
+        }
+        if (!execute(processor, ctx, Phase.END)) {
+            return false;
+        }
+        Util.save(ctx, session);
+
+        log.info("Waiting for deferred upgrades");
+        DeferredUpgrades.await(Long.MAX_VALUE);
+        session.refresh(false);
+        boolean succeeded = true;
+        if (groovyHandlers.getFailures() > 0) {
+            log.error("{} script(s) failed", groovyHandlers.getFailures());
+            succeeded = false;
+        }
+        if (DeferredUpgrades.hasUnfinished(session, ctx.getPackage().getId())) {
+            log.error("Deferred upgrades failed, see {}", DeferredUpgrades.getJobsPath(ctx.getPackage().getId()));
+            succeeded = false;
+        }
+        return succeeded;
+    }
+
+    private JcrPackage openPackage(Session session) throws Exception {
+        JcrPackageManager packageManager = new JcrPackageManagerImpl(session);
+        File file = new File(packageArg);
+        if (file.isFile()) {
+            log.info("Uploading {}", file);
+            return packageManager.upload(file, false, true, null);
+        }
+        return packageManager.open(PackageId.fromString(packageArg));
+    }
+
+    /**
+     * @return false if the phase failed, the failure is logged by the processor.
+     */
+    private boolean execute(UpgradeProcessor processor, RunnerInstallContext ctx, Phase phase) {
+        ctx.setPhase(phase);
+        try {
+            processor.execute(ctx);
+            return true;
+        } catch (PackageException e) {
+            return false;
+        }
+    }
+}
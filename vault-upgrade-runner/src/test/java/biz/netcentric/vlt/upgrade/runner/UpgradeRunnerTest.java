@@ -0,0 +1,226 @@
+/*
+ * (C) Copyright 2016 Netcentric AG.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.vlt.upgrade.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeStore;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.apache.jackrabbit.vault.packaging.VaultPackage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import biz.netcentric.vlt.upgrade.DeferredUpgrades;
+import biz.netcentric.vlt.upgrade.UpgradeStatusStore;
+
+public class UpgradeRunnerTest {
+
+    private static final PackageId PACKAGE_ID = new PackageId("test", "runner-test", "1.0.0");
+
+    private NodeStore nodeStore;
+    private Repository repository;
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        nodeStore = new MemoryNodeStore();
+        repository = new Jcr(new Oak(nodeStore)).createRepository();
+        session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        session.getWorkspace().getNamespaceRegistry().registerNamespace("vlt", "http://www.day.com/jcr/vault/1.0");
+        // the status of the upgrades is stored in sling:Folder nodes, as on AEM
+        CndImporter.registerNodeTypes(new StringReader("<sling='http://sling.apache.org/jcr/sling/1.0'>\n"
+                + "[sling:Folder] > nt:folder\n"
+                + "  - * (undefined) multiple\n"
+                + "  - * (undefined)\n"
+                + "  + * (nt:base) = sling:Folder version"), session);
+        session.getRootNode().addNode("content", JcrConstants.NT_UNSTRUCTURED);
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+        ((JackrabbitRepository) repository).shutdown();
+    }
+
+    @Test
+    public void runsInfosConcurrently() throws Exception {
+        Node upgrader = addUpgrader();
+        addInfo(upgrader, "a");
+        addInfo(upgrader, "b");
+        session.save();
+
+        UpgradeRunner runner = new UpgradeRunner(2);
+        assertTrue(runner.upgrade(new RunnerInstallContext(session, vaultPackage(), runner.createServices(nodeStore))));
+
+        session.refresh(false);
+        for (String name : new String[] { "a", "b" }) {
+            Node upgraded = session.getNode("/content/" + name);
+            // each info ran on a worker with its own session, saved once it succeeded
+            assertTrue(upgraded.getProperty("thread").getString().startsWith("vault-upgrade-worker-"));
+        }
+        assertEquals("1.0.0", session.getNode(UpgradeStatusStore.getStatusPath(PACKAGE_ID)).getProperty("version").getString());
+    }
+
+    @Test
+    public void reportsFailedScripts() throws Exception {
+        Node upgrader = addUpgrader();
+        addInfo(upgrader, "a");
+        addScript(addInfo(upgrader, "b"), "install2.groovy", "throw new IllegalStateException('failed')");
+        session.save();
+
+        UpgradeRunner runner = new UpgradeRunner(2);
+        assertFalse(runner.upgrade(new RunnerInstallContext(session, vaultPackage(), runner.createServices(nodeStore))));
+    }
+
+    @Test
+    public void revertsCancelledUpgrade() throws Exception {
+        Node upgrader = addUpgrader();
+        Node info = addInfo(upgrader, "a", "session.getNode('/content').addNode('a')\n"
+                + "while (!handler.cancelled) { Thread.sleep(10) }");
+        info.setProperty("timeout", 200L);
+        session.save();
+
+        UpgradeRunner runner = new UpgradeRunner(1);
+        assertFalse(runner.upgrade(new RunnerInstallContext(session, vaultPackage(), runner.createServices(nodeStore))));
+
+        session.refresh(false);
+        // the pending changes of the cancelled upgrade are discarded, only the failure is stored
+        assertFalse(session.nodeExists("/content/a"));
+        Node status = session.getNode(UpgradeStatusStore.getStatusPath(PACKAGE_ID));
+        assertEquals("a: a exceeded its time budget of 200ms", status.getProperty("failure").getString());
+        assertFalse(status.hasProperty("version"));
+    }
+
+    @Test
+    public void retriesDeferredUpgrade() throws Exception {
+        Node upgrader = addUpgrader();
+        // the first attempt saves a marker and exceeds its time budget, the second one succeeds
+        Node info = addInfo(upgrader, "a", "if (!session.nodeExists('/content/attempted')) {\n"
+                + "  session.getNode('/content').addNode('attempted')\n"
+                + "  session.save()\n"
+                + "  while (!handler.cancelled) { Thread.sleep(10) }\n"
+                + "}\n"
+                + "session.getNode('/content').addNode('a')");
+        info.setProperty("mode", "deferred");
+        info.setProperty("timeout", 200L);
+        info.setProperty("retryDelay", 10L);
+        session.save();
+
+        UpgradeRunner runner = new UpgradeRunner(1);
+        assertTrue(runner.upgrade(new RunnerInstallContext(session, vaultPackage(), runner.createServices(nodeStore))));
+
+        session.refresh(false);
+        assertTrue(session.nodeExists("/content/a"));
+        Node job = session.getNode(DeferredUpgrades.getJobsPath(PACKAGE_ID) + "/a");
+        assertEquals("SUCCEEDED", job.getProperty("state").getString());
+        assertEquals(2, job.getProperty("attempts").getLong());
+        assertFalse(job.hasProperty("error"));
+    }
+
+    @Test
+    public void failsDeferredUpgradeAfterItsRetries() throws Exception {
+        Node upgrader = addUpgrader();
+        Node info = addInfo(upgrader, "a", "while (!handler.cancelled) { Thread.sleep(10) }");
+        info.setProperty("mode", "deferred");
+        info.setProperty("timeout", 100L);
+        info.setProperty("retries", 1L);
+        info.setProperty("retryDelay", 10L);
+        session.save();
+
+        UpgradeRunner runner = new UpgradeRunner(1);
+        assertFalse(runner.upgrade(new RunnerInstallContext(session, vaultPackage(), runner.createServices(nodeStore))));
+
+        session.refresh(false);
+        Node job = session.getNode(DeferredUpgrades.getJobsPath(PACKAGE_ID) + "/a");
+        assertEquals("FAILED", job.getProperty("state").getString());
+        assertEquals(2, job.getProperty("attempts").getLong());
+        assertTrue(job.getProperty("error").getString(), job.getProperty("error").getString().contains("exceeded its time budget"));
+        // the status of the install itself is stored
+        assertEquals("1.0.0", session.getNode(UpgradeStatusStore.getStatusPath(PACKAGE_ID)).getProperty("version").getString());
+    }
+
+    @Test
+    public void resumesDeferredUpgradesOfPreviousInstalls() throws Exception {
+        Node upgrader = addUpgrader();
+        // not included by this install, it ran for an older version already
+        Node info = addInfo(upgrader, "b");
+        info.setProperty("run", "once");
+        info.setProperty("mode", "deferred");
+        Node jobs = JcrUtils.getOrCreateByPath(DeferredUpgrades.getJobsPath(PACKAGE_ID), "sling:Folder", session);
+        Node failed = jobs.addNode("b", "sling:Folder");
+        failed.setProperty("state", "FAILED");
+        failed.setProperty("attempts", 4L);
+        failed.setProperty("error", "failed before");
+        // removed from the package meanwhile
+        jobs.addNode("gone", "sling:Folder").setProperty("state", "QUEUED");
+        session.save();
+
+        UpgradeRunner runner = new UpgradeRunner(1);
+        assertTrue(runner.upgrade(new RunnerInstallContext(session, vaultPackage(), runner.createServices(nodeStore))));
+
+        session.refresh(false);
+        assertTrue(session.nodeExists("/content/b"));
+        Node resumed = session.getNode(DeferredUpgrades.getJobsPath(PACKAGE_ID) + "/b");
+        assertEquals("SUCCEEDED", resumed.getProperty("state").getString());
+        // the attempts of a failed job start over
+        assertEquals(1, resumed.getProperty("attempts").getLong());
+        Node obsolete = session.getNode(DeferredUpgrades.getJobsPath(PACKAGE_ID) + "/gone");
+        assertEquals("OBSOLETE", obsolete.getProperty("state").getString());
+        assertFalse(DeferredUpgrades.hasUnfinished(session, PACKAGE_ID));
+    }
+
+    private Node addUpgrader() throws Exception {
+        return JcrUtils.getOrCreateByPath(PACKAGE_ID.getInstallationPath() + ".zip/jcr:content/vlt:definition/upgrader",
+                JcrConstants.NT_UNSTRUCTURED, session);
+    }
+
+    private static Node addInfo(Node upgrader, String name) throws Exception {
+        return addInfo(upgrader, name, "def node = session.getNode('/content').addNode('" + name + "')\n"
+                + "node.setProperty('thread', Thread.currentThread().name)");
+    }
+
+    private static Node addInfo(Node upgrader, String name, String script) throws Exception {
+        Node info = upgrader.addNode(name, JcrConstants.NT_UNSTRUCTURED);
+        info.setProperty("run", "always");
+        info.setProperty("touches", new String[] { "/content/" + name });
+        addScript(info, "install.groovy", script);
+        return info;
+    }
+
+    private static void addScript(Node info, String name, String script) throws Exception {
+        JcrUtils.putFile(info, name, "text/plain", new ByteArrayInputStream(script.getBytes("UTF-8")));
+    }
+
+    private static VaultPackage vaultPackage() {
+        VaultPackage vaultPackage = mock(VaultPackage.class);
+        when(vaultPackage.getId()).thenReturn(PACKAGE_ID);
+        return vaultPackage;
+    }
+}